@@ -0,0 +1,74 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.hotknife.MultiConsensusFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.PointMatch;
+
+/**
+ * {@link MultiConsensusFilter#filter(java.util.List)} with the parameters
+ * of SparkPairAlignSIFT on synthetic affine matches with outliers.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConsensusFilterBenchmark {
+
+	@Param({"200", "2000"})
+	public int numMatches;
+
+	@Param({"0.5", "0.1"})
+	public double inlierRatio;
+
+	private ArrayList<PointMatch> candidates;
+	private MultiConsensusFilter<AffineModel2D> filter;
+
+	@Setup
+	public void setup() {
+
+		final int numInliers = (int)Math.round(numMatches * inlierRatio);
+		candidates = SyntheticData.pointMatches(numInliers, numMatches - numInliers, 1024, 0);
+		filter = new MultiConsensusFilter<>(AffineModel2D::new, 10000, 5, 0, 7);
+	}
+
+	@Benchmark
+	public ArrayList<PointMatch> filter() {
+
+		return filter.filter(new ArrayList<>(candidates));
+	}
+}
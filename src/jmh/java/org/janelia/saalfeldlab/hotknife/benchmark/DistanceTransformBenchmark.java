@@ -0,0 +1,86 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.hotknife.SparkDistanceTransform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.imglib2.img.NativeImg;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * {@link SparkDistanceTransform#createBoundaries} on a synthetic 3D label
+ * block of random boxes.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DistanceTransformBenchmark {
+
+	@Param({"64", "128"})
+	public int size;
+
+	private ArrayImg<UnsignedLongType, LongArray> labels;
+
+	@Setup
+	public void setup() {
+
+		final Random rnd = new Random(0);
+		final long[] data = new long[size * size * size];
+		for (int k = 1; k <= 64; ++k) {
+			final int x0 = rnd.nextInt(size);
+			final int y0 = rnd.nextInt(size);
+			final int z0 = rnd.nextInt(size);
+			final int x1 = Math.min(size, x0 + rnd.nextInt(size / 4) + 1);
+			final int y1 = Math.min(size, y0 + rnd.nextInt(size / 4) + 1);
+			final int z1 = Math.min(size, z0 + rnd.nextInt(size / 4) + 1);
+			for (int z = z0; z < z1; ++z)
+				for (int y = y0; y < y1; ++y)
+					for (int x = x0; x < x1; ++x)
+						data[(z * size + y) * size + x] = k;
+		}
+		labels = ArrayImgs.unsignedLongs(data, size, size, size);
+	}
+
+	@Benchmark
+	public NativeImg<FloatType, ?> createBoundaries() {
+
+		return SparkDistanceTransform.createBoundaries(labels, size * size, new UnsignedLongType(0));
+	}
+}
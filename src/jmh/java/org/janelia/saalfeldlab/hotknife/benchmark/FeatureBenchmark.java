@@ -0,0 +1,101 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.hotknife.HammingFeatureMatcher;
+import org.janelia.saalfeldlab.hotknife.ORBFeatureExtractor;
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+ * SIFT and ORB extraction and matching through {@link Align} on synthetic
+ * textures.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FeatureBenchmark {
+
+	@Param({"512", "1024"})
+	public int size;
+
+	private FloatProcessor ip1;
+	private ArrayList<Feature> fs1;
+	private ArrayList<Feature> fs2;
+	private ArrayList<Feature> orb1;
+	private ArrayList<Feature> orb2;
+	private final ORBFeatureExtractor orb = new ORBFeatureExtractor(0.5, 0.125);
+
+	@Setup
+	public void setup() {
+
+		ip1 = SyntheticData.texture(size, size, 0);
+		final FloatProcessor ip2 = SyntheticData.translate(ip1, 12.5, -7.5);
+
+		fs1 = Align.extractFeatures((FloatProcessor)ip1.duplicate(), 0.5, 0.125, 4);
+		fs2 = Align.extractFeatures((FloatProcessor)ip2.duplicate(), 0.5, 0.125, 4);
+
+		orb1 = orb.extract((FloatProcessor)ip1.duplicate());
+		orb2 = orb.extract(ip2);
+	}
+
+	@Benchmark
+	public ArrayList<Feature> extractFeatures() {
+
+		return Align.extractFeatures((FloatProcessor)ip1.duplicate(), 0.5, 0.125, 4);
+	}
+
+	@Benchmark
+	public ArrayList<PointMatch> matchFeatures() {
+
+		return Align.matchFeatures(fs1, fs2, 0.92);
+	}
+
+	@Benchmark
+	public ArrayList<Feature> extractORBFeatures() {
+
+		return orb.extract((FloatProcessor)ip1.duplicate());
+	}
+
+	@Benchmark
+	public ArrayList<PointMatch> matchORBFeatures() {
+
+		return Align.matchFeatures(orb1, orb2, 0.8, new HammingFeatureMatcher());
+	}
+}
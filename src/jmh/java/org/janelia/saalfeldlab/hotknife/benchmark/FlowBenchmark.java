@@ -0,0 +1,81 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.hotknife.PMCCScaleSpaceBlockFlow;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.FloatProcessor;
+import net.imglib2.realtransform.PositionFieldTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Pair;
+
+/**
+ * {@link PMCCScaleSpaceBlockFlow#scaleSpaceOpticFlow(FloatProcessor, FloatProcessor, PMCCScaleSpaceBlockFlow.Param)}
+ * on a translated synthetic texture.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FlowBenchmark {
+
+	@Param({"256", "512"})
+	public int size;
+
+	@Param({"4", "16"})
+	public short radius;
+
+	@Param({"INTEGRAL", "BLOCK_PMCC", "FFT"})
+	public PMCCScaleSpaceBlockFlow.Correlation correlation;
+
+	private FloatProcessor ip1;
+	private FloatProcessor ip2;
+	private PMCCScaleSpaceBlockFlow.Param param;
+
+	@Setup
+	public void setup() {
+
+		ip1 = SyntheticData.texture(size, size, 0);
+		ip2 = SyntheticData.translate(ip1, 2.5, -1.5);
+
+		param = new PMCCScaleSpaceBlockFlow.Param(radius, 10, 1);
+		param.correlation = correlation;
+	}
+
+	@Benchmark
+	public Pair<PositionFieldTransform<DoubleType>, FloatProcessor> scaleSpaceOpticFlow() {
+
+		return PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(ip1, ip2, param);
+	}
+}
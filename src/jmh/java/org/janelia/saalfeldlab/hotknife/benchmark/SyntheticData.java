@@ -0,0 +1,133 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Reproducible synthetic inputs for the benchmarks.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class SyntheticData {
+
+	private SyntheticData() {}
+
+	/**
+	 * Smoothed uniform noise in [1, 254], i.e. without background (0) and
+	 * saturated (255) pixels.
+	 *
+	 * @param width
+	 * @param height
+	 * @param seed
+	 * @return
+	 */
+	public static FloatProcessor texture(final int width, final int height, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final FloatProcessor ip = new FloatProcessor(width, height);
+		final float[] pixels = (float[])ip.getPixels();
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = rnd.nextFloat();
+
+		new GaussianBlur().blurGaussian(ip, 2);
+
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (final float v : pixels) {
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		final float scale = 253.0f / Math.max(Float.MIN_NORMAL, max - min);
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = (pixels[i] - min) * scale + 1;
+
+		return ip;
+	}
+
+	/**
+	 * Copy of ip translated by (dx, dy) with bilinear interpolation.
+	 *
+	 * @param ip
+	 * @param dx
+	 * @param dy
+	 * @return
+	 */
+	public static FloatProcessor translate(final FloatProcessor ip, final double dx, final double dy) {
+
+		final FloatProcessor translated = (FloatProcessor)ip.duplicate();
+		translated.setInterpolationMethod(ImageProcessor.BILINEAR);
+		translated.translate(dx, dy);
+		final float[] pixels = (float[])translated.getPixels();
+		for (int i = 0; i < pixels.length; ++i)
+			if (pixels[i] == 0)
+				pixels[i] = 1;
+
+		return translated;
+	}
+
+	/**
+	 * Point matches under a random affine with Gaussian noise and uniformly
+	 * distributed outliers.
+	 *
+	 * @param numInliers
+	 * @param numOutliers
+	 * @param size extent of the point cloud
+	 * @param seed
+	 * @return shuffled matches
+	 */
+	public static ArrayList<PointMatch> pointMatches(
+			final int numInliers,
+			final int numOutliers,
+			final double size,
+			final long seed) {
+
+		final Random rnd = new Random(seed);
+		final AffineModel2D affine = new AffineModel2D();
+		final double angle = rnd.nextDouble() * 0.2 - 0.1;
+		affine.set(
+				Math.cos(angle), Math.sin(angle),
+				-Math.sin(angle), Math.cos(angle),
+				rnd.nextDouble() * 100, rnd.nextDouble() * 100);
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int i = 0; i < numInliers; ++i) {
+			final double[] p = new double[] {rnd.nextDouble() * size, rnd.nextDouble() * size};
+			final double[] q = affine.apply(p);
+			q[0] += rnd.nextGaussian();
+			q[1] += rnd.nextGaussian();
+			matches.add(new PointMatch(new Point(p), new Point(q)));
+		}
+		for (int i = 0; i < numOutliers; ++i) {
+			final double[] p = new double[] {rnd.nextDouble() * size, rnd.nextDouble() * size};
+			final double[] q = new double[] {rnd.nextDouble() * size, rnd.nextDouble() * size};
+			matches.add(new PointMatch(new Point(p), new Point(q)));
+		}
+		Collections.shuffle(matches, rnd);
+
+		return matches;
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.saalfeldlab.hotknife.util.Transform;
+import org.janelia.saalfeldlab.hotknife.util.Util;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.process.FloatProcessor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Warping through {@link Transform#createTransformedInterval} and saving
+ * transform grid blocks through {@link Transform#saveScaledTransformBlock}
+ * for an affine and for a position field transform.  Blocks are written
+ * into a temporary N5 container that is removed after the trial.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+	@Param({"256", "1024"})
+	public int size;
+
+	@Param({"affine", "positionField"})
+	public String transformType;
+
+	private RandomAccessibleInterval<FloatType> source;
+	private FinalInterval interval;
+	private RealTransform transform;
+
+	private File n5Directory;
+	private N5Writer n5;
+
+	@Setup
+	public void setup() throws IOException {
+
+		final FloatProcessor ip = SyntheticData.texture(size, size, 0);
+		source = ArrayImgs.floats((float[])ip.getPixels(), size, size);
+		interval = new FinalInterval(size, size);
+
+		final AffineTransform2D affine = new AffineTransform2D();
+		affine.rotate(0.05);
+		affine.translate(3.5, -2.5);
+
+		if (transformType.equals("affine"))
+			transform = affine;
+		else {
+			/* affine with a smooth sinusoidal deformation as position field */
+			final double[] positions = new double[size * size * 2];
+			final double[] p = new double[2];
+			final double[] q = new double[2];
+			for (int y = 0, i = 0; y < size; ++y) {
+				for (int x = 0; x < size; ++x, ++i) {
+					p[0] = x + 4 * Math.sin(y / 50.0);
+					p[1] = y + 4 * Math.cos(x / 50.0);
+					affine.apply(p, q);
+					positions[i] = q[0];
+					positions[i + size * size] = q[1];
+				}
+			}
+			final RandomAccessibleInterval<DoubleType> positionField = ArrayImgs.doubles(positions, size, size, 2);
+			transform = Transform.createPositionFieldTransform(positionField);
+		}
+
+		n5Directory = Files.createTempDirectory("hot-knife-benchmark-").toFile();
+		n5 = new N5FSWriter(n5Directory.getAbsolutePath());
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+
+		n5.remove();
+	}
+
+	@Benchmark
+	public FloatProcessor createTransformedInterval() {
+
+		return Util.materialize(
+				Transform.createTransformedInterval(
+						source,
+						interval,
+						transform,
+						new FloatType(0)));
+	}
+
+	@Benchmark
+	public void saveScaledTransformBlock() throws IOException {
+
+		final int gridSize = size / 4;
+		Transform.saveScaledTransformBlock(
+				n5,
+				"transform",
+				transform,
+				1.0,
+				new double[] {0, 0},
+				new double[] {size - 1, size - 1},
+				new long[] {1, 1},
+				new int[] {gridSize, gridSize});
+	}
+}
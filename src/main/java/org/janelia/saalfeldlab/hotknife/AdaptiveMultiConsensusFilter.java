@@ -0,0 +1,301 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.Model;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+
+/**
+ * {@link MultiConsensusFilter} with adaptive termination.  Each RANSAC
+ * stops as soon as, given the largest consensus set found so far, the
+ * probability to have missed a larger one drops below 1 - confidence, i.e.
+ * after
+ *
+ * log(1 - confidence) / log(1 - w<sup>s</sup>)
+ *
+ * hypotheses for inlier ratio w and minimal sample size s, or after
+ * maxIterations.  Hypotheses are evaluated in rounds by numThreads threads
+ * with independent random generators and a model each, the threads share
+ * the budget of maxIterations.  The random generators are seeded from a
+ * hash of seed, round and thread, so results are reproducible for a fixed
+ * numThreads.  The best consensus
+ * set is refined by {@link Model#filter} with maxTrust as in
+ * {@link Model#filterRansac}.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class AdaptiveMultiConsensusFilter<M extends Model<?>> implements ConsensusFilter {
+
+	/* hypotheses per thread and round */
+	final static private int BATCH_SIZE = 64;
+
+	final private Supplier<M> modelSupplier;
+	final private int maxIterations;
+	final private double maxEpsilon;
+	final private double minInlierRatio;
+	final private int minNumInliers;
+	final private double maxTrust;
+	final private double confidence;
+	final private int numThreads;
+	final private long seed;
+
+	public AdaptiveMultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int maxIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double maxTrust,
+			final double confidence,
+			final int numThreads,
+			final long seed) {
+
+		this.modelSupplier = modelSupplier;
+		this.maxIterations = maxIterations;
+		this.maxEpsilon = maxEpsilon;
+		this.minInlierRatio = minInlierRatio;
+		this.minNumInliers = minNumInliers;
+		this.maxTrust = maxTrust;
+		this.confidence = confidence;
+		this.numThreads = Math.max(1, numThreads);
+		this.seed = seed;
+	}
+
+	public AdaptiveMultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int maxIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers) {
+
+		this(modelSupplier, maxIterations, maxEpsilon, minInlierRatio, minNumInliers, MultiConsensusFilter.DEFAULT_MAX_TRUST, 0.999, 1, 0);
+	}
+
+	/**
+	 * Number of hypotheses required to find a consensus set of the given
+	 * inlier ratio with the configured confidence.
+	 */
+	private long requiredIterations(final double inlierRatio, final int sampleSize) {
+
+		if (inlierRatio >= 1.0)
+			return 1;
+		final double p = Math.pow(inlierRatio, sampleSize);
+		if (p <= 0)
+			return Long.MAX_VALUE;
+		final double k = Math.log(1.0 - confidence) / Math.log(1.0 - p);
+		return Double.isNaN(k) || k >= Long.MAX_VALUE ? Long.MAX_VALUE : (long)Math.ceil(k);
+	}
+
+	/**
+	 * Evaluate numHypotheses random minimal sample hypotheses.
+	 *
+	 * @return the indices of the largest consensus set found
+	 */
+	private int[] hypotheses(
+			final List<PointMatch> candidates,
+			final Model<?> model,
+			final Random rnd,
+			final int numHypotheses) {
+
+		final int n = candidates.size();
+		final int s = model.getMinNumMatches();
+		final int[] sample = new int[s];
+		final ArrayList<PointMatch> minimalSet = new ArrayList<>(s);
+		final int[] inliers = new int[n];
+		int[] best = new int[0];
+
+		for (int h = 0; h < numHypotheses; ++h) {
+
+			/* distinct random sample */
+			minimalSet.clear();
+			for (int i = 0; i < s; ++i) {
+				boolean drawn;
+				do {
+					sample[i] = rnd.nextInt(n);
+					drawn = false;
+					for (int j = 0; j < i; ++j)
+						drawn |= sample[j] == sample[i];
+				} while (drawn);
+				minimalSet.add(candidates.get(sample[i]));
+			}
+
+			try {
+				model.fit(minimalSet);
+			} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+				continue;
+			}
+
+			/* do not modify the shared point matches */
+			int numInliers = 0;
+			for (int i = 0; i < n; ++i) {
+				final PointMatch candidate = candidates.get(i);
+				final double[] p = model.apply(candidate.getP1().getL());
+				final double[] q = candidate.getP2().getW();
+				double d = 0;
+				for (int k = 0; k < p.length; ++k) {
+					final double diff = p[k] - q[k];
+					d += diff * diff;
+				}
+				if (Math.sqrt(d) < maxEpsilon)
+					inliers[numInliers++] = i;
+			}
+
+			if (numInliers > best.length) {
+				best = new int[numInliers];
+				System.arraycopy(inliers, 0, best, 0, numInliers);
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * One adaptive RANSAC followed by the robust refinement of the
+	 * consensus set.
+	 *
+	 * @param candidates
+	 * @param inliers output
+	 * @param exec null for single threaded
+	 * @param round counter for reproducible random generators
+	 * @return true if a model was found
+	 */
+	private boolean filterRansac(
+			final List<PointMatch> candidates,
+			final ArrayList<PointMatch> inliers,
+			final ExecutorService exec,
+			final int round) {
+
+		inliers.clear();
+
+		final M model = modelSupplier.get();
+		final int s = model.getMinNumMatches();
+		final int n = candidates.size();
+		if (n < s)
+			return false;
+
+		final ArrayList<Model<?>> models = new ArrayList<>();
+		final ArrayList<Random> rnds = new ArrayList<>();
+		for (int t = 0; t < numThreads; ++t) {
+			models.add(modelSupplier.get());
+			rnds.add(new Random(Features.hash(seed, round, t)));
+		}
+
+		int[] best = new int[0];
+		long iterations = 0;
+		while (iterations < Math.min(maxIterations, requiredIterations((double)best.length / n, s))) {
+
+			/* split the remaining iterations between the threads */
+			final long remaining = maxIterations - iterations;
+			final int numRoundThreads = exec == null ? 1 : (int)Math.min(numThreads, remaining);
+			final int[] numHypotheses = new int[numRoundThreads];
+			for (int t = 0; t < numRoundThreads; ++t) {
+				numHypotheses[t] = (int)Math.min(BATCH_SIZE, remaining / numRoundThreads + (t < remaining % numRoundThreads ? 1 : 0));
+				iterations += numHypotheses[t];
+			}
+
+			final ArrayList<int[]> results = new ArrayList<>();
+			if (exec == null) {
+				results.add(hypotheses(candidates, models.get(0), rnds.get(0), numHypotheses[0]));
+			} else {
+				final ArrayList<Future<int[]>> futures = new ArrayList<>();
+				for (int t = 0; t < numRoundThreads; ++t) {
+					final Model<?> threadModel = models.get(t);
+					final Random rnd = rnds.get(t);
+					final int threadNumHypotheses = numHypotheses[t];
+					futures.add(exec.submit(() -> hypotheses(candidates, threadModel, rnd, threadNumHypotheses)));
+				}
+				try {
+					for (final Future<int[]> future : futures)
+						results.add(future.get());
+				} catch (final InterruptedException | ExecutionException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			for (final int[] result : results)
+				if (result.length > best.length)
+					best = result;
+		}
+
+		if (best.length < minNumInliers || (double)best.length / n < minInlierRatio)
+			return false;
+
+		final ArrayList<PointMatch> consensusSet = new ArrayList<>(best.length);
+		for (final int i : best)
+			consensusSet.add(candidates.get(i));
+
+		try {
+			model.fit(consensusSet);
+			return model.filter(consensusSet, inliers, maxTrust, minNumInliers);
+		} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+			inliers.clear();
+			return false;
+		}
+	}
+
+	public ArrayList<ArrayList<PointMatch>> filterMultiConsensusSets(final List<PointMatch> candidates) {
+
+		final ArrayList<ArrayList<PointMatch>> inliers = new ArrayList<>();
+
+		final ExecutorService exec = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+		try {
+			boolean modelFound;
+			int round = 0;
+			do {
+				final ArrayList<PointMatch> modelInliers = new ArrayList<>();
+				modelFound = filterRansac(candidates, modelInliers, exec, round++);
+
+				if (modelFound) {
+					inliers.add(modelInliers);
+					candidates.removeAll(modelInliers);
+				}
+			} while (modelFound);
+		} finally {
+			if (exec != null)
+				exec.shutdownNow();
+		}
+
+		return inliers;
+	}
+
+	@Override
+	public ArrayList<PointMatch> filter(final List<PointMatch> candidates) {
+
+		final ArrayList<PointMatch> inliers = new ArrayList<>();
+		final ArrayList<ArrayList<PointMatch>> multiConsensusSets = filterMultiConsensusSets(candidates);
+
+		System.out.printf("Found %d consensus sets.", multiConsensusSets.size());
+		System.out.println();
+
+		multiConsensusSets.stream().forEach(consensusSet -> inliers.addAll(consensusSet));
+
+		return inliers;
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.ij.FeatureTransform;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+ * Exhaustive descriptor matching by
+ * {@link FeatureTransform#matchFeatures(java.util.Collection, java.util.Collection, List, double)},
+ * O(n*m).  This is the reference for approximate matchers.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class ExactFeatureMatcher implements FeatureMatcher {
+
+	@Override
+	public ArrayList<PointMatch> match(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod) {
+
+		final ArrayList<PointMatch> candidates = new ArrayList<>();
+		FeatureTransform.matchFeatures(
+				fs1,
+				fs2,
+				candidates,
+				(float)rod);
+		return candidates;
+	}
+}
@@ -0,0 +1,377 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.Arrays;
+
+/**
+ * Normalized cross-correlation of a block of float raster a with float
+ * raster b for all integer offsets within a square of radius distance,
+ * calculated in the frequency domain.  The numerator for all offsets is a
+ * single cross-correlation of the mean-free block with the search region
+ * of b through a radix-2 FFT, the variance of b under the shifted block is
+ * read from summed area tables of b and b&sup2;.
+ *
+ * The offset convention is that of {@link IntegralBlockPMCC}: at offset
+ * (xo, yo), a(x, y) is paired with b(x - xo, y - yo).  The shifted block
+ * must be inside of b for all offsets.
+ *
+ * Instances keep FFT buffers and are not thread safe, copies share the
+ * summed area tables of b.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class FFTBlockNCC
+{
+	final protected int width;
+	final protected int height;
+
+	/* row length of the summed area tables */
+	final protected int w1;
+
+	final protected float[] a;
+	final protected float[] b;
+
+	/* b is centered before summation for precision */
+	final protected double meanB;
+
+	/* summed area tables of b and b * b, (width + 1) * (height + 1), shared by copies */
+	final protected double[] sumsB;
+	final protected double[] sumsBB;
+
+	/* FFT buffers, reallocated when the size changes */
+	protected int fftWidth = 0;
+	protected int fftHeight = 0;
+	protected double[] re = new double[ 0 ];
+	protected double[] im = new double[ 0 ];
+	protected double[] columnRe = new double[ 0 ];
+	protected double[] columnIm = new double[ 0 ];
+
+	public FFTBlockNCC(
+			final int width,
+			final int height,
+			final float[] a,
+			final float[] b )
+	{
+		this.width = width;
+		this.height = height;
+		this.a = a;
+		this.b = b;
+
+		w1 = width + 1;
+
+		final int n = width * height;
+		double sum = 0;
+		for ( int i = 0; i < n; ++i )
+			sum += b[ i ];
+		meanB = n == 0 ? 0 : sum / n;
+
+		sumsB = new double[ w1 * ( height + 1 ) ];
+		sumsBB = new double[ sumsB.length ];
+
+		for ( int y = 0; y < height; ++y )
+		{
+			double rowSum = 0;
+			double rowSquareSum = 0;
+			final int row = y * width;
+			final int sumRow = ( y + 1 ) * w1;
+			final int previousSumRow = y * w1;
+			for ( int x = 0; x < width; ++x )
+			{
+				final double v = b[ row + x ] - meanB;
+				rowSum += v;
+				rowSquareSum += v * v;
+				sumsB[ sumRow + x + 1 ] = sumsB[ previousSumRow + x + 1 ] + rowSum;
+				sumsBB[ sumRow + x + 1 ] = sumsBB[ previousSumRow + x + 1 ] + rowSquareSum;
+			}
+		}
+	}
+
+	protected FFTBlockNCC( final FFTBlockNCC template )
+	{
+		width = template.width;
+		height = template.height;
+		a = template.a;
+		b = template.b;
+
+		w1 = template.w1;
+
+		meanB = template.meanB;
+
+		sumsB = template.sumsB;
+		sumsBB = template.sumsBB;
+	}
+
+	/**
+	 * Create a copy that shares the summed area tables and has its own FFT
+	 * buffers.
+	 *
+	 * @return
+	 */
+	public FFTBlockNCC copy()
+	{
+		return new FFTBlockNCC( this );
+	}
+
+	final static private int nextPowerOfTwo( final int n )
+	{
+		int p = 1;
+		while ( p < n )
+			p <<= 1;
+		return p;
+	}
+
+	/**
+	 * In-place iterative radix-2 FFT of n values at offset, stride 1.
+	 *
+	 * @param re
+	 * @param im
+	 * @param offset
+	 * @param n power of 2
+	 * @param inverse unscaled inverse if true
+	 */
+	final static private void fft(
+			final double[] re,
+			final double[] im,
+			final int offset,
+			final int n,
+			final boolean inverse )
+	{
+		/* bit reversal */
+		for ( int i = 1, j = 0; i < n; ++i )
+		{
+			int bit = n >> 1;
+			for ( ; ( j & bit ) != 0; bit >>= 1 )
+				j ^= bit;
+			j ^= bit;
+			if ( i < j )
+			{
+				final int oi = offset + i;
+				final int oj = offset + j;
+				final double tr = re[ oi ];
+				re[ oi ] = re[ oj ];
+				re[ oj ] = tr;
+				final double ti = im[ oi ];
+				im[ oi ] = im[ oj ];
+				im[ oj ] = ti;
+			}
+		}
+
+		/* butterflies */
+		for ( int length = 2; length <= n; length <<= 1 )
+		{
+			final double angle = ( inverse ? 2 : -2 ) * Math.PI / length;
+			final double wRe = Math.cos( angle );
+			final double wIm = Math.sin( angle );
+			final int half = length >> 1;
+			for ( int i = 0; i < n; i += length )
+			{
+				double uRe = 1;
+				double uIm = 0;
+				for ( int k = 0; k < half; ++k )
+				{
+					final int i0 = offset + i + k;
+					final int i1 = i0 + half;
+					final double vRe = re[ i1 ] * uRe - im[ i1 ] * uIm;
+					final double vIm = re[ i1 ] * uIm + im[ i1 ] * uRe;
+					re[ i1 ] = re[ i0 ] - vRe;
+					im[ i1 ] = im[ i0 ] - vIm;
+					re[ i0 ] += vRe;
+					im[ i0 ] += vIm;
+
+					final double nextURe = uRe * wRe - uIm * wIm;
+					uIm = uRe * wIm + uIm * wRe;
+					uRe = nextURe;
+				}
+			}
+		}
+	}
+
+	/**
+	 * In-place 2D FFT of the buffers, rows then columns.
+	 *
+	 * @param inverse
+	 */
+	final private void fft2( final boolean inverse )
+	{
+		for ( int y = 0; y < fftHeight; ++y )
+			fft( re, im, y * fftWidth, fftWidth, inverse );
+
+		for ( int x = 0; x < fftWidth; ++x )
+		{
+			for ( int y = 0, i = x; y < fftHeight; ++y, i += fftWidth )
+			{
+				columnRe[ y ] = re[ i ];
+				columnIm[ y ] = im[ i ];
+			}
+			fft( columnRe, columnIm, 0, fftHeight, inverse );
+			for ( int y = 0, i = x; y < fftHeight; ++y, i += fftWidth )
+			{
+				re[ i ] = columnRe[ y ];
+				im[ i ] = columnIm[ y ];
+			}
+		}
+	}
+
+	final private void allocate( final int fftWidth, final int fftHeight )
+	{
+		if ( this.fftWidth != fftWidth || this.fftHeight != fftHeight )
+		{
+			this.fftWidth = fftWidth;
+			this.fftHeight = fftHeight;
+			re = new double[ fftWidth * fftHeight ];
+			im = new double[ fftWidth * fftHeight ];
+			columnRe = new double[ fftHeight ];
+			columnIm = new double[ fftHeight ];
+		}
+	}
+
+	/**
+	 * Signed square of the NCC of the block [x0, x1) * [y0, y1) in a with
+	 * b at all offsets in [-distance, distance]&sup2;.  The block shifted by
+	 * all offsets must be inside of b.  Degenerate blocks without variance
+	 * return 0.
+	 *
+	 * @param x0
+	 * @param y0
+	 * @param x1
+	 * @param y1
+	 * @param distance
+	 * @param r output, (2 * distance + 1)&sup2;, offset (xo, yo) at
+	 *     (yo + distance) * (2 * distance + 1) + xo + distance
+	 */
+	public void rSignedSquare(
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1,
+			final int distance,
+			final float[] r )
+	{
+		final int blockWidth = x1 - x0;
+		final int blockHeight = y1 - y0;
+		final int regionWidth = blockWidth + 2 * distance;
+		final int regionHeight = blockHeight + 2 * distance;
+		final double n = blockWidth * blockHeight;
+
+		allocate( nextPowerOfTwo( regionWidth ), nextPowerOfTwo( regionHeight ) );
+
+		/* mean and variance of the block in a */
+		double sumA = 0;
+		for ( int y = y0; y < y1; ++y )
+			for ( int x = x0, i = y * width + x0; x < x1; ++x, ++i )
+				sumA += a[ i ];
+		final double meanA = sumA / n;
+
+		/* pack mean-free block of a as real and search region of b as imaginary part */
+		Arrays.fill( re, 0 );
+		Arrays.fill( im, 0 );
+		double varA = 0;
+		for ( int y = 0; y < blockHeight; ++y )
+		{
+			for ( int x = 0, i = ( y0 + y ) * width + x0, k = y * fftWidth; x < blockWidth; ++x, ++i, ++k )
+			{
+				final double v = a[ i ] - meanA;
+				re[ k ] = v;
+				varA += v * v;
+			}
+		}
+		final int bx0 = x0 - distance;
+		final int by0 = y0 - distance;
+		for ( int y = 0; y < regionHeight; ++y )
+			for ( int x = 0, i = ( by0 + y ) * width + bx0, k = y * fftWidth; x < regionWidth; ++x, ++i, ++k )
+				im[ k ] = b[ i ] - meanB;
+
+		fft2( false );
+
+		/*
+		 * separate the transforms of the two real signals
+		 * P(k) = (Z(k) + conj(Z(-k))) / 2, Q(k) = (Z(k) - conj(Z(-k))) / 2i
+		 * and replace Z by conj(P) * Q, the transform of the cross-correlation,
+		 * pairs (k, -k) are updated together
+		 */
+		for ( int ky = 0; ky < fftHeight; ++ky )
+		{
+			final int kyMirror = ( fftHeight - ky ) & ( fftHeight - 1 );
+			for ( int kx = 0; kx < fftWidth; ++kx )
+			{
+				final int kxMirror = ( fftWidth - kx ) & ( fftWidth - 1 );
+				final int k = ky * fftWidth + kx;
+				final int kMirror = kyMirror * fftWidth + kxMirror;
+				if ( kMirror < k )
+					continue;
+
+				final double zRe = re[ k ];
+				final double zIm = im[ k ];
+				final double zMirrorRe = re[ kMirror ];
+				final double zMirrorIm = im[ kMirror ];
+
+				/* at k */
+				final double pRe = 0.5 * ( zRe + zMirrorRe );
+				final double pIm = 0.5 * ( zIm - zMirrorIm );
+				final double qRe = 0.5 * ( zIm + zMirrorIm );
+				final double qIm = 0.5 * ( zMirrorRe - zRe );
+
+				re[ k ] = pRe * qRe + pIm * qIm;
+				im[ k ] = pRe * qIm - pIm * qRe;
+
+				/* at -k, P(-k) = conj(P(k)), Q(-k) = conj(Q(k)) */
+				if ( kMirror != k )
+				{
+					re[ kMirror ] = re[ k ];
+					im[ kMirror ] = -im[ k ];
+				}
+			}
+		}
+
+		fft2( true );
+
+		final double scale = 1.0 / ( fftWidth * fftHeight );
+
+		for ( int yo = -distance, j = 0; yo <= distance; ++yo )
+		{
+			/* lag of the cross-correlation */
+			final int ky = distance - yo;
+			final int sy0 = y0 - yo;
+			final int sy1 = y1 - yo;
+			for ( int xo = -distance; xo <= distance; ++xo, ++j )
+			{
+				final int kx = distance - xo;
+				final double cov = re[ ky * fftWidth + kx ] * scale;
+
+				final int sx0 = x0 - xo;
+				final int sx1 = x1 - xo;
+				final double sumB =
+						sumsB[ sy1 * w1 + sx1 ] - sumsB[ sy1 * w1 + sx0 ] -
+						sumsB[ sy0 * w1 + sx1 ] + sumsB[ sy0 * w1 + sx0 ];
+				final double sumBB =
+						sumsBB[ sy1 * w1 + sx1 ] - sumsBB[ sy1 * w1 + sx0 ] -
+						sumsBB[ sy0 * w1 + sx1 ] + sumsBB[ sy0 * w1 + sx0 ];
+
+				final double varB = sumBB - sumB * sumB / n;
+				final double varAB = varA * varB;
+				if ( !( varAB > 0 ) )
+					r[ j ] = 0;
+				else
+				{
+					final double r2 = Math.min( 1.0, cov * cov / varAB );
+					r[ j ] = ( float )( cov < 0 ? -r2 : r2 );
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,103 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * Detection and description of features in an image.  Features of
+ * different extractors are not comparable, each extractor creates the
+ * matcher for its descriptors.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public interface FeatureExtractor extends Serializable {
+
+	public static enum Method {
+
+		/**
+		 * {@link mpicbg.imagefeatures.FloatArray2DSIFT}, 128 float
+		 * descriptors
+		 */
+		SIFT,
+
+		/**
+		 * FAST keypoints ranked by Harris response with oriented binary
+		 * descriptors, matched by Hamming distance
+		 */
+		ORB;
+
+		/**
+		 * @param maxScale max octave size relative to the image
+		 * @param minScale min octave size relative to the image
+		 * @param fdSize SIFT descriptor size, ignored otherwise
+		 * @return
+		 */
+		public FeatureExtractor create(
+				final double maxScale,
+				final double minScale,
+				final int fdSize) {
+
+			switch (this) {
+			case ORB:
+				return new ORBFeatureExtractor(maxScale, minScale);
+			default:
+				return new SIFTFeatureExtractor(maxScale, minScale, fdSize);
+			}
+		}
+	}
+
+	/**
+	 * Extract features with locations in pixel coordinates of ip.  Adds
+	 * noise to saturated pixels and normalizes contrast in place, i.e. ip
+	 * is modified.
+	 *
+	 * @param ip
+	 * @return
+	 */
+	public ArrayList<Feature> extract(final FloatProcessor ip);
+
+	/**
+	 * Hash of everything that determines the features of an image of the
+	 * given size, for {@link org.janelia.saalfeldlab.hotknife.util.Features}
+	 * cache keys.
+	 *
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public long hash(final long width, final long height);
+
+	/**
+	 * Create a matcher for the descriptors of this extractor.
+	 *
+	 * @param method requested method, used where it applies to these
+	 *     descriptors
+	 * @param matchRadius
+	 * @return
+	 */
+	public default FeatureMatcher createMatcher(
+			final FeatureMatcher.Method method,
+			final double matchRadius) {
+
+		return method.create(matchRadius);
+	}
+}
@@ -0,0 +1,117 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+ * Descriptor matching of two feature sets.  For each feature in fs1, the
+ * nearest neighbor in fs2 is a candidate if the ratio of distances to the
+ * nearest and second nearest neighbor is below rod.  Candidates that share
+ * their feature in fs2 are ambiguous and removed.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public interface FeatureMatcher extends Serializable {
+
+	public static enum Method {
+
+		/**
+		 * compare all pairs, {@link mpicbg.ij.FeatureTransform}
+		 */
+		EXACT,
+
+		/**
+		 * approximate nearest neighbors from a randomized KD-forest
+		 */
+		KD_FOREST,
+
+		/**
+		 * compare only features within a radius of the same location
+		 */
+		SPATIAL_HASH;
+
+		/**
+		 * @param matchRadius max distance of matching feature locations
+		 *     for {@link #SPATIAL_HASH}, ignored otherwise
+		 * @return
+		 */
+		public FeatureMatcher create(final double matchRadius) {
+
+			switch (this) {
+			case KD_FOREST:
+				return new KDForestFeatureMatcher();
+			case SPATIAL_HASH:
+				return new SpatialHashFeatureMatcher(matchRadius);
+			default:
+				return new ExactFeatureMatcher();
+			}
+		}
+
+		public FeatureMatcher create() {
+
+			return create(Double.POSITIVE_INFINITY);
+		}
+	}
+
+	public ArrayList<PointMatch> match(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod);
+
+	/**
+	 * Hash of the matcher and its parameters, for keys of stored matches.
+	 *
+	 * @return
+	 */
+	public default long hash() {
+
+		return Features.hash(getClass().getName().hashCode());
+	}
+
+	/**
+	 * Remove all candidates that share their target feature.
+	 *
+	 * @param candidates
+	 * @param targets index of the target feature per candidate
+	 * @param numTargets
+	 * @return
+	 */
+	public static ArrayList<PointMatch> removeAmbiguousMatches(
+			final List<PointMatch> candidates,
+			final int[] targets,
+			final int numTargets) {
+
+		final int[] counts = new int[numTargets];
+		for (int i = 0; i < candidates.size(); ++i)
+			++counts[targets[i]];
+
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int i = 0; i < candidates.size(); ++i)
+			if (counts[targets[i]] == 1)
+				matches.add(candidates.get(i));
+
+		return matches;
+	}
+}
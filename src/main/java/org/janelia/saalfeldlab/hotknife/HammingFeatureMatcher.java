@@ -0,0 +1,97 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Exhaustive matching of binary descriptors as packed by
+ * {@link ORBFeatureExtractor} by Hamming distance.  Descriptors are
+ * repacked into longs such that comparing two 256 bit descriptors costs
+ * four XORs and popcounts.  The rod test is applied to Hamming distances,
+ * ambiguous matches are removed as by {@link ExactFeatureMatcher}.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class HammingFeatureMatcher implements FeatureMatcher {
+
+	final static private int FLOATS_PER_LONG = 64 / ORBFeatureExtractor.BITS_PER_FLOAT;
+
+	private static long[] packDescriptors(final List<Feature> features, final int numLongs) {
+
+		final long[] data = new long[features.size() * numLongs];
+		for (int i = 0; i < features.size(); ++i) {
+			final float[] descriptor = features.get(i).descriptor;
+			for (int j = 0; j < descriptor.length; ++j)
+				data[i * numLongs + j / FLOATS_PER_LONG] |=
+						((long)descriptor[j]) << (j % FLOATS_PER_LONG * ORBFeatureExtractor.BITS_PER_FLOAT);
+		}
+		return data;
+	}
+
+	@Override
+	public ArrayList<PointMatch> match(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod) {
+
+		if (fs1.isEmpty() || fs2.size() < 2)
+			return new ArrayList<>();
+
+		final int numLongs = (fs2.get(0).descriptor.length + FLOATS_PER_LONG - 1) / FLOATS_PER_LONG;
+		final int n = fs2.size();
+		final long[] data1 = packDescriptors(fs1, numLongs);
+		final long[] data2 = packDescriptors(fs2, numLongs);
+
+		final ArrayList<PointMatch> candidates = new ArrayList<>();
+		final int[] targets = new int[fs1.size()];
+		for (int i = 0; i < fs1.size(); ++i) {
+			final int offset1 = i * numLongs;
+			int best = -1;
+			int bestDistance = Integer.MAX_VALUE;
+			int secondBestDistance = Integer.MAX_VALUE;
+			for (int j = 0, offset2 = 0; j < n; ++j, offset2 += numLongs) {
+				int distance = 0;
+				for (int k = 0; k < numLongs; ++k)
+					distance += Long.bitCount(data1[offset1 + k] ^ data2[offset2 + k]);
+				if (distance < bestDistance) {
+					secondBestDistance = bestDistance;
+					bestDistance = distance;
+					best = j;
+				} else if (distance < secondBestDistance)
+					secondBestDistance = distance;
+			}
+
+			if (bestDistance < rod * secondBestDistance) {
+				final Feature f1 = fs1.get(i);
+				final Feature f2 = fs2.get(best);
+				targets[candidates.size()] = best;
+				candidates.add(
+						new PointMatch(
+								new Point(new double[]{f1.location[0], f1.location[1]}),
+								new Point(new double[]{f2.location[0], f2.location[1]})));
+			}
+		}
+
+		return FeatureMatcher.removeAmbiguousMatches(candidates, targets, n);
+	}
+}
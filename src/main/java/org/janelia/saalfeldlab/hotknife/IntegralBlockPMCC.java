@@ -0,0 +1,380 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+/**
+ * Block Pearson product-moment correlation coefficient (PMCC) between two
+ * equally sized float rasters a and b at an integer offset, calculated from
+ * summed area tables.  Unlike {@link mpicbg.ij.integral.BlockPMCC}, the
+ * tables of a, a&sup2;, b, and b&sup2; are calculated only once and only the
+ * table of a*b is updated per offset.  Each block radius is then read in
+ * O(1) per pixel, so a scale space of block radii costs one table per
+ * offset instead of one set of tables per radius.
+ *
+ * The offset convention is that of {@link mpicbg.ij.integral.BlockPMCC} as
+ * used by {@link PMCCScaleSpaceBlockFlow}: at offset (xo, yo), a(x, y) is
+ * paired with b(x - xo, y - yo).  Blocks are clipped at the overlap of a and
+ * the shifted b.  All coordinates are in the frame of a.
+ *
+ * Copies share the offset independent tables, a copy per thread is cheap.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class IntegralBlockPMCC
+{
+	final protected int width;
+	final protected int height;
+
+	/* row length of the summed area tables */
+	final protected int w1;
+
+	final protected float[] a;
+	final protected float[] b;
+
+	/* values are centered before summation for precision */
+	final protected double meanA;
+	final protected double meanB;
+
+	/* summed area tables, (width + 1) * (height + 1), shared by copies */
+	final protected double[] sumsA;
+	final protected double[] sumsAA;
+	final protected double[] sumsB;
+	final protected double[] sumsBB;
+
+	/* summed area table of a * b at the current offset */
+	final protected double[] sumsAB;
+
+	protected int offsetX = 0;
+	protected int offsetY = 0;
+
+	/* overlap at the current offset, max exclusive */
+	protected int overlapMinX;
+	protected int overlapMinY;
+	protected int overlapMaxX;
+	protected int overlapMaxY;
+
+	/* interval of the table of a * b, max exclusive */
+	protected int tableMinX;
+	protected int tableMinY;
+	protected int tableMaxX;
+	protected int tableMaxY;
+
+	public IntegralBlockPMCC(
+			final int width,
+			final int height,
+			final float[] a,
+			final float[] b )
+	{
+		this.width = width;
+		this.height = height;
+		this.a = a;
+		this.b = b;
+
+		w1 = width + 1;
+
+		meanA = mean( a, width * height );
+		meanB = mean( b, width * height );
+
+		sumsA = new double[ w1 * ( height + 1 ) ];
+		sumsAA = new double[ sumsA.length ];
+		sumsB = new double[ sumsA.length ];
+		sumsBB = new double[ sumsA.length ];
+		sumsAB = new double[ sumsA.length ];
+
+		sums( a, meanA, sumsA, sumsAA );
+		sums( b, meanB, sumsB, sumsBB );
+
+		setOffset( 0, 0, true );
+	}
+
+	protected IntegralBlockPMCC( final IntegralBlockPMCC template )
+	{
+		width = template.width;
+		height = template.height;
+		a = template.a;
+		b = template.b;
+
+		w1 = template.w1;
+
+		meanA = template.meanA;
+		meanB = template.meanB;
+
+		sumsA = template.sumsA;
+		sumsAA = template.sumsAA;
+		sumsB = template.sumsB;
+		sumsBB = template.sumsBB;
+
+		sumsAB = new double[ sumsA.length ];
+
+		setOffset( template.offsetX, template.offsetY, true );
+	}
+
+	/**
+	 * Create a copy that shares the offset independent summed area tables
+	 * and has its own table of a * b.
+	 *
+	 * @return
+	 */
+	public IntegralBlockPMCC copy()
+	{
+		return new IntegralBlockPMCC( this );
+	}
+
+	final static private double mean( final float[] values, final int n )
+	{
+		double sum = 0;
+		for ( int i = 0; i < n; ++i )
+			sum += values[ i ];
+		return n == 0 ? 0 : sum / n;
+	}
+
+	final private void sums(
+			final float[] values,
+			final double mean,
+			final double[] sums,
+			final double[] squareSums )
+	{
+		for ( int y = 0; y < height; ++y )
+		{
+			double rowSum = 0;
+			double rowSquareSum = 0;
+			final int row = y * width;
+			final int sumRow = ( y + 1 ) * w1;
+			final int previousSumRow = y * w1;
+			for ( int x = 0; x < width; ++x )
+			{
+				final double v = values[ row + x ] - mean;
+				rowSum += v;
+				rowSquareSum += v * v;
+				sums[ sumRow + x + 1 ] = sums[ previousSumRow + x + 1 ] + rowSum;
+				squareSums[ sumRow + x + 1 ] = squareSums[ previousSumRow + x + 1 ] + rowSquareSum;
+			}
+		}
+	}
+
+	public int getOffsetX()
+	{
+		return offsetX;
+	}
+
+	public int getOffsetY()
+	{
+		return offsetY;
+	}
+
+	/**
+	 * Set the offset and update the summed area table of a * b over the
+	 * overlap.
+	 *
+	 * @param offsetX
+	 * @param offsetY
+	 */
+	public void setOffset( final int offsetX, final int offsetY )
+	{
+		setOffset( offsetX, offsetY, 0, 0, width, height, false );
+	}
+
+	/**
+	 * Set the offset and update the summed area table of a * b only over
+	 * the intersection of the overlap and [xMin, xMax) * [yMin, yMax).
+	 * Subsequent calls to rSignedSquare are valid only for blocks that,
+	 * clipped at the overlap, are inside of this interval.
+	 *
+	 * @param offsetX
+	 * @param offsetY
+	 * @param xMin
+	 * @param yMin
+	 * @param xMax
+	 * @param yMax
+	 */
+	public void setOffset(
+			final int offsetX,
+			final int offsetY,
+			final int xMin,
+			final int yMin,
+			final int xMax,
+			final int yMax )
+	{
+		setOffset( offsetX, offsetY, xMin, yMin, xMax, yMax, false );
+	}
+
+	final private void setOffset( final int offsetX, final int offsetY, final boolean force )
+	{
+		setOffset( offsetX, offsetY, 0, 0, width, height, force );
+	}
+
+	final private void setOffset(
+			final int offsetX,
+			final int offsetY,
+			final int xMin,
+			final int yMin,
+			final int xMax,
+			final int yMax,
+			final boolean force )
+	{
+		if (
+				!force &&
+				this.offsetX == offsetX &&
+				this.offsetY == offsetY &&
+				tableMinX <= Math.max( xMin, overlapMinX ) &&
+				tableMinY <= Math.max( yMin, overlapMinY ) &&
+				tableMaxX >= Math.min( xMax, overlapMaxX ) &&
+				tableMaxY >= Math.min( yMax, overlapMaxY ) )
+			return;
+
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+
+		overlapMinX = Math.max( 0, offsetX );
+		overlapMinY = Math.max( 0, offsetY );
+		overlapMaxX = Math.min( width, width + offsetX );
+		overlapMaxY = Math.min( height, height + offsetY );
+
+		tableMinX = Math.max( xMin, overlapMinX );
+		tableMinY = Math.max( yMin, overlapMinY );
+		tableMaxX = Math.min( xMax, overlapMaxX );
+		tableMaxY = Math.min( yMax, overlapMaxY );
+
+		/* zero the top row and left column of the table */
+		if ( tableMinY <= tableMaxY )
+		{
+			final int row = tableMinY * w1;
+			for ( int x = tableMinX; x <= tableMaxX; ++x )
+				sumsAB[ row + x ] = 0;
+		}
+
+		for ( int y = tableMinY; y < tableMaxY; ++y )
+		{
+			final int rowA = y * width;
+			final int rowB = ( y - offsetY ) * width - offsetX;
+			final int sumRow = ( y + 1 ) * w1;
+			final int previousSumRow = y * w1;
+
+			sumsAB[ sumRow + tableMinX ] = 0;
+
+			double rowSum = 0;
+			for ( int x = tableMinX; x < tableMaxX; ++x )
+			{
+				rowSum += ( a[ rowA + x ] - meanA ) * ( b[ rowB + x ] - meanB );
+				sumsAB[ sumRow + x + 1 ] = sumsAB[ previousSumRow + x + 1 ] + rowSum;
+			}
+		}
+	}
+
+	/**
+	 * Sum of a summed area table over [x0, x1) * [y0, y1).
+	 */
+	final private double sum(
+			final double[] sums,
+			final int x0,
+			final int y0,
+			final int x1,
+			final int y1 )
+	{
+		final int row0 = y0 * w1;
+		final int row1 = y1 * w1;
+		return sums[ row1 + x1 ] - sums[ row1 + x0 ] - sums[ row0 + x1 ] + sums[ row0 + x0 ];
+	}
+
+	/**
+	 * Signed square of the PMCC of the block of given radius around (x, y),
+	 * clipped at the overlap.  Degenerate blocks without variance return 0.
+	 *
+	 * @param x
+	 * @param y
+	 * @param blockRadius
+	 * @return
+	 */
+	public float rSignedSquare( final int x, final int y, final int blockRadius )
+	{
+		final int x0 = Math.max( overlapMinX, x - blockRadius );
+		final int y0 = Math.max( overlapMinY, y - blockRadius );
+		final int x1 = Math.min( overlapMaxX, x + blockRadius + 1 );
+		final int y1 = Math.min( overlapMaxY, y + blockRadius + 1 );
+
+		if ( x1 <= x0 || y1 <= y0 )
+			return 0;
+
+		final double n = ( x1 - x0 ) * ( y1 - y0 );
+
+		final double sumA = sum( sumsA, x0, y0, x1, y1 );
+		final double sumAA = sum( sumsAA, x0, y0, x1, y1 );
+		final double sumAB = sum( sumsAB, x0, y0, x1, y1 );
+
+		final int bx0 = x0 - offsetX;
+		final int by0 = y0 - offsetY;
+		final int bx1 = x1 - offsetX;
+		final int by1 = y1 - offsetY;
+
+		final double sumB = sum( sumsB, bx0, by0, bx1, by1 );
+		final double sumBB = sum( sumsBB, bx0, by0, bx1, by1 );
+
+		final double cov = n * sumAB - sumA * sumB;
+		final double varA = n * sumAA - sumA * sumA;
+		final double varB = n * sumBB - sumB * sumB;
+
+		final double varAB = varA * varB;
+		if ( !( varAB > 0 ) )
+			return 0;
+
+		final double r2 = Math.min( 1.0, cov * cov / varAB );
+
+		return ( float )( cov < 0 ? -r2 : r2 );
+	}
+
+	/**
+	 * Signed squares of the PMCC for a list of block radii at (x, y).
+	 *
+	 * @param x
+	 * @param y
+	 * @param blockRadii
+	 * @param r output, one value per block radius
+	 */
+	public void rSignedSquare( final int x, final int y, final int[] blockRadii, final float[] r )
+	{
+		for ( int i = 0; i < blockRadii.length; ++i )
+			r[ i ] = rSignedSquare( x, y, blockRadii[ i ] );
+	}
+
+	/**
+	 * Signed squares of the PMCC of the blocks of given radius around all
+	 * pixels in [xMin, xMax) * [yMin, yMax).  The output raster has the size
+	 * of a, pixels outside of the interval are not touched.
+	 *
+	 * @param blockRadius
+	 * @param r
+	 * @param xMin
+	 * @param yMin
+	 * @param xMax
+	 * @param yMax
+	 */
+	public void rSignedSquare(
+			final int blockRadius,
+			final float[] r,
+			final int xMin,
+			final int yMin,
+			final int xMax,
+			final int yMax )
+	{
+		for ( int y = yMin; y < yMax; ++y )
+		{
+			final int row = y * width;
+			for ( int x = xMin; x < xMax; ++x )
+				r[ row + x ] = rSignedSquare( x, y, blockRadius );
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Approximate descriptor matching with a randomized KD-forest after
+ *
+ * C. Silpa-Anan, R. Hartley, "Optimised KD-trees for fast image descriptor
+ * matching", CVPR 2008
+ *
+ * M. Muja, D.G. Lowe, "Fast approximate nearest neighbors with automatic
+ * algorithm configuration", VISAPP 2009
+ *
+ * The descriptors of fs2 are copied into one flat float array and indexed by
+ * numTrees KD-trees that split at the mean of a dimension chosen randomly
+ * among those with the largest variance.  All trees are searched
+ * simultaneously best bin first, until maxChecks descriptors have been
+ * compared or no unexplored branch can contain a closer descriptor.  The
+ * rod test and the removal of ambiguous matches are those of
+ * {@link ExactFeatureMatcher}.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class KDForestFeatureMatcher implements FeatureMatcher {
+
+	final static private int NUM_TOP_DIMENSIONS = 5;
+	final static private int NUM_VARIANCE_SAMPLES = 100;
+
+	final private int numTrees;
+	final private int maxChecks;
+	final private int leafSize;
+	final private long seed;
+
+	public KDForestFeatureMatcher(
+			final int numTrees,
+			final int maxChecks,
+			final int leafSize,
+			final long seed) {
+
+		this.numTrees = numTrees;
+		this.maxChecks = maxChecks;
+		this.leafSize = leafSize;
+		this.seed = seed;
+	}
+
+	public KDForestFeatureMatcher() {
+
+		this(4, 256, 8, 0);
+	}
+
+	@Override
+	public long hash() {
+
+		return Features.hash(getClass().getName().hashCode(), numTrees, maxChecks, leafSize, seed);
+	}
+
+	/**
+	 * One KD-tree over the flat descriptor array.  Node n is a leaf if
+	 * splitDimension[n] &lt; 0, then indices[left[n]] to
+	 * indices[right[n] - 1] are its descriptors.
+	 */
+	final static private class Tree {
+
+		final int[] indices;
+		final int[] splitDimension;
+		final float[] splitValue;
+		final int[] left;
+		final int[] right;
+		int numNodes = 0;
+
+		Tree(final int n) {
+
+			indices = new int[n];
+			Arrays.setAll(indices, i -> i);
+			final int maxNodes = Math.max(1, 2 * n);
+			splitDimension = new int[maxNodes];
+			splitValue = new float[maxNodes];
+			left = new int[maxNodes];
+			right = new int[maxNodes];
+		}
+	}
+
+	/**
+	 * Binary min-heap of unexplored branches.
+	 */
+	final static private class BranchHeap {
+
+		private float[] keys = new float[64];
+		private int[] trees = new int[64];
+		private int[] nodes = new int[64];
+		private int size = 0;
+
+		void clear() {
+
+			size = 0;
+		}
+
+		boolean isEmpty() {
+
+			return size == 0;
+		}
+
+		float minKey() {
+
+			return keys[0];
+		}
+
+		int minTree() {
+
+			return trees[0];
+		}
+
+		int minNode() {
+
+			return nodes[0];
+		}
+
+		void push(final float key, final int tree, final int node) {
+
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				trees = Arrays.copyOf(trees, size * 2);
+				nodes = Arrays.copyOf(nodes, size * 2);
+			}
+			int i = size++;
+			while (i > 0) {
+				final int parent = (i - 1) >> 1;
+				if (keys[parent] <= key)
+					break;
+				keys[i] = keys[parent];
+				trees[i] = trees[parent];
+				nodes[i] = nodes[parent];
+				i = parent;
+			}
+			keys[i] = key;
+			trees[i] = tree;
+			nodes[i] = node;
+		}
+
+		void pop() {
+
+			--size;
+			final float key = keys[size];
+			final int tree = trees[size];
+			final int node = nodes[size];
+			int i = 0;
+			for (int child = 1; child < size; child = 2 * i + 1) {
+				if (child + 1 < size && keys[child + 1] < keys[child])
+					++child;
+				if (key <= keys[child])
+					break;
+				keys[i] = keys[child];
+				trees[i] = trees[child];
+				nodes[i] = nodes[child];
+				i = child;
+			}
+			keys[i] = key;
+			trees[i] = tree;
+			nodes[i] = node;
+		}
+	}
+
+	/**
+	 * State of one nearest neighbor query.
+	 */
+	final static private class Query {
+
+		final float[] descriptor;
+		final int[] visited;
+		final BranchHeap heap = new BranchHeap();
+		int stamp = 0;
+		int checks;
+		int best;
+		float bestDistance;
+		float secondBestDistance;
+
+		Query(final int dimensions, final int n) {
+
+			descriptor = new float[dimensions];
+			visited = new int[n];
+		}
+
+		void reset() {
+
+			++stamp;
+			checks = 0;
+			best = -1;
+			bestDistance = Float.MAX_VALUE;
+			secondBestDistance = Float.MAX_VALUE;
+			heap.clear();
+		}
+	}
+
+	private static float[] flatDescriptors(final List<Feature> features, final int dimensions) {
+
+		final float[] data = new float[features.size() * dimensions];
+		for (int i = 0; i < features.size(); ++i)
+			System.arraycopy(features.get(i).descriptor, 0, data, i * dimensions, dimensions);
+		return data;
+	}
+
+	private int build(
+			final Tree tree,
+			final float[] data,
+			final int dimensions,
+			final int begin,
+			final int end,
+			final Random rnd,
+			final double[] mean,
+			final double[] variance,
+			final int[] topDimensions) {
+
+		final int node = tree.numNodes++;
+		final int n = end - begin;
+
+		if (n > leafSize) {
+
+			/* mean and variance per dimension over a sample of the descriptors */
+			Arrays.fill(mean, 0);
+			Arrays.fill(variance, 0);
+			final int numSamples = Math.min(n, NUM_VARIANCE_SAMPLES);
+			for (int j = 0; j < numSamples; ++j) {
+				final int offset = tree.indices[begin + j * n / numSamples] * dimensions;
+				for (int d = 0; d < dimensions; ++d)
+					mean[d] += data[offset + d];
+			}
+			for (int d = 0; d < dimensions; ++d)
+				mean[d] /= numSamples;
+			for (int j = 0; j < numSamples; ++j) {
+				final int offset = tree.indices[begin + j * n / numSamples] * dimensions;
+				for (int d = 0; d < dimensions; ++d) {
+					final double diff = data[offset + d] - mean[d];
+					variance[d] += diff * diff;
+				}
+			}
+
+			/* random dimension among those with the largest variance */
+			final int numTop = Math.min(NUM_TOP_DIMENSIONS, dimensions);
+			Arrays.fill(topDimensions, -1);
+			for (int d = 0; d < dimensions; ++d) {
+				int i = numTop;
+				while (i > 0 && (topDimensions[i - 1] < 0 || variance[topDimensions[i - 1]] < variance[d]))
+					--i;
+				if (i < numTop) {
+					System.arraycopy(topDimensions, i, topDimensions, i + 1, numTop - i - 1);
+					topDimensions[i] = d;
+				}
+			}
+			final int splitDimension = topDimensions[rnd.nextInt(numTop)];
+			final float splitValue = (float)mean[splitDimension];
+
+			/* partition */
+			int i = begin;
+			int j = end - 1;
+			while (i <= j) {
+				if (data[tree.indices[i] * dimensions + splitDimension] < splitValue)
+					++i;
+				else {
+					final int t = tree.indices[i];
+					tree.indices[i] = tree.indices[j];
+					tree.indices[j--] = t;
+				}
+			}
+
+			/* all descriptors on one side means they are equal in this dimension, keep a leaf */
+			if (i > begin && i < end) {
+				tree.splitDimension[node] = splitDimension;
+				tree.splitValue[node] = splitValue;
+				tree.left[node] = build(tree, data, dimensions, begin, i, rnd, mean, variance, topDimensions);
+				tree.right[node] = build(tree, data, dimensions, i, end, rnd, mean, variance, topDimensions);
+				return node;
+			}
+		}
+
+		tree.splitDimension[node] = -1;
+		tree.left[node] = begin;
+		tree.right[node] = end;
+		return node;
+	}
+
+	/**
+	 * Descend from node to a leaf, push the other branch of each split, and
+	 * compare the descriptors in the leaf.
+	 */
+	private void descend(
+			final Tree[] trees,
+			final int t,
+			int node,
+			final float[] data,
+			final int dimensions,
+			final Query query) {
+
+		final Tree tree = trees[t];
+		while (tree.splitDimension[node] >= 0) {
+			final float diff = query.descriptor[tree.splitDimension[node]] - tree.splitValue[node];
+			final int near, far;
+			if (diff < 0) {
+				near = tree.left[node];
+				far = tree.right[node];
+			} else {
+				near = tree.right[node];
+				far = tree.left[node];
+			}
+			final float bound = diff * diff;
+			if (bound < query.secondBestDistance)
+				query.heap.push(bound, t, far);
+			node = near;
+		}
+
+		for (int k = tree.left[node]; k < tree.right[node]; ++k) {
+			final int index = tree.indices[k];
+			if (query.visited[index] == query.stamp)
+				continue;
+			query.visited[index] = query.stamp;
+			++query.checks;
+
+			final int offset = index * dimensions;
+			float distance = 0;
+			for (int d = 0; d < dimensions && distance < query.secondBestDistance; ++d) {
+				final float diff = query.descriptor[d] - data[offset + d];
+				distance += diff * diff;
+			}
+
+			if (distance < query.bestDistance) {
+				query.secondBestDistance = query.bestDistance;
+				query.bestDistance = distance;
+				query.best = index;
+			} else if (distance < query.secondBestDistance)
+				query.secondBestDistance = distance;
+		}
+	}
+
+	private void search(
+			final Tree[] trees,
+			final float[] data,
+			final int dimensions,
+			final Query query) {
+
+		query.reset();
+		for (int t = 0; t < trees.length; ++t)
+			descend(trees, t, 0, data, dimensions, query);
+
+		while (!query.heap.isEmpty() && query.checks < maxChecks) {
+			final float bound = query.heap.minKey();
+			if (bound >= query.secondBestDistance)
+				break;
+			final int t = query.heap.minTree();
+			final int node = query.heap.minNode();
+			query.heap.pop();
+			descend(trees, t, node, data, dimensions, query);
+		}
+	}
+
+	@Override
+	public ArrayList<PointMatch> match(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod) {
+
+		if (fs1.isEmpty() || fs2.size() < 2)
+			return new ArrayList<>();
+
+		final int dimensions = fs2.get(0).descriptor.length;
+		final int n = fs2.size();
+		final float[] data = flatDescriptors(fs2, dimensions);
+
+		final Random rnd = new Random(seed);
+		final double[] mean = new double[dimensions];
+		final double[] variance = new double[dimensions];
+		final int[] topDimensions = new int[NUM_TOP_DIMENSIONS];
+		final Tree[] trees = new Tree[numTrees];
+		for (int t = 0; t < numTrees; ++t) {
+			trees[t] = new Tree(n);
+			build(trees[t], data, dimensions, 0, n, rnd, mean, variance, topDimensions);
+		}
+
+		/* compare squared distances */
+		final float rod2 = (float)(rod * rod);
+
+		final Query query = new Query(dimensions, n);
+		final ArrayList<PointMatch> candidates = new ArrayList<>();
+		final int[] targets = new int[fs1.size()];
+		for (final Feature f1 : fs1) {
+			System.arraycopy(f1.descriptor, 0, query.descriptor, 0, dimensions);
+			search(trees, data, dimensions, query);
+			if (query.best >= 0 && query.secondBestDistance < Float.MAX_VALUE && query.bestDistance < rod2 * query.secondBestDistance) {
+				final Feature f2 = fs2.get(query.best);
+				targets[candidates.size()] = query.best;
+				candidates.add(
+						new PointMatch(
+								new Point(new double[]{f1.location[0], f1.location[1]}),
+								new Point(new double[]{f2.location[0], f2.location[1]})));
+			}
+		}
+
+		return FeatureMatcher.removeAmbiguousMatches(candidates, targets, n);
+	}
+}
@@ -31,24 +31,42 @@ import mpicbg.models.PointMatch;
  */
 public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter {
 
+	/**
+	 * maxTrust of {@link Model#filterRansac(List, java.util.Collection, int, double, double, int)}
+	 */
+	final static public double DEFAULT_MAX_TRUST = 3.0;
+
 	final private Supplier<M> modelSupplier;
 	final private int numIterations;
 	final private double maxEpsilon;
 	final private double minInlierRatio;
 	final private int minNumInliers;
+	final private double maxTrust;
 
 	public MultiConsensusFilter(
 			final Supplier<M> modelSupplier,
 			final int numIterations,
 			final double maxEpsilon,
 			final double minInlierRatio,
-			final int minNumInliers) {
+			final int minNumInliers,
+			final double maxTrust) {
 
 		this.modelSupplier = modelSupplier;
 		this.numIterations = numIterations;
 		this.maxEpsilon = maxEpsilon;
 		this.minInlierRatio = minInlierRatio;
 		this.minNumInliers = minNumInliers;
+		this.maxTrust = maxTrust;
+	}
+
+	public MultiConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int numIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers) {
+
+		this(modelSupplier, numIterations, maxEpsilon, minInlierRatio, minNumInliers, DEFAULT_MAX_TRUST);
 	}
 
 	public ArrayList<ArrayList<PointMatch>> filterMultiConsensusSets(final List<PointMatch> candidates) {
@@ -67,7 +85,8 @@ public class MultiConsensusFilter<M extends Model<?>> implements ConsensusFilter
 						numIterations,
 						maxEpsilon,
 						minInlierRatio,
-						minNumInliers );
+						minNumInliers,
+						maxTrust );
 			}
 			catch (final NotEnoughDataPointsException e) {
 				modelFound = false;
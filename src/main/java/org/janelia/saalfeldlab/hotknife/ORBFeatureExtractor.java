@@ -0,0 +1,358 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * Binary features after
+ *
+ * E. Rublee, V. Rabaud, K. Konolige, G. Bradski, "ORB: an efficient
+ * alternative to SIFT or SURF", ICCV 2011
+ *
+ * Keypoints are FAST-9 corners on the octaves of a 2x2 averaging pyramid,
+ * non-maximum suppressed and ranked by their Harris response.  The
+ * orientation is the direction of the intensity centroid in a disc of
+ * radius 15, the descriptor are 256 intensity comparisons of a fixed random
+ * pattern rotated by that orientation.  The 256 bits are packed into 16
+ * floats of 16 bits each, which are exact, such that the features pass
+ * through everything that handles SIFT features, e.g. the feature cache.
+ * They must be matched by {@link HammingFeatureMatcher}.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class ORBFeatureExtractor implements FeatureExtractor {
+
+	final static public int NUM_BITS = 256;
+	final static public int BITS_PER_FLOAT = 16;
+
+	final static private int PATCH_RADIUS = 15;
+	final static private int BORDER = PATCH_RADIUS + 1;
+	final static private int HARRIS_RADIUS = 3;
+	final static private double HARRIS_K = 0.04;
+	final static private double SIGMA = 1.6;
+
+	/* FAST circle of radius 3 and the min length of a brighter or darker arc */
+	final static private int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+	final static private int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+	final static private int ARC_LENGTH = 9;
+
+	/* x1, y1, x2, y2 per bit, the same for all extractors */
+	final static private int[] PATTERN = createPattern(0);
+
+	final private double maxScale;
+	final private double minScale;
+	final private int maxNumFeatures;
+	final private float threshold;
+
+	/**
+	 * @param maxScale max octave size relative to the image, octaves are
+	 *     powers of 2
+	 * @param minScale min octave size relative to the image
+	 * @param maxNumFeatures max number of features over all octaves,
+	 *     distributed by octave area, &lt;= 0 means unlimited
+	 * @param threshold FAST intensity threshold after contrast
+	 *     normalization to [0, 255]
+	 */
+	public ORBFeatureExtractor(
+			final double maxScale,
+			final double minScale,
+			final int maxNumFeatures,
+			final double threshold) {
+
+		this.maxScale = maxScale;
+		this.minScale = minScale;
+		this.maxNumFeatures = maxNumFeatures;
+		this.threshold = (float)threshold;
+	}
+
+	public ORBFeatureExtractor(
+			final double maxScale,
+			final double minScale) {
+
+		this(maxScale, minScale, 4096, 20);
+	}
+
+	/**
+	 * Gaussian distributed point pairs in a disc such that the rotated and
+	 * rounded points stay within PATCH_RADIUS.
+	 */
+	private static int[] createPattern(final long seed) {
+
+		final Random rnd = new Random(seed);
+		final double sigma = (2 * PATCH_RADIUS + 1) / 5.0;
+		final int r2 = (PATCH_RADIUS - 1) * (PATCH_RADIUS - 1);
+		final int[] pattern = new int[4 * NUM_BITS];
+		for (int i = 0; i < pattern.length; i += 4) {
+			do {
+				for (int j = 0; j < 4; j += 2) {
+					int x, y;
+					do {
+						x = (int)Math.round(rnd.nextGaussian() * sigma);
+						y = (int)Math.round(rnd.nextGaussian() * sigma);
+					} while (x * x + y * y > r2);
+					pattern[i + j] = x;
+					pattern[i + j + 1] = y;
+				}
+			} while (pattern[i] == pattern[i + 2] && pattern[i + 1] == pattern[i + 3]);
+		}
+		return pattern;
+	}
+
+	private static FloatProcessor downsample(final FloatProcessor ip) {
+
+		final int width = ip.getWidth();
+		final int w = width / 2;
+		final int h = ip.getHeight() / 2;
+		final float[] pixels = (float[])ip.getPixels();
+		final float[] downsampled = new float[w * h];
+		for (int y = 0; y < h; ++y) {
+			final int row = 2 * y * width;
+			for (int x = 0; x < w; ++x) {
+				final int i = row + 2 * x;
+				downsampled[y * w + x] = 0.25f * (pixels[i] + pixels[i + 1] + pixels[i + width] + pixels[i + width + 1]);
+			}
+		}
+		return new FloatProcessor(w, h, downsampled);
+	}
+
+	private static boolean hasArc(int mask) {
+
+		mask |= mask << 16;
+		int arcs = mask;
+		for (int j = 1; j < ARC_LENGTH; ++j)
+			arcs &= mask >>> j;
+		return arcs != 0;
+	}
+
+	private boolean isCorner(final float[] pixels, final int i, final int[] circle) {
+
+		final float bright = pixels[i] + threshold;
+		final float dark = pixels[i] - threshold;
+
+		/* an arc of 9 covers at least 2 of the 4 compass points */
+		int numBright = 0;
+		int numDark = 0;
+		for (int k = 0; k < 16; k += 4) {
+			final float v = pixels[i + circle[k]];
+			if (v > bright)
+				++numBright;
+			else if (v < dark)
+				++numDark;
+		}
+		if (numBright < 2 && numDark < 2)
+			return false;
+
+		int brightMask = 0;
+		int darkMask = 0;
+		for (int k = 0; k < 16; ++k) {
+			final float v = pixels[i + circle[k]];
+			if (v > bright)
+				brightMask |= 1 << k;
+			else if (v < dark)
+				darkMask |= 1 << k;
+		}
+		return hasArc(brightMask) || hasArc(darkMask);
+	}
+
+	private static float harris(final float[] pixels, final int i, final int width) {
+
+		double sxx = 0, syy = 0, sxy = 0;
+		for (int dy = -HARRIS_RADIUS; dy <= HARRIS_RADIUS; ++dy) {
+			for (int dx = -HARRIS_RADIUS; dx <= HARRIS_RADIUS; ++dx) {
+				final int j = i + dy * width + dx;
+				final double gx = 0.5 * (pixels[j + 1] - pixels[j - 1]);
+				final double gy = 0.5 * (pixels[j + width] - pixels[j - width]);
+				sxx += gx * gx;
+				syy += gy * gy;
+				sxy += gx * gy;
+			}
+		}
+		final double trace = sxx + syy;
+		return (float)(sxx * syy - sxy * sxy - HARRIS_K * trace * trace);
+	}
+
+	private static double orientation(final float[] pixels, final int i, final int width) {
+
+		double m10 = 0, m01 = 0;
+		for (int dy = -PATCH_RADIUS; dy <= PATCH_RADIUS; ++dy) {
+			final int dxMax = (int)Math.sqrt(PATCH_RADIUS * PATCH_RADIUS - dy * dy);
+			final int row = i + dy * width;
+			for (int dx = -dxMax; dx <= dxMax; ++dx) {
+				final double v = pixels[row + dx];
+				m10 += dx * v;
+				m01 += dy * v;
+			}
+		}
+		return Math.atan2(m01, m10);
+	}
+
+	private static float[] descriptor(
+			final float[] pixels,
+			final int i,
+			final int width,
+			final double orientation) {
+
+		final double cos = Math.cos(orientation);
+		final double sin = Math.sin(orientation);
+		final float[] descriptor = new float[NUM_BITS / BITS_PER_FLOAT];
+		for (int b = 0, k = 0; b < NUM_BITS; ++b, k += 4) {
+			final int x1 = (int)Math.round(cos * PATTERN[k] - sin * PATTERN[k + 1]);
+			final int y1 = (int)Math.round(sin * PATTERN[k] + cos * PATTERN[k + 1]);
+			final int x2 = (int)Math.round(cos * PATTERN[k + 2] - sin * PATTERN[k + 3]);
+			final int y2 = (int)Math.round(sin * PATTERN[k + 2] + cos * PATTERN[k + 3]);
+			if (pixels[i + y1 * width + x1] < pixels[i + y2 * width + x2])
+				descriptor[b / BITS_PER_FLOAT] += 1 << (b % BITS_PER_FLOAT);
+		}
+		return descriptor;
+	}
+
+	/**
+	 * Detect and describe up to maxNumOctaveFeatures features in one
+	 * octave.
+	 */
+	private void extractOctave(
+			final FloatProcessor octave,
+			final int octaveIndex,
+			final int maxNumOctaveFeatures,
+			final ArrayList<Feature> features) {
+
+		final FloatProcessor smoothed = (FloatProcessor)octave.duplicate();
+		new GaussianBlur().blurGaussian(smoothed, SIGMA);
+
+		final int width = smoothed.getWidth();
+		final int height = smoothed.getHeight();
+		final float[] pixels = (float[])smoothed.getPixels();
+
+		final int[] circle = new int[16];
+		for (int k = 0; k < 16; ++k)
+			circle[k] = CIRCLE_Y[k] * width + CIRCLE_X[k];
+
+		/* FAST corners with positive Harris response */
+		final float[] scores = new float[pixels.length];
+		int[] corners = new int[1024];
+		int numCorners = 0;
+		for (int y = BORDER; y < height - BORDER; ++y) {
+			for (int x = BORDER, i = y * width + x; x < width - BORDER; ++x, ++i) {
+				if (isCorner(pixels, i, circle)) {
+					final float score = harris(pixels, i, width);
+					if (score > 0) {
+						scores[i] = score;
+						if (numCorners == corners.length)
+							corners = Arrays.copyOf(corners, 2 * numCorners);
+						corners[numCorners++] = i;
+					}
+				}
+			}
+		}
+
+		/* 3x3 non-maximum suppression, ties go to the first corner */
+		final ArrayList<Integer> maxima = new ArrayList<>();
+		A: for (int c = 0; c < numCorners; ++c) {
+			final int i = corners[c];
+			final float score = scores[i];
+			for (int dy = -width; dy <= width; dy += width) {
+				for (int dx = -1; dx <= 1; ++dx) {
+					final int j = i + dy + dx;
+					if (scores[j] > score || (scores[j] == score && j < i))
+						continue A;
+				}
+			}
+			maxima.add(i);
+		}
+		maxima.sort((i1, i2) -> Float.compare(scores[i2], scores[i1]));
+
+		final int n = Math.min(maxima.size(), maxNumOctaveFeatures);
+		final int f = 1 << octaveIndex;
+		final double offset = 0.5 * (f - 1);
+		for (int k = 0; k < n; ++k) {
+			final int i = maxima.get(k);
+			final double orientation = orientation(pixels, i, width);
+			features.add(
+					new Feature(
+							SIGMA * f,
+							orientation,
+							new double[]{f * (i % width) + offset, f * (i / width) + offset},
+							descriptor(pixels, i, width, orientation)));
+		}
+	}
+
+	@Override
+	public ArrayList<Feature> extract(final FloatProcessor ip) {
+
+		Align.addNoise(ip);
+
+		final int firstOctave = Math.max(0, (int)Math.ceil(-Math.log(maxScale) / Math.log(2) - 1e-9));
+		final int lastOctave = Math.max(firstOctave, (int)Math.floor(-Math.log(minScale) / Math.log(2) + 1e-9));
+
+		/* octaves large enough for a patch */
+		final ArrayList<FloatProcessor> octaves = new ArrayList<>();
+		double area = 0;
+		FloatProcessor octave = ip;
+		for (int o = 0; o <= lastOctave; ++o) {
+			if (o > 0)
+				octave = downsample(octave);
+			if (octave.getWidth() <= 2 * BORDER || octave.getHeight() <= 2 * BORDER)
+				break;
+			if (o >= firstOctave) {
+				octaves.add(octave);
+				area += (double)octave.getWidth() * octave.getHeight();
+			}
+		}
+
+		final ArrayList<Feature> features = new ArrayList<>();
+		for (int o = 0; o < octaves.size(); ++o) {
+			final FloatProcessor octaveImage = octaves.get(o);
+			final int maxNumOctaveFeatures = maxNumFeatures <= 0 ?
+					Integer.MAX_VALUE :
+					(int)Math.ceil(maxNumFeatures * octaveImage.getWidth() * (double)octaveImage.getHeight() / area);
+			extractOctave(octaveImage, firstOctave + o, maxNumOctaveFeatures, features);
+		}
+
+		return features;
+	}
+
+	@Override
+	public long hash(final long width, final long height) {
+
+		/* "ORB" to not collide with SIFT parameters */
+		return Features.hash(
+				0x4f5242L,
+				Double.doubleToLongBits(maxScale),
+				Double.doubleToLongBits(minScale),
+				maxNumFeatures,
+				Float.floatToIntBits(threshold),
+				NUM_BITS);
+	}
+
+	@Override
+	public FeatureMatcher createMatcher(
+			final FeatureMatcher.Method method,
+			final double matchRadius) {
+
+		return new HammingFeatureMatcher();
+	}
+}
@@ -1,6 +1,12 @@
 package org.janelia.saalfeldlab.hotknife;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.janelia.saalfeldlab.hotknife.util.Util;
 
@@ -17,11 +23,8 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.array.ArrayRandomAccess;
 import net.imglib2.img.basictypeaccess.array.DoubleArray;
-import net.imglib2.img.basictypeaccess.array.IntArray;
 import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.interpolation.InterpolatorFactory;
@@ -31,7 +34,6 @@ import net.imglib2.realtransform.DeformationFieldTransform;
 import net.imglib2.realtransform.PositionFieldTransform;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformRandomAccessible;
-import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Pair;
@@ -44,111 +46,898 @@ import net.imglib2.view.Views;
  */
 public class PMCCScaleSpaceBlockFlow
 {
-	static public void opticFlow(
+	/**
+	 * Implementation of the block correlation search.
+	 */
+	static public enum Correlation
+	{
+		/**
+		 * {@link BlockPMCC}, summed area tables are re-calculated for each
+		 * offset and block radius.
+		 */
+		BLOCK_PMCC,
+
+		/**
+		 * {@link IntegralBlockPMCC}, summed area tables of the images are
+		 * calculated once and only the table of their product is updated per
+		 * offset.
+		 */
+		INTEGRAL,
+
+		/**
+		 * {@link FFTBlockNCC}, blocks around the points of a lattice of
+		 * spacing {@link Param#fftStride} are correlated with all offsets at
+		 * once in the frequency domain, max R and shift vectors are
+		 * interpolated between lattice points.  This is an approximation
+		 * that is cheaper than the dense search for large distances, with
+		 * spacing 1, it is the dense search.
+		 */
+		FFT
+	}
+
+	/**
+	 * Parameters for {@link PMCCScaleSpaceBlockFlow#scaleSpaceOpticFlow(FloatProcessor, FloatProcessor, Param)}.
+	 */
+	@SuppressWarnings( "serial" )
+	static public class Param implements Serializable
+	{
+		/**
+		 * Maximal search distance in pixels.
+		 */
+		public short radius = 3;
+
+		/**
+		 * Sigma of the Gaussian smoothing of the flow vectors and weights in
+		 * pixels.
+		 */
+		public double sigma = 30;
+
+		/**
+		 * Number of iterations.
+		 */
+		public int numIterations = 3;
+
+		/**
+		 * Compose each iteration's deformation field into a dense position
+		 * field instead of chaining interpolated deformation fields lazily.
+		 * Evaluating the resulting transform then costs the same for any
+		 * number of iterations.
+		 */
+		public boolean materialize = false;
+
+		/**
+		 * Number of threads to search offsets in parallel.  Each thread
+		 * has private max R and shift vector buffers for the whole block
+		 * (12 bytes per pixel and block radius) and its own correlation
+		 * tables, i.e. peak memory grows linearly with the number of
+		 * threads.  Use {@link #tileSize} to bound it.
+		 */
+		public int numThreads = 1;
+
+		/**
+		 * Block correlation implementation.
+		 */
+		public Correlation correlation = Correlation.BLOCK_PMCC;
+
+		/**
+		 * Number of 2x downsampled pyramid levels.  With levels &gt; 0, the
+		 * flow is estimated at the coarsest level with the correspondingly
+		 * scaled radius, upsampled, and refined with
+		 * {@link #pyramidRefineRadius} at each finer level.  0 searches the
+		 * full radius at full resolution.
+		 */
+		public int pyramidLevels = 0;
+
+		/**
+		 * Search radius at the finer pyramid levels.
+		 */
+		public short pyramidRefineRadius = 2;
+
+		/**
+		 * Lattice spacing of {@link Correlation#FFT}.
+		 */
+		public int fftStride = 8;
+
+		/**
+		 * Smooth flow vectors and weights with {@link RecursiveGaussian} in
+		 * one pass instead of three passes of {@link GaussianBlur}.  The cost
+		 * does not depend on sigma.
+		 */
+		public boolean recursiveGaussian = false;
+
+		/**
+		 * Return the initial transform with zero weights without searching if
+		 * less than this fraction of the pixels is foreground in both images.
+		 * Entirely background pairs are always skipped.
+		 */
+		public double minForegroundRatio = 0;
+
+		/**
+		 * Search and vote in tiles of this size with a halo of radius plus
+		 * the largest block radius such that scale space buffers are only
+		 * allocated per tile.  0 processes the whole image at once.
+		 */
+		public int tileSize = 0;
+
+		public Param() {}
+
+		public Param(
+				final short radius,
+				final double sigma,
+				final int numIterations )
+		{
+			this.radius = radius;
+			this.sigma = sigma;
+			this.numIterations = numIterations;
+		}
+
+		public Param copy()
+		{
+			final Param p = new Param( radius, sigma, numIterations );
+			p.materialize = materialize;
+			p.numThreads = numThreads;
+			p.correlation = correlation;
+			p.pyramidLevels = pyramidLevels;
+			p.pyramidRefineRadius = pyramidRefineRadius;
+			p.fftStride = fftStride;
+			p.recursiveGaussian = recursiveGaussian;
+			p.minForegroundRatio = minForegroundRatio;
+			p.tileSize = tileSize;
+			return p;
+		}
+	}
+
+	/**
+	 * Create the list of offsets within a disk of radius distance in scan
+	 * order (x fastest).
+	 *
+	 * @param distance
+	 * @return array of {xo, yo} pairs
+	 */
+	private static final int[][] createOffsets( final int distance )
+	{
+		final ArrayList< int[] > offsets = new ArrayList<>();
+		for ( int yo = -distance; yo <= distance; ++yo )
+			for ( int xo = -distance; xo <= distance; ++xo )
+				if ( yo * yo + xo * xo <= distance * distance )
+					offsets.add( new int[]{ xo, yo } );
+
+		return offsets.toArray( new int[ offsets.size() ][] );
+	}
+
+	/**
+	 * Create the scale space of block radii, starting at 1 and growing by
+	 * scaleFactor while smaller than a quarter of the width.
+	 *
+	 * @param width
+	 * @param scaleFactor
+	 * @return
+	 */
+	private static final double[] createRadii( final int width, final double scaleFactor )
+	{
+		final ArrayList< Double > radiusList = new ArrayList< Double >();
+		for ( double radius = 1; radius < width / 4; radius *= scaleFactor )
+			radiusList.add( radius );
+
+		final double[] radii = new double[ radiusList.size() ];
+		for ( int i = 0; i < radii.length; ++i )
+			radii[ i ] = radiusList.get( i );
+
+		return radii;
+	}
+
+	/**
+	 * Find the span [xMin, xMax) of foreground pixels in each row of the
+	 * evaluation region [distance, size - distance).  Rows outside of the
+	 * evaluation region and rows without foreground have an empty span.
+	 *
+	 * @param mask foreground != 0, null for all foreground
+	 * @param width
+	 * @param height
+	 * @param distance
+	 * @return {xMins, xMaxs}
+	 */
+	private static final int[][] foregroundSpans(
+			final byte[] mask,
+			final int width,
+			final int height,
+			final int distance )
+	{
+		final int[] xMins = new int[ height ];
+		final int[] xMaxs = new int[ height ];
+		for ( int y = distance; y < height - distance; ++y )
+		{
+			int xMin = distance;
+			int xMax = width - distance;
+			if ( mask != null )
+			{
+				final int row = y * width;
+				while ( xMin < xMax && mask[ row + xMin ] == 0 )
+					++xMin;
+				while ( xMax > xMin && mask[ row + xMax - 1 ] == 0 )
+					--xMax;
+			}
+			xMins[ y ] = xMin;
+			xMaxs[ y ] = xMax;
+		}
+		return new int[][]{ xMins, xMaxs };
+	}
+
+	/**
+	 * Search a range of offsets and update the max R and shift vector fields
+	 * if R at an offset is strictly larger than the current max.  Offsets are
+	 * visited in the order of the list, i.e. on ties, the first offset wins.
+	 *
+	 * R and shift vectors are packed with scale fastest, R of pixel i at
+	 * radius ri is at i * m + ri, its shift vector at 2 * (i * m + ri).
+	 * Background pixels are not updated.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param offsets
+	 * @param fromIndex
+	 * @param toIndex
+	 * @param radii
+	 * @param rMax
+	 * @param shifts
+	 * @param mask foreground != 0, null for all foreground
+	 * @param spans foreground spans per row
+	 */
+	private static final void searchOffsets(
 			final FloatProcessor ip1,
 			final FloatProcessor ip2,
 			final int distance,
-			final ImageStack r,
-			final ImageStack shiftVectors,
-			final double scaleFactor )
+			final int[][] offsets,
+			final int fromIndex,
+			final int toIndex,
+			final int[] radii,
+			final float[] rMax,
+			final short[] shifts,
+			final byte[] mask,
+			final int[][] spans )
 	{
+		final int[] xMins = spans[ 0 ];
+		final int[] xMaxs = spans[ 1 ];
+
 		final BlockPMCC bc = new BlockPMCC( ip1.getWidth(), ip1.getHeight(), ip1, ip2 );
 		//final BlockPMCC bc = new BlockPMCC( ip1, ip2 );
 
 		final FloatProcessor ipR = bc.getTargetProcessor();
 		final float[] ipRPixels = ( float[] )ipR.getPixels();
 
-		final ArrayList< Double > radiusList = new ArrayList< Double >();
+		final int m = radii.length;
 
-		for ( double radius = 1; radius < r.getWidth() / 4; radius *= scaleFactor )
+		for ( int oi = fromIndex; oi < toIndex; ++oi )
 		{
-			radiusList.add( radius );
+			final int xo = offsets[ oi ][ 0 ];
+			final int yo = offsets[ oi ][ 1 ];
 
-			final FloatProcessor ipRMax = new FloatProcessor( ipR.getWidth(), ipR.getHeight() );
-			final float[] ipRMaxPixels = ( float[] )ipRMax.getPixels();
+			bc.setOffset( xo, yo );
+
+			for ( int ri = 0; ri < m; ++ri )
 			{
-				for ( int i = 0; i < ipRMaxPixels.length; ++i )
-					ipRMaxPixels[ i ] = -1;
-			}
-			final ShortProcessor ipX = new ShortProcessor( ipR.getWidth(), ipR.getHeight() );
-			final ShortProcessor ipY = new ShortProcessor( ipR.getWidth(), ipR.getHeight() );
+				final int blockRadius = radii[ ri ];
 
-			r.addSlice( "" + radius, ipRMax );
-			shiftVectors.addSlice( "" + radius, ipX );
-			shiftVectors.addSlice( "" + radius, ipY );
-		}
+				bc.rSignedSquare( blockRadius );
 
-		/* assemble into typed arrays for quicker access */
-		final float[][] rArrays = new float[ r.getSize() ][];
-		final short[][] xShiftArrays = new short[ rArrays.length ][];
-		final short[][] yShiftArrays = new short[ rArrays.length ][];
-		final int[] radii = new int[ rArrays.length ];
-		for ( int i = 0; i < radii.length; ++i )
-		{
-			rArrays[ i ] = ( float[] )r.getImageArray()[ i ];
-			xShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ i << 1 ];
-			yShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ ( i << 1 ) | 1 ];
+				// update the translation fields
+				final int h = ipR.getHeight() - distance;
+				final int width = ipR.getWidth();
+
+				for ( int y = distance; y < h; ++y )
+				{
+					final int row = y * width;
+					final int rowR;
+					if ( yo < 0 )
+						rowR = row;
+					else
+						rowR = ( y - yo ) * width;
+					for ( int x = xMins[ y ]; x < xMaxs[ y ]; ++x )
+					{
+						if ( mask != null && mask[ row + x ] == 0 )
+							continue;
+
+						final int j = ( row + x ) * m + ri;
+						final int iR;
+						if ( xo < 0 )
+							iR = rowR + x;
+						else
+							iR = rowR + ( x - xo );
 
-			radii[ i ] = ( int )Math.round( radiusList.get( i ) );
+						final float ipRPixel = ipRPixels[ iR ];
+
+						if ( ipRPixel > rMax[ j ] )
+						{
+							rMax[ j ] = ipRPixel;
+							shifts[ j << 1 ] = ( short )xo;
+							shifts[ ( j << 1 ) | 1 ] = ( short )yo;
+						}
+					}
+				}
+			}
 		}
+	}
 
-		for ( int yo = -distance; yo <= distance; ++yo )
+	/**
+	 * Search a range of offsets like
+	 * {@link #searchOffsets(FloatProcessor, FloatProcessor, int, int[][], int, int, int[], float[], short[], byte[], int[][])}
+	 * but read R for all block radii from the summed area tables of an
+	 * {@link IntegralBlockPMCC}.  The table of a * b is updated only over
+	 * the bounding box of the foreground spans expanded by the largest
+	 * block radius.
+	 *
+	 * @param bc
+	 * @param width
+	 * @param height
+	 * @param distance
+	 * @param offsets
+	 * @param fromIndex
+	 * @param toIndex
+	 * @param radii
+	 * @param rMax
+	 * @param shifts
+	 * @param mask foreground != 0, null for all foreground
+	 * @param spans foreground spans per row
+	 */
+	private static final void searchOffsets(
+			final IntegralBlockPMCC bc,
+			final int width,
+			final int height,
+			final int distance,
+			final int[][] offsets,
+			final int fromIndex,
+			final int toIndex,
+			final int[] radii,
+			final float[] rMax,
+			final short[] shifts,
+			final byte[] mask,
+			final int[][] spans )
+	{
+		final int m = radii.length;
+		final float[] rs = new float[ m ];
+
+		final int[] xMins = spans[ 0 ];
+		final int[] xMaxs = spans[ 1 ];
+
+		/* bounding box of the foreground */
+		int bbMinX = width;
+		int bbMinY = height;
+		int bbMaxX = 0;
+		int bbMaxY = 0;
+		for ( int y = 0; y < height; ++y )
 		{
-			for ( int xo = -distance; xo <= distance; ++xo )
+			if ( xMins[ y ] < xMaxs[ y ] )
 			{
-				// continue if radius is larger than maxDistance
-				if ( yo * yo + xo * xo > distance * distance ) continue;
+				bbMinX = Math.min( bbMinX, xMins[ y ] );
+				bbMaxX = Math.max( bbMaxX, xMaxs[ y ] );
+				bbMinY = Math.min( bbMinY, y );
+				bbMaxY = y + 1;
+			}
+		}
+		if ( bbMaxY <= bbMinY )
+			return;
 
-				bc.setOffset( xo, yo );
+		int maxRadius = 0;
+		for ( final int radius : radii )
+			maxRadius = Math.max( maxRadius, radius );
 
-				for ( int ri = 0; ri < radii.length; ++ri )
-				{
-					final int blockRadius = radii[ ri ];
+		final int tableMinX = Math.max( 0, bbMinX - maxRadius );
+		final int tableMinY = Math.max( 0, bbMinY - maxRadius );
+		final int tableMaxX = Math.min( width, bbMaxX + maxRadius + 1 );
+		final int tableMaxY = Math.min( height, bbMaxY + maxRadius + 1 );
 
-					bc.rSignedSquare( blockRadius );
+		for ( int oi = fromIndex; oi < toIndex; ++oi )
+		{
+			final int xo = offsets[ oi ][ 0 ];
+			final int yo = offsets[ oi ][ 1 ];
 
-					final float[] ipRMaxPixels = rArrays[ ri ];
-					final short[] ipXPixels = xShiftArrays[ ri ];
-					final short[] ipYPixels = yShiftArrays[ ri ];
+			bc.setOffset( xo, yo, tableMinX, tableMinY, tableMaxX, tableMaxY );
+
+			for ( int y = bbMinY; y < bbMaxY; ++y )
+			{
+				for ( int x = xMins[ y ], i = y * width + x; x < xMaxs[ y ]; ++x, ++i )
+				{
+					if ( mask != null && mask[ i ] == 0 )
+						continue;
 
-					// update the translation fields
-					final int h = ipR.getHeight() - distance;
-					final int width = ipR.getWidth();
-					final int w = width - distance;
+					bc.rSignedSquare( x, y, radii, rs );
 
-					for ( int y = distance; y < h; ++y )
+					for ( int ri = 0, j = i * m; ri < m; ++ri, ++j )
 					{
-						final int row = y * width;
-						final int rowR;
-						if ( yo < 0 )
-							rowR = row;
-						else
-							rowR = ( y - yo ) * width;
-						for ( int x = distance; x < w; ++x )
+						if ( rs[ ri ] > rMax[ j ] )
 						{
-							final int i = row + x;
-							final int iR;
-							if ( xo < 0 )
-								iR = rowR + x;
-							else
-								iR = rowR + ( x - xo );
+							rMax[ j ] = rs[ ri ];
+							shifts[ j << 1 ] = ( short )xo;
+							shifts[ ( j << 1 ) | 1 ] = ( short )yo;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Approximate the dense search with {@link FFTBlockNCC}.  The correlation
+	 * surfaces of all block radii are evaluated on a lattice of spacing
+	 * fftStride over the evaluation region [distance, size - distance),
+	 * including its last row and column, with the block of each radius
+	 * around the lattice point clipped at the evaluation region.  The max R
+	 * and shift vector of each lattice point and radius are the best offset
+	 * in the disk (first in scan order on ties).  Every pixel then gets the
+	 * bilinear interpolation of max R and of the shift vector, rounded to
+	 * the nearest integer offset, of the four surrounding lattice points of
+	 * the same radius, i.e. the stacks are dense and all radii are sampled
+	 * at the same pixels like in the dense search.  With fftStride 1, the
+	 * result is that of the dense search up to the clipping at the border.
+	 *
+	 * Lattice rows are processed in parallel.  Lattice points without
+	 * foreground in their adjacent cells are skipped.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param radii
+	 * @param offsets
+	 * @param rMax
+	 * @param shifts
+	 * @param numThreads
+	 * @param fftStride lattice spacing
+	 * @param mask foreground != 0, null for all foreground
+	 */
+	private static final void searchLatticeFFT(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final int[] radii,
+			final int[][] offsets,
+			final float[] rMax,
+			final short[] shifts,
+			final int numThreads,
+			final int fftStride,
+			final byte[] mask )
+	{
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int m = radii.length;
+
+		final int xMin = distance;
+		final int yMin = distance;
+		final int xMax = width - distance;
+		final int yMax = height - distance;
+		if ( xMax <= xMin || yMax <= yMin )
+			return;
 
-							final float ipRPixel = ipRPixels[ iR ];
-							final float ipRMaxPixel = ipRMaxPixels[ i ];
+		final int stride = Math.max( 1, fftStride );
+		final int[] latticeX = createLattice( xMin, xMax, stride );
+		final int[] latticeY = createLattice( yMin, yMax, stride );
+		final int nx = latticeX.length;
+		final int ny = latticeY.length;
+
+		/* cell (cx, cy) is between lattice points cx, cx + 1 and cy, cy + 1, one cell if there is only one lattice point */
+		final int[] cellX = latticeCells( latticeX, xMin, xMax );
+		final int[] cellY = latticeCells( latticeY, yMin, yMax );
+		final int ncx = Math.max( 1, nx - 1 );
+		final int ncy = Math.max( 1, ny - 1 );
+
+		final boolean[] foregroundCells = new boolean[ ncx * ncy ];
+		for ( int y = yMin; y < yMax; ++y )
+			for ( int x = xMin, i = y * width + xMin; x < xMax; ++x, ++i )
+				if ( mask == null || mask[ i ] != 0 )
+					foregroundCells[ cellY[ y - yMin ] * ncx + cellX[ x - xMin ] ] = true;
+
+		/* lattice points adjacent to a foreground cell */
+		final boolean[] evaluate = new boolean[ nx * ny ];
+		for ( int cy = 0; cy < ncy; ++cy )
+		{
+			for ( int cx = 0; cx < ncx; ++cx )
+			{
+				if ( !foregroundCells[ cy * ncx + cx ] )
+					continue;
+				final int lx1 = Math.min( nx - 1, cx + 1 );
+				final int ly1 = Math.min( ny - 1, cy + 1 );
+				evaluate[ cy * nx + cx ] = true;
+				evaluate[ cy * nx + lx1 ] = true;
+				evaluate[ ly1 * nx + cx ] = true;
+				evaluate[ ly1 * nx + lx1 ] = true;
+			}
+		}
 
-							if ( ipRPixel > ipRMaxPixel )
+		final float[] latticeR = new float[ nx * ny * m ];
+		final short[] latticeShifts = new short[ latticeR.length * 2 ];
+
+		final FFTBlockNCC ncc = new FFTBlockNCC(
+				width,
+				height,
+				( float[] )ip1.getPixels(),
+				( float[] )ip2.getPixels() );
+
+		final int numTasks = Math.max( 1, Math.min( numThreads, ny ) );
+
+		final ArrayList< Callable< Void > > tasks = new ArrayList<>();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int task = t;
+			tasks.add(
+					() -> {
+						final FFTBlockNCC taskNCC = ncc.copy();
+						final int d1 = 2 * distance + 1;
+						final float[] rs = new float[ d1 * d1 ];
+
+						for ( int ly = task; ly < ny; ly += numTasks )
+						{
+							final int cy = latticeY[ ly ];
+							for ( int lx = 0; lx < nx; ++lx )
 							{
-								ipRMaxPixels[ i ] = ipRPixel;
-								ipXPixels[ i ] = ( short )xo;
-								ipYPixels[ i ] = ( short )yo;
+								if ( !evaluate[ ly * nx + lx ] )
+									continue;
+
+								final int cx = latticeX[ lx ];
+								for ( int ri = 0; ri < m; ++ri )
+								{
+									final int blockRadius = radii[ ri ];
+									final int x0 = Math.max( xMin, cx - blockRadius );
+									final int y0 = Math.max( yMin, cy - blockRadius );
+									final int x1 = Math.min( xMax, cx + blockRadius + 1 );
+									final int y1 = Math.min( yMax, cy + blockRadius + 1 );
+
+									taskNCC.rSignedSquare( x0, y0, x1, y1, distance, rs );
+
+									float best = -1;
+									int bestXo = 0;
+									int bestYo = 0;
+									for ( final int[] offset : offsets )
+									{
+										final float v = rs[ ( offset[ 1 ] + distance ) * d1 + offset[ 0 ] + distance ];
+										if ( v > best )
+										{
+											best = v;
+											bestXo = offset[ 0 ];
+											bestYo = offset[ 1 ];
+										}
+									}
+
+									final int j = ( ly * nx + lx ) * m + ri;
+									latticeR[ j ] = best;
+									latticeShifts[ j << 1 ] = ( short )bestXo;
+									latticeShifts[ ( j << 1 ) | 1 ] = ( short )bestYo;
+								}
 							}
 						}
+						return null;
+					} );
+		}
+
+		if ( numTasks == 1 )
+		{
+			try
+			{
+				tasks.get( 0 ).call();
+			}
+			catch ( final Exception e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+		else
+		{
+			final ExecutorService exec = Executors.newFixedThreadPool( numTasks );
+			try
+			{
+				for ( final Future< Void > future : exec.invokeAll( tasks ) )
+					future.get();
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( e );
+			}
+			finally
+			{
+				exec.shutdownNow();
+			}
+		}
+
+		/* bilinear interpolation between the lattice points */
+		for ( int y = yMin; y < yMax; ++y )
+		{
+			final int ly0 = cellY[ y - yMin ];
+			final int ly1 = Math.min( ny - 1, ly0 + 1 );
+			final double wy = ly1 == ly0 ? 0 : ( double )( y - latticeY[ ly0 ] ) / ( latticeY[ ly1 ] - latticeY[ ly0 ] );
+			for ( int x = xMin, i = y * width + xMin; x < xMax; ++x, ++i )
+			{
+				if ( mask != null && mask[ i ] == 0 )
+					continue;
+
+				final int lx0 = cellX[ x - xMin ];
+				final int lx1 = Math.min( nx - 1, lx0 + 1 );
+				final double wx = lx1 == lx0 ? 0 : ( double )( x - latticeX[ lx0 ] ) / ( latticeX[ lx1 ] - latticeX[ lx0 ] );
+
+				final double w00 = ( 1 - wx ) * ( 1 - wy );
+				final double w10 = wx * ( 1 - wy );
+				final double w01 = ( 1 - wx ) * wy;
+				final double w11 = wx * wy;
+
+				final int j00 = ( ly0 * nx + lx0 ) * m;
+				final int j10 = ( ly0 * nx + lx1 ) * m;
+				final int j01 = ( ly1 * nx + lx0 ) * m;
+				final int j11 = ( ly1 * nx + lx1 ) * m;
+
+				for ( int ri = 0, j = i * m; ri < m; ++ri, ++j )
+				{
+					rMax[ j ] = ( float )(
+							w00 * latticeR[ j00 + ri ] + w10 * latticeR[ j10 + ri ] +
+							w01 * latticeR[ j01 + ri ] + w11 * latticeR[ j11 + ri ] );
+					for ( int d = 0; d < 2; ++d )
+					{
+						shifts[ ( j << 1 ) | d ] = ( short )Math.round(
+								w00 * latticeShifts[ ( ( j00 + ri ) << 1 ) | d ] +
+								w10 * latticeShifts[ ( ( j10 + ri ) << 1 ) | d ] +
+								w01 * latticeShifts[ ( ( j01 + ri ) << 1 ) | d ] +
+								w11 * latticeShifts[ ( ( j11 + ri ) << 1 ) | d ] );
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Lattice coordinates in [min, max) with spacing stride, including
+	 * max - 1.
+	 *
+	 * @param min
+	 * @param max
+	 * @param stride
+	 * @return
+	 */
+	private static final int[] createLattice( final int min, final int max, final int stride )
+	{
+		final int n = ( max - 1 - min ) / stride + 1;
+		final boolean last = min + ( n - 1 ) * stride < max - 1;
+		final int[] lattice = new int[ last ? n + 1 : n ];
+		for ( int i = 0; i < n; ++i )
+			lattice[ i ] = min + i * stride;
+		if ( last )
+			lattice[ n ] = max - 1;
+		return lattice;
+	}
+
+	/**
+	 * Index of the lattice cell of each coordinate in [min, max), i.e. of the
+	 * largest lattice coordinate &lt;= the coordinate, the last coordinate
+	 * belongs to the last cell.
+	 *
+	 * @param lattice
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	private static final int[] latticeCells( final int[] lattice, final int min, final int max )
+	{
+		final int lastCell = Math.max( 0, lattice.length - 2 );
+		final int[] cells = new int[ max - min ];
+		for ( int c = min, k = 0; c < max; ++c )
+		{
+			while ( k < lastCell && lattice[ k + 1 ] <= c )
+				++k;
+			cells[ c - min ] = k;
+		}
+		return cells;
+	}
+
+	static public void opticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final ImageStack r,
+			final ImageStack shiftVectors,
+			final double scaleFactor )
+	{
+		final Param param = new Param();
+		opticFlow( ip1, ip2, distance, r, shiftVectors, scaleFactor, param.numThreads, param.correlation, param.fftStride );
+	}
+
+	/**
+	 * Calculate the max R and the shift vectors at max R for all offsets
+	 * within a disk of radius distance over a scale space of block radii.
+	 * One slice of R and two slices of shift vectors (x, y) are added per
+	 * block radius.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param r
+	 * @param shiftVectors
+	 * @param scaleFactor
+	 * @param numThreads
+	 * @param correlation
+	 * @param fftStride
+	 */
+	static public void opticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final ImageStack r,
+			final ImageStack shiftVectors,
+			final double scaleFactor,
+			final int numThreads,
+			final Correlation correlation,
+			final int fftStride )
+	{
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int n = width * height;
+
+		final double[] radii = createRadii( r.getWidth(), scaleFactor );
+		final int m = radii.length;
+
+		final float[] rMax = new float[ n * m ];
+		final short[] shifts = new short[ n * m * 2 ];
+
+		opticFlow( ip1, ip2, distance, radii, rMax, shifts, numThreads, correlation, fftStride, null );
+
+		/* unpack into one slice per block radius */
+		for ( int ri = 0; ri < m; ++ri )
+		{
+			final FloatProcessor ipRMax = new FloatProcessor( width, height );
+			final float[] ipRMaxPixels = ( float[] )ipRMax.getPixels();
+			final ShortProcessor ipX = new ShortProcessor( width, height );
+			final short[] ipXPixels = ( short[] )ipX.getPixels();
+			final ShortProcessor ipY = new ShortProcessor( width, height );
+			final short[] ipYPixels = ( short[] )ipY.getPixels();
+
+			for ( int i = 0, j = ri; i < n; ++i, j += m )
+			{
+				ipRMaxPixels[ i ] = rMax[ j ];
+				ipXPixels[ i ] = shifts[ j << 1 ];
+				ipYPixels[ i ] = shifts[ ( j << 1 ) | 1 ];
+			}
+
+			r.addSlice( "" + radii[ ri ], ipRMax );
+			shiftVectors.addSlice( "" + radii[ ri ], ipX );
+			shiftVectors.addSlice( "" + radii[ ri ], ipY );
+		}
+	}
+
+	/**
+	 * Calculate the max R and the shift vectors at max R for all offsets
+	 * within a disk of radius distance over a scale space of block radii
+	 * into packed arrays with scale fastest, i.e. R of pixel i at radius ri
+	 * is at i * m + ri and its shift vector at 2 * (i * m + ri).
+	 *
+	 * With numThreads &gt; 1, the offsets are split into contiguous ranges
+	 * that are searched in parallel, each with private max R and shift
+	 * vector buffers.  The buffers are merged in offset order which returns
+	 * exactly the same result as the serial search.  The private buffers
+	 * have the size of rMax and shifts each, so peak memory is about
+	 * numThreads + 1 times that of the serial search.
+	 *
+	 * {@link Correlation#INTEGRAL} calculates the summed area tables of both
+	 * images once and shares them between threads.
+	 *
+	 * {@link Correlation#FFT} is delegated to
+	 * {@link #searchLatticeFFT(FloatProcessor, FloatProcessor, int, int[], int[][], float[], short[], int, int, byte[])}.
+	 *
+	 * Pixels where mask is 0 are not evaluated and keep R = -1 and shift
+	 * vector (0, 0).  Rows without foreground are skipped.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param blockRadii
+	 * @param rMax width * height * m, initialized to -1 here
+	 * @param shifts width * height * m * 2
+	 * @param numThreads
+	 * @param correlation
+	 * @param fftStride
+	 * @param mask foreground != 0, null for all foreground
+	 */
+	private static void opticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int distance,
+			final double[] blockRadii,
+			final float[] rMax,
+			final short[] shifts,
+			final int numThreads,
+			final Correlation correlation,
+			final int fftStride,
+			final byte[] mask )
+	{
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int m = blockRadii.length;
+
+		final int[] radii = new int[ m ];
+		for ( int i = 0; i < m; ++i )
+			radii[ i ] = ( int )Math.round( blockRadii[ i ] );
+
+		Arrays.fill( rMax, -1 );
+
+		final int[][] offsets = createOffsets( distance );
+
+		if ( correlation == Correlation.FFT )
+		{
+			searchLatticeFFT( ip1, ip2, distance, radii, offsets, rMax, shifts, numThreads, fftStride, mask );
+			return;
+		}
+
+		final int[][] spans = foregroundSpans( mask, width, height, distance );
+
+		final IntegralBlockPMCC integral;
+		if ( correlation == Correlation.INTEGRAL )
+			integral = new IntegralBlockPMCC(
+					width,
+					height,
+					( float[] )ip1.getPixels(),
+					( float[] )ip2.getPixels() );
+		else
+			integral = null;
+
+		final int numTasks = Math.max( 1, Math.min( numThreads, offsets.length ) );
+		if ( numTasks == 1 )
+		{
+			if ( integral == null )
+				searchOffsets( ip1, ip2, distance, offsets, 0, offsets.length, radii, rMax, shifts, mask, spans );
+			else
+				searchOffsets( integral, width, height, distance, offsets, 0, offsets.length, radii, rMax, shifts, mask, spans );
+			return;
+		}
+
+		final ExecutorService exec = Executors.newFixedThreadPool( numTasks );
+		final ArrayList< Future< Object[] > > futures = new ArrayList<>();
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int fromIndex = ( int )( ( long )offsets.length * t / numTasks );
+			final int toIndex = ( int )( ( long )offsets.length * ( t + 1 ) / numTasks );
+			futures.add(
+					exec.submit(
+							() -> {
+								final float[] taskRMax = new float[ rMax.length ];
+								final short[] taskShifts = new short[ shifts.length ];
+								Arrays.fill( taskRMax, -1 );
+
+								if ( integral == null )
+									searchOffsets( ip1, ip2, distance, offsets, fromIndex, toIndex, radii, taskRMax, taskShifts, mask, spans );
+								else
+									searchOffsets( integral.copy(), width, height, distance, offsets, fromIndex, toIndex, radii, taskRMax, taskShifts, mask, spans );
+
+								return new Object[]{ taskRMax, taskShifts };
+							} ) );
+		}
+
+		/* merge in offset order, strictly larger wins like in the serial search */
+		try
+		{
+			for ( final Future< Object[] > future : futures )
+			{
+				final Object[] result = future.get();
+				final float[] taskRMax = ( float[] )result[ 0 ];
+				final short[] taskShifts = ( short[] )result[ 1 ];
+
+				for ( int y = distance; y < height - distance; ++y )
+				{
+					for ( int j = ( y * width + spans[ 0 ][ y ] ) * m, k = ( y * width + spans[ 1 ][ y ] ) * m; j < k; ++j )
+					{
+						if ( taskRMax[ j ] > rMax[ j ] )
+						{
+							rMax[ j ] = taskRMax[ j ];
+							shifts[ j << 1 ] = taskShifts[ j << 1 ];
+							shifts[ ( j << 1 ) | 1 ] = taskShifts[ ( j << 1 ) | 1 ];
+						}
+					}
+				}
+			}
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			exec.shutdownNow();
+		}
+	}
+
 	private static final RandomAccessibleInterval< FloatType > createTransformedInterval(
 			final FloatProcessor source,
 			final Interval targetInterval,
@@ -167,74 +956,89 @@ public class PMCCScaleSpaceBlockFlow
 						targetInterval );
 	}
 
+	/**
+	 * Vote for the most frequent shift vector over the scale space of block
+	 * radii at each pixel.  Shift vectors are packed with scale fastest (see
+	 * {@link #opticFlow(FloatProcessor, FloatProcessor, int, double[], float[], short[], int, Correlation, int, byte[])}).
+	 * The m votes of a pixel are encoded as (x + d) * (2d + 1) + (y + d),
+	 * sorted, and the first longest run wins, i.e. on ties, the smallest x
+	 * and then the smallest y.  The votes are insertion sorted, which costs
+	 * O(m<sup>2</sup>) per pixel in the worst case but is cheaper than a
+	 * general sort for the few block radii of a scale space (m is about
+	 * log<sub>1.5</sub> of the block size, i.e. &lt; 20), and independent of
+	 * distance.  Background pixels are not voted and get shift vector (0, 0)
+	 * and inlier ratio 0.
+	 *
+	 * @param shifts
+	 * @param m number of block radii
+	 * @param shiftX
+	 * @param shiftY
+	 * @param inlierRatio
+	 * @param distance
+	 * @param mask foreground != 0, null for all foreground
+	 * @throws NotEnoughDataPointsException
+	 */
 	private final static void filterOpticFlowScaleSpace(
-			final ImageStack shiftVectors,
+			final short[] shifts,
+			final int m,
 			final FloatProcessor shiftX,
 			final FloatProcessor shiftY,
 			final FloatProcessor inlierRatio,
-			final short distance ) throws NotEnoughDataPointsException
+			final short distance,
+			final byte[] mask ) throws NotEnoughDataPointsException
 	{
-		/* assemble into typed arrays for quicker access */
-		/* TODO This is still inefficient because scale dimension is fastest but should be slowest
-		 * this is true here and in opticFlow, i.e. scale should be interleaved (size of array
-		 * becomes concern, use ImgLib2).
-		 */
-		final int scaleLevels = shiftVectors.size() / 2;
-		final short[][] xShiftArrays = new short[ scaleLevels ][];
-		final short[][] yShiftArrays = new short[ scaleLevels ][];
-		for ( int i = 0; i < xShiftArrays.length; ++i )
-		{
-			xShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ i << 1 ];
-			yShiftArrays[ i ] = ( short[] )shiftVectors.getImageArray()[ ( i << 1 ) | 1 ];
-		}
-
-		final int n = shiftVectors.getWidth() * shiftVectors.getHeight();
-		final int m = xShiftArrays.length;
+		final int n = shiftX.getWidth() * shiftX.getHeight();
+		final int w = ( distance * 2 + 1 );
 
+		final float[] shiftXPixels = ( float[] )shiftX.getPixels();
+		final float[] shiftYPixels = ( float[] )shiftY.getPixels();
+		final float[] inlierRatioPixels = ( float[] )inlierRatio.getPixels();
 
-		final int w = ( distance * 2 + 1 );
-		final int[] countsArray = new int[ w * w ];
-		final ArrayImg< IntType, IntArray > countsImg = ArrayImgs.ints( countsArray, distance * 2 + 1, distance * 2 + 1 );
-		final ArrayRandomAccess< IntType > countsAccess = countsImg.randomAccess( countsImg );
+		final int[] votes = new int[ m ];
 
 		for ( int i = 0; i < n; ++i )
 		{
-			Arrays.fill( countsArray, 0 );
-			for ( int j = 0; j < m; ++j )
+			if ( mask != null && mask[ i ] == 0 )
 			{
-				final int x = xShiftArrays[ j ][ i ] + distance;
-				final int y = yShiftArrays[ j ][ i ] + distance;
+				shiftXPixels[ i ] = 0;
+				shiftYPixels[ i ] = 0;
+				inlierRatioPixels[ i ] = 0;
+				continue;
+			}
 
-				countsAccess.setPosition( x, 0 );
-				countsAccess.setPosition( y, 1 );
-				countsAccess.get().inc();
+			/* encode and insertion sort, O(m^2) but m is small */
+			for ( int j = 0, k = i * m * 2; j < m; ++j, k += 2 )
+			{
+				final int vote = ( shifts[ k ] + distance ) * w + shifts[ k + 1 ] + distance;
+				int l = j;
+				for ( ; l > 0 && votes[ l - 1 ] > vote; --l )
+					votes[ l ] = votes[ l - 1 ];
+				votes[ l ] = vote;
 			}
 
-			float bestX = 0;
-			float bestY = 0;
+			int bestVote = distance * w + distance;
 			int bestCount = 0;
 
-			for ( int x = 0; x < w; ++x )
+			for ( int j = 0; j < m; )
 			{
-				countsAccess.setPosition( x, 0 );
-				for ( int y = 0; y < w; ++y )
-				{
-					countsAccess.setPosition( y, 1 );
-					final int count = countsAccess.get().get();
+				final int vote = votes[ j ];
+				int l = j + 1;
+				while ( l < m && votes[ l ] == vote )
+					++l;
 
-					if ( count > bestCount )
-					{
-						bestCount = count;
-						bestX = x - distance;
-						bestY = y - distance;
-					}
+				final int count = l - j;
+				if ( count > bestCount )
+				{
+					bestCount = count;
+					bestVote = vote;
 				}
+				j = l;
 			}
 
-			shiftX.setf( i, bestX );
-			shiftY.setf( i, bestY );
+			shiftXPixels[ i ] = bestVote / w - distance;
+			shiftYPixels[ i ] = bestVote % w - distance;
 
-			inlierRatio.setf( i, ( float )bestCount / scaleLevels );
+			inlierRatioPixels[ i ] = ( float )bestCount / m;
 		}
 	}
 
@@ -268,6 +1072,114 @@ public class PMCCScaleSpaceBlockFlow
 	}
 
 
+	/**
+	 * Compose a deformation field with a dense position field, i.e.
+	 * p'(x) = p(x + d(x)).  The position field is n-linearly interpolated
+	 * and its displacement is border extended, which is what the lazy
+	 * composition through {@link RealTransformRandomAccessible} does
+	 * starting from the identity.  The deformation field is only evaluated at
+	 * pixel centers where interpolation is the identity.
+	 *
+	 * @param xPositions x-lookup, width * height
+	 * @param yPositions y-lookup, width * height
+	 * @param shiftX x-deformation, width * height
+	 * @param shiftY y-deformation, width * height
+	 * @param width &gt;1
+	 * @param height &gt;1
+	 * @return the composed x- and y-lookups
+	 */
+	private static final double[][] composeDeformationField(
+			final double[] xPositions,
+			final double[] yPositions,
+			final float[] shiftX,
+			final float[] shiftY,
+			final int width,
+			final int height )
+	{
+		final double[] composedXPositions = new double[ xPositions.length ];
+		final double[] composedYPositions = new double[ yPositions.length ];
+
+		final int w1 = width - 1;
+		final int h1 = height - 1;
+
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final double tx = x + shiftX[ i ];
+				final double ty = y + shiftY[ i ];
+				final double sx = Math.max( 0, Math.min( w1, tx ) );
+				final double sy = Math.max( 0, Math.min( h1, ty ) );
+
+				final int x0 = Math.min( w1 - 1, ( int )sx );
+				final int y0 = Math.min( h1 - 1, ( int )sy );
+				final double dx = sx - x0;
+				final double dy = sy - y0;
+
+				final int i00 = y0 * width + x0;
+				final int i10 = i00 + 1;
+				final int i01 = i00 + width;
+				final int i11 = i01 + 1;
+
+				final double wx0 = 1.0 - dx;
+				final double wy0 = 1.0 - dy;
+
+				/* outside of the raster, the displacement is border extended */
+				composedXPositions[ i ] =
+						( xPositions[ i00 ] * wx0 + xPositions[ i10 ] * dx ) * wy0 +
+						( xPositions[ i01 ] * wx0 + xPositions[ i11 ] * dx ) * dy +
+						tx - sx;
+				composedYPositions[ i ] =
+						( yPositions[ i00 ] * wx0 + yPositions[ i10 ] * dx ) * wy0 +
+						( yPositions[ i01 ] * wx0 + yPositions[ i11 ] * dx ) * dy +
+						ty - sy;
+			}
+		}
+
+		return new double[][]{ composedXPositions, composedYPositions };
+	}
+
+	/**
+	 * Create the dense lookups of the identity transform.
+	 *
+	 * @param width
+	 * @param height
+	 * @return x- and y-lookups
+	 */
+	private static final double[][] createIdentityPositionField( final int width, final int height )
+	{
+		final double[] xPositions = new double[ width * height ];
+		final double[] yPositions = new double[ width * height ];
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				xPositions[ i ] = x;
+				yPositions[ i ] = y;
+			}
+		}
+		return new double[][]{ xPositions, yPositions };
+	}
+
+	/**
+	 * Wrap a dense lookup as a border extended, n-linearly interpolated
+	 * {@link RealRandomAccessible}.
+	 *
+	 * @param positions
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	private static final RealRandomAccessible< DoubleType > interpolatePositions(
+			final double[] positions,
+			final int width,
+			final int height )
+	{
+		return Views.interpolate(
+				Views.extendBorder( ArrayImgs.doubles( positions, width, height ) ),
+				new NLinearInterpolatorFactory<>() );
+	}
+
 	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
 			final FloatProcessor ip1,
 			final FloatProcessor ip2,
@@ -275,14 +1187,422 @@ public class PMCCScaleSpaceBlockFlow
 			final double sigma,
 			final int numIterations)
 	{
+		return scaleSpaceOpticFlow( ip1, ip2, new Param( radius, sigma, numIterations ) );
+	}
+
+	/**
+	 * Search offsets and vote over the scale space of block radii for all
+	 * pixels of an image into shiftX, shiftY, and inlierRatio.
+	 *
+	 * With {@link Param#tileSize} &gt; 0, the image is processed in tiles.
+	 * Each tile is cropped with a halo of distance plus the largest block
+	 * radius, such that all blocks at all offsets of the tile's pixels are
+	 * inside of the crop and clipped at the same image borders as in the
+	 * whole image.  Only the tile's own pixels are copied into the result
+	 * which is therefore the same as without tiling for the dense
+	 * correlations, but the packed scale space buffers are only as large as
+	 * one cropped tile.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param distance
+	 * @param blockRadii
+	 * @param param
+	 * @param mask foreground != 0, null for all foreground
+	 * @param shiftX
+	 * @param shiftY
+	 * @param inlierRatio
+	 * @throws NotEnoughDataPointsException
+	 */
+	private static final void searchAndVote(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final short distance,
+			final double[] blockRadii,
+			final Param param,
+			final byte[] mask,
+			final FloatProcessor shiftX,
+			final FloatProcessor shiftY,
+			final FloatProcessor inlierRatio ) throws NotEnoughDataPointsException
+	{
+		final int width = ip1.getWidth();
+		final int height = ip1.getHeight();
+		final int m = blockRadii.length;
+		final int tileSize = param.tileSize;
+
+		if ( tileSize <= 0 || ( tileSize >= width && tileSize >= height ) )
+		{
+			final int n = width * height;
+			final float[] rMax = new float[ n * m ];
+			final short[] shifts = new short[ n * m * 2 ];
+
+			opticFlow(
+					ip1,
+					ip2,
+					distance,
+					blockRadii,
+					rMax,
+					shifts,
+					param.numThreads,
+					param.correlation,
+					param.fftStride,
+					mask );
+
+			filterOpticFlowScaleSpace(
+					shifts,
+					m,
+					shiftX,
+					shiftY,
+					inlierRatio,
+					distance,
+					mask );
+
+			return;
+		}
+
+		int maxRadius = 0;
+		for ( final double blockRadius : blockRadii )
+			maxRadius = Math.max( maxRadius, ( int )Math.round( blockRadius ) );
+		final int halo = distance + maxRadius;
+
+		final float[] ip1Pixels = ( float[] )ip1.getPixels();
+		final float[] ip2Pixels = ( float[] )ip2.getPixels();
+		final float[] shiftXPixels = ( float[] )shiftX.getPixels();
+		final float[] shiftYPixels = ( float[] )shiftY.getPixels();
+		final float[] inlierRatioPixels = ( float[] )inlierRatio.getPixels();
+
+		for ( int ty0 = 0; ty0 < height; ty0 += tileSize )
+		{
+			final int ty1 = Math.min( height, ty0 + tileSize );
+			final int y0 = Math.max( 0, ty0 - halo );
+			final int y1 = Math.min( height, ty1 + halo );
+			final int cropHeight = y1 - y0;
+
+			for ( int tx0 = 0; tx0 < width; tx0 += tileSize )
+			{
+				final int tx1 = Math.min( width, tx0 + tileSize );
+				final int x0 = Math.max( 0, tx0 - halo );
+				final int x1 = Math.min( width, tx1 + halo );
+				final int cropWidth = x1 - x0;
+				final int n = cropWidth * cropHeight;
+
+				final float[] crop1 = new float[ n ];
+				final float[] crop2 = new float[ n ];
+				final byte[] cropMask = mask == null ? null : new byte[ n ];
+				for ( int y = y0, i = 0; y < y1; ++y, i += cropWidth )
+				{
+					final int row = y * width + x0;
+					System.arraycopy( ip1Pixels, row, crop1, i, cropWidth );
+					System.arraycopy( ip2Pixels, row, crop2, i, cropWidth );
+					if ( mask != null )
+						System.arraycopy( mask, row, cropMask, i, cropWidth );
+				}
+
+				final float[] rMax = new float[ n * m ];
+				final short[] shifts = new short[ n * m * 2 ];
+
+				opticFlow(
+						new FloatProcessor( cropWidth, cropHeight, crop1 ),
+						new FloatProcessor( cropWidth, cropHeight, crop2 ),
+						distance,
+						blockRadii,
+						rMax,
+						shifts,
+						param.numThreads,
+						param.correlation,
+						param.fftStride,
+						cropMask );
+
+				final FloatProcessor cropShiftX = new FloatProcessor( cropWidth, cropHeight );
+				final FloatProcessor cropShiftY = new FloatProcessor( cropWidth, cropHeight );
+				final FloatProcessor cropInlierRatio = new FloatProcessor( cropWidth, cropHeight );
+
+				filterOpticFlowScaleSpace(
+						shifts,
+						m,
+						cropShiftX,
+						cropShiftY,
+						cropInlierRatio,
+						distance,
+						cropMask );
+
+				/* stitch the tile without its halo */
+				final float[] cropShiftXPixels = ( float[] )cropShiftX.getPixels();
+				final float[] cropShiftYPixels = ( float[] )cropShiftY.getPixels();
+				final float[] cropInlierRatioPixels = ( float[] )cropInlierRatio.getPixels();
+				for ( int y = ty0; y < ty1; ++y )
+				{
+					final int i = y * width + tx0;
+					final int j = ( y - y0 ) * cropWidth + tx0 - x0;
+					System.arraycopy( cropShiftXPixels, j, shiftXPixels, i, tx1 - tx0 );
+					System.arraycopy( cropShiftYPixels, j, shiftYPixels, i, tx1 - tx0 );
+					System.arraycopy( cropInlierRatioPixels, j, inlierRatioPixels, i, tx1 - tx0 );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Downsample by 2 averaging 2x2 blocks.  0 is background and does not
+	 * contribute to the average, blocks that are entirely background remain
+	 * 0.  Odd sizes are rounded up, the last column/row then averages the
+	 * available pixels.
+	 *
+	 * @param ip
+	 * @return
+	 */
+	private static final FloatProcessor downsample( final FloatProcessor ip )
+	{
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final int downsampledWidth = ( width + 1 ) / 2;
+		final int downsampledHeight = ( height + 1 ) / 2;
+		final float[] pixels = ( float[] )ip.getPixels();
+		final FloatProcessor downsampled = new FloatProcessor( downsampledWidth, downsampledHeight );
+		final float[] downsampledPixels = ( float[] )downsampled.getPixels();
+
+		for ( int y = 0, i = 0; y < downsampledHeight; ++y )
+		{
+			final int y0 = 2 * y;
+			final int y1 = Math.min( height, y0 + 2 );
+			for ( int x = 0; x < downsampledWidth; ++x, ++i )
+			{
+				final int x0 = 2 * x;
+				final int x1 = Math.min( width, x0 + 2 );
+				double sum = 0;
+				int n = 0;
+				for ( int yy = y0; yy < y1; ++yy )
+				{
+					for ( int xx = x0; xx < x1; ++xx )
+					{
+						final float v = pixels[ yy * width + xx ];
+						if ( v != 0 )
+						{
+							sum += v;
+							++n;
+						}
+					}
+				}
+				downsampledPixels[ i ] = n == 0 ? 0 : ( float )( sum / n );
+			}
+		}
+		return downsampled;
+	}
+
+	/**
+	 * Sample a transform at all pixel centers.
+	 *
+	 * @param transform
+	 * @param width
+	 * @param height
+	 * @return x- and y-lookups
+	 */
+	private static final double[][] samplePositions(
+			final RealTransform transform,
+			final int width,
+			final int height )
+	{
+		final double[] xPositions = new double[ width * height ];
+		final double[] yPositions = new double[ width * height ];
+		final double[] source = new double[ 2 ];
+		final double[] target = new double[ 2 ];
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			source[ 1 ] = y;
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				source[ 0 ] = x;
+				transform.apply( source, target );
+				xPositions[ i ] = target[ 0 ];
+				yPositions[ i ] = target[ 1 ];
+			}
+		}
+		return new double[][]{ xPositions, yPositions };
+	}
+
+	/**
+	 * Upsample the lookups of a 2x downsampled pyramid level.  Pixel c of
+	 * the coarse level is centered at 2c + 0.5 of the fine level, i.e.
+	 * p(q) = 2 p'((q - 0.5) / 2) + 0.5.  The coarse lookups are n-linearly
+	 * interpolated with border extended displacement.
+	 *
+	 * @param xPositions coarse x-lookup
+	 * @param yPositions coarse y-lookup
+	 * @param width coarse width &gt;1
+	 * @param height coarse height &gt;1
+	 * @param upsampledWidth
+	 * @param upsampledHeight
+	 * @return fine x- and y-lookups
+	 */
+	private static final double[][] upsamplePositions(
+			final double[] xPositions,
+			final double[] yPositions,
+			final int width,
+			final int height,
+			final int upsampledWidth,
+			final int upsampledHeight )
+	{
+		final double[] upsampledXPositions = new double[ upsampledWidth * upsampledHeight ];
+		final double[] upsampledYPositions = new double[ upsampledWidth * upsampledHeight ];
+
+		final int w1 = width - 1;
+		final int h1 = height - 1;
+
+		for ( int y = 0, i = 0; y < upsampledHeight; ++y )
+		{
+			final double ty = ( y - 0.5 ) / 2;
+			final double sy = Math.max( 0, Math.min( h1, ty ) );
+			final int y0 = Math.min( h1 - 1, ( int )sy );
+			final double dy = sy - y0;
+			final double wy0 = 1.0 - dy;
+
+			for ( int x = 0; x < upsampledWidth; ++x, ++i )
+			{
+				final double tx = ( x - 0.5 ) / 2;
+				final double sx = Math.max( 0, Math.min( w1, tx ) );
+				final int x0 = Math.min( w1 - 1, ( int )sx );
+				final double dx = sx - x0;
+				final double wx0 = 1.0 - dx;
+
+				final int i00 = y0 * width + x0;
+				final int i10 = i00 + 1;
+				final int i01 = i00 + width;
+				final int i11 = i01 + 1;
+
+				final double px =
+						( xPositions[ i00 ] * wx0 + xPositions[ i10 ] * dx ) * wy0 +
+						( xPositions[ i01 ] * wx0 + xPositions[ i11 ] * dx ) * dy +
+						tx - sx;
+				final double py =
+						( yPositions[ i00 ] * wx0 + yPositions[ i10 ] * dx ) * wy0 +
+						( yPositions[ i01 ] * wx0 + yPositions[ i11 ] * dx ) * dy +
+						ty - sy;
+
+				upsampledXPositions[ i ] = 2 * px + 0.5;
+				upsampledYPositions[ i ] = 2 * py + 0.5;
+			}
+		}
+
+		return new double[][]{ upsampledXPositions, upsampledYPositions };
+	}
+
+	/**
+	 * Estimate the flow coarse to fine.  Both images are downsampled
+	 * {@link Param#pyramidLevels} times (fewer if the coarsest level would
+	 * become smaller than 16 pixels).  The flow is searched at the coarsest
+	 * level with radius and sigma scaled accordingly, then the position field
+	 * is upsampled as the initial position field of the next finer level and
+	 * refined with {@link Param#pyramidRefineRadius}.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param param
+	 * @return
+	 */
+	private static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > pyramidalScaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final Param param )
+	{
+		final ArrayList< FloatProcessor > ip1s = new ArrayList<>();
+		final ArrayList< FloatProcessor > ip2s = new ArrayList<>();
+		ip1s.add( ip1 );
+		ip2s.add( ip2 );
+		for ( int l = 0; l < param.pyramidLevels; ++l )
+		{
+			final FloatProcessor ip1Fine = ip1s.get( l );
+			if ( Math.min( ip1Fine.getWidth(), ip1Fine.getHeight() ) / 2 < 16 )
+				break;
+			ip1s.add( downsample( ip1Fine ) );
+			ip2s.add( downsample( ip2s.get( l ) ) );
+		}
+
+		final int levels = ip1s.size() - 1;
+
+		Pair< PositionFieldTransform< DoubleType >, FloatProcessor > flow = null;
+		for ( int l = levels; l >= 0; --l )
+		{
+			final FloatProcessor ip1Level = ip1s.get( l );
+			final FloatProcessor ip2Level = ip2s.get( l );
+			final double scale = 1.0 / ( 1 << l );
+
+			final Param levelParam = param.copy();
+			levelParam.pyramidLevels = 0;
+			levelParam.sigma = param.sigma * scale;
+			if ( l == levels )
+				levelParam.radius = ( short )Math.max( 1, Math.ceil( param.radius * scale ) );
+			else
+				levelParam.radius = param.pyramidRefineRadius;
+
+			if ( flow == null )
+				flow = scaleSpaceOpticFlow( ip1Level, ip2Level, levelParam, null, null );
+			else
+			{
+				final FloatProcessor ip1Coarse = ip1s.get( l + 1 );
+				final double[][] coarsePositions = samplePositions(
+						flow.getA(),
+						ip1Coarse.getWidth(),
+						ip1Coarse.getHeight() );
+				final double[][] positions = upsamplePositions(
+						coarsePositions[ 0 ],
+						coarsePositions[ 1 ],
+						ip1Coarse.getWidth(),
+						ip1Coarse.getHeight(),
+						ip1Level.getWidth(),
+						ip1Level.getHeight() );
+				flow = scaleSpaceOpticFlow( ip1Level, ip2Level, levelParam, positions[ 0 ], positions[ 1 ] );
+			}
+		}
+
+		return flow;
+	}
+
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final Param param )
+	{
+		if ( param.pyramidLevels > 0 )
+			return pyramidalScaleSpaceOpticFlow( ip1, ip2, param );
+		else
+			return scaleSpaceOpticFlow( ip1, ip2, param, null, null );
+	}
+
+	/**
+	 * Estimate the flow starting from an initial position field.
+	 *
+	 * @param ip1
+	 * @param ip2
+	 * @param param pyramid levels are ignored
+	 * @param initialXPositions initial x-lookup, width * height, null for identity
+	 * @param initialYPositions initial y-lookup, width * height, null for identity
+	 * @return
+	 */
+	public static final Pair< PositionFieldTransform< DoubleType >, FloatProcessor > scaleSpaceOpticFlow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final Param param,
+			final double[] initialXPositions,
+			final double[] initialYPositions )
+	{
+		final short radius = param.radius;
+		final double sigma = param.sigma;
+		final int numIterations = param.numIterations;
+
 		/* create background mask */
 		final ByteProcessor backgroundMask = new ByteProcessor( ip1.getWidth(), ip1.getHeight() );
 		final byte[] backgroundMaskPixels = ( byte[] )backgroundMask.getPixels();
 		final float[] ip1Pixels = ( float[] )ip1.getPixels();
 		final float[] ip2Pixels = ( float[] )ip2.getPixels();
+		int numForegroundPixels = 0;
 		for ( int i = 0; i < backgroundMaskPixels.length; ++i )
+		{
 			if ( !( ip1Pixels[ i ] == 0 || ip2Pixels[ i ] == 0 ) )
+			{
 				backgroundMaskPixels[ i ] = 1;
+				++numForegroundPixels;
+			}
+		}
 
 		/* initialize composed weights */
 		FloatProcessor weights = null;
@@ -291,12 +1611,67 @@ public class PMCCScaleSpaceBlockFlow
 		RealRandomAccessible< DoubleType > xPositions = new RealPositionRealRandomAccessible( 2, 0 );
 		RealRandomAccessible< DoubleType > yPositions = new RealPositionRealRandomAccessible( 2, 1 );
 
-		/* filters to mask saturated pixels with noise */
-		final ValueToNoise filter1 = new ValueToNoise( 0, 0, 255 );
-		final ValueToNoise filter2 = new ValueToNoise( 255, 0, 255 );
+		/* dense position field if materialized */
+		double[][] positionArrays = null;
+
+		if ( initialXPositions == null || initialYPositions == null )
+		{
+			if ( param.materialize )
+				positionArrays = createIdentityPositionField( ip1.getWidth(), ip1.getHeight() );
+		}
+		else if ( param.materialize )
+		{
+			positionArrays = new double[][]{ initialXPositions.clone(), initialYPositions.clone() };
+			xPositions = interpolatePositions( positionArrays[ 0 ], ip1.getWidth(), ip1.getHeight() );
+			yPositions = interpolatePositions( positionArrays[ 1 ], ip1.getWidth(), ip1.getHeight() );
+		}
+		else
+		{
+			/* as deformation of the identity such that the displacement is border extended */
+			final FloatProcessor initialShiftX = new FloatProcessor( ip1.getWidth(), ip1.getHeight() );
+			final FloatProcessor initialShiftY = new FloatProcessor( ip1.getWidth(), ip1.getHeight() );
+			for ( int y = 0, i = 0; y < ip1.getHeight(); ++y )
+			{
+				for ( int x = 0; x < ip1.getWidth(); ++x, ++i )
+				{
+					initialShiftX.setf( i, ( float )( initialXPositions[ i ] - x ) );
+					initialShiftY.setf( i, ( float )( initialYPositions[ i ] - y ) );
+				}
+			}
+
+			final DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform(
+					initialShiftX,
+					initialShiftY );
+
+			xPositions = new RealTransformRandomAccessible<>(
+					xPositions,
+					deformationField );
+			yPositions = new RealTransformRandomAccessible<>(
+					yPositions,
+					deformationField );
+		}
+
+		/* (mostly) background, return the initial transform with zero weights */
+		if (
+				numForegroundPixels == 0 ||
+				numForegroundPixels < param.minForegroundRatio * backgroundMaskPixels.length )
+		{
+			@SuppressWarnings( "unchecked" )
+			final PositionFieldTransform< DoubleType > transform = new PositionFieldTransform<>(
+					new RealRandomAccessible[]{
+							xPositions,
+							yPositions } );
+
+			return new ValuePair< PositionFieldTransform< DoubleType >, FloatProcessor >(
+					transform,
+					new FloatProcessor( ip1.getWidth(), ip1.getHeight() ) );
+		}
 
-		FloatProcessor ip1Filtered = filter1.process( ip1 ).convertToFloatProcessor();
-		ip1Filtered = filter2.process( ip1Filtered ).convertToFloatProcessor();
+		/* mask saturated pixels with noise, ip1 is owned by the caller, ip2Transformed in place */
+		final ValueToNoiseLocalContrast saturationNoise = new ValueToNoiseLocalContrast();
+
+		final FloatProcessor ip1Filtered = ( FloatProcessor )ip1.duplicate();
+		saturationNoise.noise( ( float[] )ip1Filtered.getPixels() );
 
 		/* repeat numIteration times for each scale */
 		for ( int j = 0; j < numIterations ; ++j )
@@ -311,31 +1686,26 @@ public class PMCCScaleSpaceBlockFlow
 										xPositions,
 										yPositions } ) ) );
 
-			ip2Transformed = filter1.process( ip2Transformed ).convertToFloatProcessor();
-			ip2Transformed = filter2.process( ip2Transformed ).convertToFloatProcessor();
-
-			final ImageStack seqR = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
-			final ImageStack seqFlowVectors = new ImageStack( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
+			saturationNoise.noise( ( float[] )ip2Transformed.getPixels() );
 
-			opticFlow(
-					ip1Filtered,
-					ip2Transformed,
-					radius,
-					seqR,
-					seqFlowVectors,
-					1.5 );
+			/* block radii of the whole image, also when tiled */
+			final double[] blockRadii = createRadii( ip1Filtered.getWidth(), 1.5 );
 
 			final FloatProcessor shiftXFloat = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			final FloatProcessor shiftYFloat = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			weights = new FloatProcessor( ip1Filtered.getWidth(), ip1Filtered.getHeight() );
 			try
 			{
-				filterOpticFlowScaleSpace(
-						seqFlowVectors,
+				searchAndVote(
+						ip1Filtered,
+						ip2Transformed,
+						radius,
+						blockRadii,
+						param,
+						backgroundMaskPixels,
 						shiftXFloat,
 						shiftYFloat,
-						weights,
-						radius );
+						weights );
 			}
 			catch ( final NotEnoughDataPointsException e )
 			{
@@ -347,9 +1717,23 @@ public class PMCCScaleSpaceBlockFlow
 			shiftXFloat.copyBits( weights, 0, 0, Blitter.MULTIPLY );
 			shiftYFloat.copyBits( weights, 0, 0, Blitter.MULTIPLY );
 
-			new GaussianBlur().blurGaussian( shiftXFloat, sigma );
-			new GaussianBlur().blurGaussian( shiftYFloat, sigma );
-			new GaussianBlur().blurGaussian( weights, sigma );
+			if ( param.recursiveGaussian )
+			{
+				RecursiveGaussian.blur(
+						new float[][]{
+							( float[] )shiftXFloat.getPixels(),
+							( float[] )shiftYFloat.getPixels(),
+							( float[] )weights.getPixels() },
+						weights.getWidth(),
+						weights.getHeight(),
+						sigma );
+			}
+			else
+			{
+				new GaussianBlur().blurGaussian( shiftXFloat, sigma );
+				new GaussianBlur().blurGaussian( shiftYFloat, sigma );
+				new GaussianBlur().blurGaussian( weights, sigma );
+			}
 
 			final FloatProcessor divisionWeights = ( FloatProcessor )weights.duplicate();
 
@@ -362,16 +1746,32 @@ public class PMCCScaleSpaceBlockFlow
 			shiftYFloat.copyBits( divisionWeights, 0, 0, Blitter.DIVIDE );
 
 			/* append deformation field to existing transformation */
-			final DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform(
-					shiftXFloat,
-					shiftYFloat );
+			if ( param.materialize )
+			{
+				positionArrays = composeDeformationField(
+						positionArrays[ 0 ],
+						positionArrays[ 1 ],
+						( float[] )shiftXFloat.getPixels(),
+						( float[] )shiftYFloat.getPixels(),
+						ip1.getWidth(),
+						ip1.getHeight() );
 
-			xPositions = new RealTransformRandomAccessible<>(
-					xPositions,
-					deformationField );
-			yPositions = new RealTransformRandomAccessible<>(
-					yPositions,
-					deformationField );
+				xPositions = interpolatePositions( positionArrays[ 0 ], ip1.getWidth(), ip1.getHeight() );
+				yPositions = interpolatePositions( positionArrays[ 1 ], ip1.getWidth(), ip1.getHeight() );
+			}
+			else
+			{
+				final DeformationFieldTransform< DoubleType > deformationField = createDeformationFieldTransform(
+						shiftXFloat,
+						shiftYFloat );
+
+				xPositions = new RealTransformRandomAccessible<>(
+						xPositions,
+						deformationField );
+				yPositions = new RealTransformRandomAccessible<>(
+						yPositions,
+						deformationField );
+			}
 		}
 
 		@SuppressWarnings( "unchecked" )
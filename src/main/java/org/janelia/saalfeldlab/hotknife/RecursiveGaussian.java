@@ -0,0 +1,209 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+/**
+ * Recursive (IIR) Gaussian smoothing after
+ *
+ * I.T. Young, L.J. van Vliet, "Recursive implementation of the Gaussian
+ * filter", Signal Processing 44 (1995) 139-151
+ *
+ * A causal and an anti-causal third order filter per dimension, the cost per
+ * pixel does not depend on sigma.  Pixels outside of the image are the
+ * nearest edge pixel.  Multiple equally sized channels are smoothed in one
+ * pass such that each row and column is visited once for all channels.
+ * Works in place on float arrays.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class RecursiveGaussian
+{
+	final private double b;
+	final private double a1;
+	final private double a2;
+	final private double a3;
+
+	public RecursiveGaussian(final double sigma)
+	{
+		final double s = Math.max(0.5, sigma);
+
+		/*
+		 * The published fit for q overestimates sigma by up to 10%.  Starting
+		 * from it, q is refined such that the exact standard deviation of the
+		 * causal-anticausal cascade matches sigma.
+		 */
+		double q = s >= 2.5 ?
+				0.98711 * s - 0.96330 :
+				3.97156 - 4.14554 * Math.sqrt(1.0 - 0.26891 * s);
+		for (int i = 0; i < 20; ++i)
+			q *= s / sigma(q);
+
+		final double[] a = coefficients(q);
+		a1 = a[0];
+		a2 = a[1];
+		a3 = a[2];
+		b = 1.0 - (a1 + a2 + a3);
+	}
+
+	/**
+	 * Normalized feedback coefficients a1, a2, a3 for q.
+	 */
+	final static private double[] coefficients(final double q)
+	{
+		final double q2 = q * q;
+		final double q3 = q2 * q;
+
+		final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		final double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		final double b2 = -(1.4281 * q2 + 1.26661 * q3);
+		final double b3 = 0.422205 * q3;
+
+		return new double[] {b1 / b0, b2 / b0, b3 / b0};
+	}
+
+	/**
+	 * Exact standard deviation of the impulse response of the
+	 * causal-anticausal cascade for q.  The variance of the causal filter
+	 * B / (1 - a1 z^-1 - a2 z^-2 - a3 z^-3) is
+	 * (B * sum(k^2 ak) + sum(k ak)^2) / B^2, the anti-causal filter adds the
+	 * same.
+	 */
+	final static private double sigma(final double q)
+	{
+		final double[] a = coefficients(q);
+		final double b = 1.0 - (a[0] + a[1] + a[2]);
+		final double m1 = a[0] + 2 * a[1] + 3 * a[2];
+		final double m2 = a[0] + 4 * a[1] + 9 * a[2];
+		return Math.sqrt(2 * (b * m2 + m1 * m1) / (b * b));
+	}
+
+	/**
+	 * Smooth a line of n values at offset with stride in place.
+	 */
+	final private void line(final float[] data, final int offset, final int stride, final int n, final double[] buffer)
+	{
+		/* causal, initialized with the steady state of the first value */
+		double w1, w2, w3;
+		w1 = w2 = w3 = data[offset];
+		for (int i = 0, k = offset; i < n; ++i, k += stride)
+		{
+			final double w = b * data[k] + a1 * w1 + a2 * w2 + a3 * w3;
+			buffer[i] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+
+		/* anti-causal, initialized with the steady state of the last value */
+		double y1, y2, y3;
+		y1 = y2 = y3 = buffer[n - 1];
+		for (int i = n - 1, k = offset + (n - 1) * stride; i >= 0; --i, k -= stride)
+		{
+			final double y = b * buffer[i] + a1 * y1 + a2 * y2 + a3 * y3;
+			data[k] = (float)y;
+			y3 = y2;
+			y2 = y1;
+			y1 = y;
+		}
+	}
+
+	/**
+	 * Smooth all columns of a channel in place.  The columns are swept row
+	 * by row with one filter state per column such that memory is accessed
+	 * in scan order.  The causal result is kept in the channel.
+	 */
+	final private void columns(
+			final float[] data,
+			final int width,
+			final int height,
+			final double[] s1,
+			final double[] s2,
+			final double[] s3)
+	{
+		/* causal, initialized with the steady state of the first row */
+		for (int x = 0; x < width; ++x)
+			s1[x] = s2[x] = s3[x] = data[x];
+		for (int y = 0; y < height; ++y)
+		{
+			for (int x = 0, k = y * width; x < width; ++x, ++k)
+			{
+				final double w = b * data[k] + a1 * s1[x] + a2 * s2[x] + a3 * s3[x];
+				data[k] = (float)w;
+				s3[x] = s2[x];
+				s2[x] = s1[x];
+				s1[x] = w;
+			}
+		}
+
+		/* anti-causal, initialized with the steady state of the last row */
+		final int last = (height - 1) * width;
+		for (int x = 0; x < width; ++x)
+			s1[x] = s2[x] = s3[x] = data[last + x];
+		for (int y = height - 1; y >= 0; --y)
+		{
+			for (int x = 0, k = y * width; x < width; ++x, ++k)
+			{
+				final double v = b * data[k] + a1 * s1[x] + a2 * s2[x] + a3 * s3[x];
+				data[k] = (float)v;
+				s3[x] = s2[x];
+				s2[x] = s1[x];
+				s1[x] = v;
+			}
+		}
+	}
+
+	/**
+	 * Smooth equally sized channels in place.  Each row is filtered for all
+	 * channels while it is in cache, columns are swept in scan order.
+	 *
+	 * @param channels
+	 * @param width
+	 * @param height
+	 */
+	public void process(final float[][] channels, final int width, final int height)
+	{
+		if (width == 0 || height == 0)
+			return;
+
+		final double[] buffer = new double[width];
+
+		for (int y = 0; y < height; ++y)
+			for (final float[] channel : channels)
+				line(channel, y * width, 1, width, buffer);
+
+		final double[] s1 = new double[width];
+		final double[] s2 = new double[width];
+		final double[] s3 = new double[width];
+
+		for (final float[] channel : channels)
+			columns(channel, width, height, s1, s2, s3);
+	}
+
+	/**
+	 * Smooth equally sized channels in place.
+	 *
+	 * @param channels
+	 * @param width
+	 * @param height
+	 * @param sigma
+	 */
+	public static void blur(final float[][] channels, final int width, final int height, final double sigma)
+	{
+		if (sigma > 0)
+			new RecursiveGaussian(sigma).process(channels, width, height);
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+
+import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+
+/**
+ * SIFT features as extracted by
+ * {@link Align#extractFeatures(FloatProcessor, double, double, int)}.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class SIFTFeatureExtractor implements FeatureExtractor {
+
+	final private double maxScale;
+	final private double minScale;
+	final private int fdSize;
+
+	public SIFTFeatureExtractor(
+			final double maxScale,
+			final double minScale,
+			final int fdSize) {
+
+		this.maxScale = maxScale;
+		this.minScale = minScale;
+		this.fdSize = fdSize;
+	}
+
+	@Override
+	public ArrayList<Feature> extract(final FloatProcessor ip) {
+
+		return Align.extractFeatures(ip, maxScale, minScale, fdSize);
+	}
+
+	@Override
+	public long hash(final long width, final long height) {
+
+		return Features.hash(Align.createSIFTParam(width, height, maxScale, minScale, fdSize));
+	}
+}
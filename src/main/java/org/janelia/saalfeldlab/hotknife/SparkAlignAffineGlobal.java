@@ -22,7 +22,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
@@ -32,11 +31,10 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Features;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
 import org.janelia.saalfeldlab.hotknife.util.Util;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.kohsuke.args4j.CmdLineException;
@@ -82,12 +80,28 @@ public class SparkAlignAffineGlobal {
 		@Option(name = "--scaleIndex", required = true, usage = "scale index, e.g. 4 (means scale = 1.0 / 2^4)")
 		private int scaleIndex = 0;
 
+		@Option(name = "--featuresGroup", required = false, usage = "N5 group to cache features of each face in, they are loaded from there if extracted with the same parameters and prior transform before, e.g. /features")
+		private String featuresGroup = null;
+
+		@Option(name = "--featureMatcher", required = false, usage = "descriptor matching, EXACT or KD_FOREST (approximate), SPATIAL_HASH is rejected because faces are not aligned yet")
+		private FeatureMatcher.Method featureMatcher = FeatureMatcher.Method.EXACT;
+
+		@Option(name = "--maxNumFeatures", required = false, usage = "max number of SIFT features per face, finest scale first with an even spatial spread, <= 0 means unlimited")
+		private int maxNumFeatures = 0;
+
+		@Option(name = "--featureExtractor", required = false, usage = "feature detector and descriptor, SIFT or ORB (fast, binary, always matched by Hamming distance)")
+		private FeatureExtractor.Method featureExtractor = FeatureExtractor.Method.SIFT;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
 			try {
 				parser.parseArgument(args);
 
+				/* faces share no coordinate frame before they are aligned */
+				if (featureMatcher == FeatureMatcher.Method.SPATIAL_HASH)
+					throw new CmdLineException(parser, "--featureMatcher SPATIAL_HASH is not supported, faces have no common coordinates before global alignment, use EXACT or KD_FOREST");
+
 				parsedSuccessfully = true;
 
 			} catch (final CmdLineException e) {
@@ -124,6 +138,34 @@ public class SparkAlignAffineGlobal {
 		public String getOutGroup() {
 			return outGroup;
 		}
+
+		/**
+		 * @return the featuresGroup
+		 */
+		public String getFeaturesGroup() {
+			return featuresGroup;
+		}
+
+		/**
+		 * @return the featureMatcher
+		 */
+		public FeatureMatcher.Method getFeatureMatcher() {
+			return featureMatcher;
+		}
+
+		/**
+		 * @return the maxNumFeatures
+		 */
+		public int getMaxNumFeatures() {
+			return maxNumFeatures;
+		}
+
+		/**
+		 * @return the featureExtractor
+		 */
+		public FeatureExtractor.Method getFeatureExtractor() {
+			return featureExtractor;
+		}
 	}
 
 
@@ -133,21 +175,96 @@ public class SparkAlignAffineGlobal {
 			final List<String> datasetNames,
 			final int scaleIndex) throws IOException {
 
+		return extractFeatures(sc, n5Path, datasetNames, scaleIndex, null);
+	}
+
+	static public JavaPairRDD<String, ArrayList<Feature>> extractFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final String featuresGroupName) throws IOException {
+
+		return extractFeatures(sc, n5Path, datasetNames, scaleIndex, featuresGroupName, 0);
+	}
+
+	static public JavaPairRDD<String, ArrayList<Feature>> extractFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final String featuresGroupName,
+			final int maxNumFeatures) throws IOException {
+
+		return extractFeatures(sc, n5Path, datasetNames, scaleIndex, featuresGroupName, maxNumFeatures, new SIFTFeatureExtractor(1.0, 0.5, 4));
+	}
+
+	/**
+	 * Extract SIFT features of entire faces.  With a featuresGroupName,
+	 * features are loaded from the cache dataset of the face in that group
+	 * if they were extracted with the same parameters before, and saved
+	 * there otherwise.
+	 * The cache holds all features, maxNumFeatures is applied after loading.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetNames
+	 * @param scaleIndex
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures max number of features per face, selected by
+	 *     {@link Align#limitFeatures} in 8x8 buckets, &lt;= 0 means unlimited
+	 * @param extractor
+	 * @return
+	 * @throws IOException
+	 */
+	static public JavaPairRDD<String, ArrayList<Feature>> extractFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureExtractor extractor) throws IOException {
+
 		final JavaRDD<String> rdd = sc.parallelize(datasetNames);
 
 		final JavaPairRDD<String, ArrayList<Feature>> features =
 				rdd.mapToPair(inDatasetName -> {
 
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5Reader, inDatasetName + "/s" + scaleIndex);
+					final N5Writer n5 = new N5FSWriter(n5Path);
+					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5, inDatasetName + "/s" + scaleIndex);
+
+					final String cacheDatasetName = featuresGroupName == null ? null : Features.cacheDatasetName(
+							featuresGroupName,
+							inDatasetName,
+							scaleIndex,
+							extractor.hash(source.dimension(0), source.dimension(1)),
+							Features.hash(Intervals.dimensionsAsLongArray(source)));
+					final long[] gridPosition = new long[]{0, 0};
+					final double[] min = new double[]{source.realMin(0), source.realMin(1)};
+					final double[] max = new double[]{source.realMax(0) + 1, source.realMax(1) + 1};
+
+					if (featuresGroupName != null) {
+						final ArrayList<Feature> fs = Features.loadBlock(n5, cacheDatasetName, gridPosition);
+						if (fs != null) {
+							System.out.println(inDatasetName + " : " + fs.size() + " features loaded from " + cacheDatasetName);
+							return new Tuple2<String, ArrayList<Feature>>(inDatasetName, Align.limitFeatures(fs, min, max, maxNumFeatures, 8));
+						}
+					}
 
 					System.out.println(inDatasetName + " : " + Arrays.toString(Intervals.dimensionsAsLongArray(source)) + " extracting features...");
 
-					final ArrayList<Feature> fs = Align.extractFeatures(source, 1.0, 0.5, 4);
+					final ArrayList<Feature> fs = Align.extractFeatures(source, extractor);
 
 					System.out.println(inDatasetName + " : " + fs.size() + " features extracted.");
 
-					return new Tuple2<String, ArrayList<Feature>>(inDatasetName, fs);
+					if (featuresGroupName != null) {
+						Features.createCache(n5, cacheDatasetName, new long[]{1, 1});
+						Features.saveBlock(n5, cacheDatasetName, gridPosition, fs);
+					}
+
+					return new Tuple2<String, ArrayList<Feature>>(inDatasetName, Align.limitFeatures(fs, min, max, maxNumFeatures, 8));
 				});
 
 		return features;
@@ -155,34 +272,53 @@ public class SparkAlignAffineGlobal {
 
 
 	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], ArrayList<PointMatch>> matchBlockFaces(
-			final JavaSparkContext sc,
 			final List<String> datasetNames,
 			final JavaPairRDD<String, ArrayList<Feature>> features) {
 
-		final ArrayList<String[]> pairs = new ArrayList<>();
-		for (int i = 2; i < datasetNames.size(); i += 2)
-			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+		return matchBlockFaces(datasetNames, features, new ExactFeatureMatcher());
+	}
 
-		final Map<String, ArrayList<Feature>> featuresMap = features.collectAsMap();
 
-		final ArrayList<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tupleList = new ArrayList<>();
+	static public <SA extends Supplier<? extends Model<?>> & Serializable> JavaPairRDD<String[], ArrayList<PointMatch>> matchBlockFaces(
+			final List<String> datasetNames,
+			final JavaPairRDD<String, ArrayList<Feature>> features,
+			final FeatureMatcher matcher) {
 
-		for (final String[] pair : pairs)
-			tupleList.add(
-					new Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>(
-							new Tuple2<String, ArrayList<Feature>>(pair[0], featuresMap.get(pair[0])),
-							new Tuple2<String, ArrayList<Feature>>(pair[1], featuresMap.get(pair[1]))));
+		/* pair index and side of each face, the first and the last face have no partner */
+		final HashMap<String, Tuple2<Integer, Integer>> faces = new HashMap<>();
+		final ArrayList<String[]> pairs = new ArrayList<>();
+		for (int i = 2; i < datasetNames.size(); i += 2) {
+			faces.put(datasetNames.get(i - 1), new Tuple2<>(pairs.size(), 0));
+			faces.put(datasetNames.get(i), new Tuple2<>(pairs.size(), 1));
+			pairs.add(new String[]{datasetNames.get(i - 1), datasetNames.get(i)});
+		}
 
-		final JavaRDD<Tuple2<Tuple2<String, ArrayList<Feature>>, Tuple2<String, ArrayList<Feature>>>> tuples = sc.parallelize(tupleList);
+		/* features are encoded before the shuffle and never collected */
+		final JavaPairRDD<Integer, Tuple2<Integer, byte[]>> encodedFeatures = features.flatMapToPair(
+				tuple -> {
+					final ArrayList<Tuple2<Integer, Tuple2<Integer, byte[]>>> pairFeatures = new ArrayList<>();
+					final Tuple2<Integer, Integer> face = faces.get(tuple._1());
+					if (face != null)
+						pairFeatures.add(new Tuple2<>(face._1(), new Tuple2<>(face._2(), Features.encode(tuple._2()))));
+					return pairFeatures.iterator();
+				});
 
-		final JavaPairRDD<String[], ArrayList<PointMatch>> candidateMatches = tuples.mapToPair(
+		/* both faces of a pair meet on the executor that matches them */
+		final JavaPairRDD<String[], ArrayList<PointMatch>> candidateMatches = encodedFeatures.groupByKey().mapToPair(
 				tuple -> {
-					final ArrayList<PointMatch> candidates = Align.matchFeatures(
-							tuple._1()._2(),
-							tuple._2()._2(),
-							0.92f);
+					final byte[][] pairFeatures = new byte[2][];
+					tuple._2().forEach(face -> pairFeatures[face._1()] = face._2());
+
+					final String[] key = pairs.get(tuple._1());
+					for (int i = 0; i < 2; ++i)
+						if (pairFeatures[i] == null)
+							throw new RuntimeException("No features for face " + key[i] + " of pair " + Arrays.toString(key) + ".");
 
-					final String[] key = new String[]{tuple._1()._1(), tuple._2()._1()};
+					final ArrayList<PointMatch> candidates = Align.matchFeatures(
+							Features.decode(pairFeatures[0]),
+							Features.decode(pairFeatures[1]),
+							0.92f,
+							matcher);
 
 					System.out.println(Arrays.toString(key) + " : " + candidates.size() + " matches found.");
 
@@ -299,16 +435,21 @@ public class SparkAlignAffineGlobal {
 		final SparkConf conf = new SparkConf().setAppName("SparkAlignAffineGlobal");
 		final JavaSparkContext sc = new JavaSparkContext(conf);
 
+		final FeatureExtractor extractor = options.getFeatureExtractor().create(1.0, 0.5, 4);
+
 		final JavaPairRDD<String, ArrayList<Feature>> features = extractFeatures(
 				sc,
 				options.getN5Path(),
 				datasetNames,
-				options.getScaleIndex());
+				options.getScaleIndex(),
+				options.getFeaturesGroup(),
+				options.getMaxNumFeatures(),
+				extractor);
 
 		final JavaPairRDD<String[], ArrayList<PointMatch>> matches = matchBlockFaces(
-				sc,
 				datasetNames,
-				features);
+				features,
+				extractor.createMatcher(options.getFeatureMatcher(), Double.POSITIVE_INFINITY));
 
 		final JavaPairRDD<String[], ArrayList<PointMatch>> scaledMatches = matches.mapToPair(
 				entry -> {
@@ -20,6 +20,8 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 
@@ -31,32 +33,24 @@ import org.janelia.saalfeldlab.hotknife.util.Align;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
 import org.janelia.saalfeldlab.hotknife.util.Spark;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
 import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.array.ArrayLocalizingCursor;
-import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.RealTransform;
 import net.imglib2.realtransform.RealTransformSequence;
 import net.imglib2.realtransform.Scale2D;
-import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
+import scala.Tuple2;
+import scala.Tuple3;
 
 /**
  *
@@ -89,6 +83,39 @@ public class SparkPairAlignFlow {
 		@Option(name = "--sigma", required = false, usage = "smoothness filter of transform in scaled pixels")
 		private double sigma = 30.0;
 
+		@Option(name = "--materializeFlow", required = false, usage = "compose the flow of each iteration into a dense position field")
+		private boolean materializeFlow = false;
+
+		@Option(name = "--numThreads", required = false, usage = "number of threads per grid cell for the flow offset search, each with private result buffers of the cell (or --flowTileSize tile)")
+		private int numThreads = 1;
+
+		@Option(name = "--flowCorrelation", required = false, usage = "block correlation implementation for the flow, BLOCK_PMCC (default), INTEGRAL (faster, shared summed area tables), or FFT")
+		private PMCCScaleSpaceBlockFlow.Correlation flowCorrelation = PMCCScaleSpaceBlockFlow.Correlation.BLOCK_PMCC;
+
+		@Option(name = "--flowPyramidLevels", required = false, usage = "number of 2x downsampled levels to estimate the flow coarse to fine, 0 searches at full resolution only")
+		private int flowPyramidLevels = 0;
+
+		@Option(name = "--flowRefineRadius", required = false, usage = "search radius at the finer pyramid levels")
+		private short flowRefineRadius = 2;
+
+		@Option(name = "--flowFFTStride", required = false, usage = "lattice spacing of the FFT flow correlation, max R and shift vectors are interpolated between lattice points")
+		private int flowFFTStride = 8;
+
+		@Option(name = "--recursiveGaussian", required = false, usage = "smooth the flow with a recursive Gaussian whose cost does not depend on sigma")
+		private boolean recursiveGaussian = false;
+
+		@Option(name = "--minFlowForeground", required = false, usage = "skip the flow of grid cells with a smaller fraction of foreground pixels, empty cells are always skipped")
+		private double minFlowForeground = 0;
+
+		@Option(name = "--flowTileSize", required = false, usage = "compute the flow of a grid cell in tiles of this size to bound memory, 0 for the whole cell")
+		private int flowTileSize = 0;
+
+		@Option(name = "--occupancyScaleIndex", required = false, usage = "scale index of a coarse pre-pass that skips grid cells without enough foreground in both faces, they keep the prior transform, e.g. 7, < 0 aligns all grid cells")
+		private int occupancyScaleIndex = -1;
+
+		@Option(name = "--minOccupancy", required = false, usage = "min fraction of foreground pixels in both faces for a grid cell to be aligned, cells without foreground are always skipped by the pre-pass")
+		private double minOccupancy = 0;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -153,239 +180,140 @@ public class SparkPairAlignFlow {
 
 			return sigma;
 		}
-	}
 
-	/**
-	 * This is for 2D affine transforms only.
-	 *
-	 * @param affines
-	 * @param n5Path
-	 * @param priorTransformDatasetName
-	 * @param priorTransformScaleIndex
-	 * @param datasetBaseName
-	 * @param boundsMin
-	 * @param boundsMax
-	 * @param stepSize
-	 * @param transformScale
-	 */
-	public static JavaRDD<long[]> saveAccumulatedAffineGridCells(
-			final JavaPairRDD<long[], double[]> affines,
-			final String n5Path,
-			final String priorTransformDatasetName,
-			final String datasetBaseName,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize,
-			final double transformScale) {
-
-		final JavaRDD<long[]> gridCells = affines.map(
-				t -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
-							priorTransformDatasetName);
-					final long[] gridOffset = Grid.gridCell(
-							t._1(),
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-					final String datasetName = datasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1];
-					final RealTransformSequence transformSequence = new RealTransformSequence();
-					if (t._2() != null) {
-						final AffineTransform2D transform = new AffineTransform2D();
-						transform.set(t._2());
-						transformSequence.add(transform);
-					}
-					transformSequence.add(priorTransform);
-					Transform.saveScaledTransformBlock(
-							n5,
-							datasetName,
-							transformSequence,
-							transformScale,
-							boundsMin,
-							boundsMax,
-							gridOffset,
-							new int[] {stepSize, stepSize});
+		public boolean getMaterializeFlow() {
 
-					return t._1();
-				});
+			return materializeFlow;
+		}
 
-		return gridCells;
-	}
+		public int getNumThreads() {
 
+			return numThreads;
+		}
 
-	/**
-	 * This is fo 2D transformation fields only
-	 *
-	 * @param affines
-	 * @param n5Path
-	 * @param transformDatasetBaseName
-	 * @param transformScale
-	 * @param boundsMin
-	 * @param boundsMax
-	 * @param stepSize
-	 * @throws IOException
-	 */
-	public static JavaRDD<long[]> composeOverlappingTransformGridCells(
-			final JavaRDD<long[]> gridCells,
-			final String n5Path,
-			final String transformDatasetBaseName,
-			final double transformScale,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize) throws IOException {
+		public PMCCScaleSpaceBlockFlow.Correlation getFlowCorrelation() {
 
-		final DatasetAttributes attributes = Transform.createScaledTransformDataset(
-				new N5FSWriter(n5Path),
-				transformDatasetBaseName,
-				boundsMin,
-				boundsMax,
-				transformScale,
-				new int[] {stepSize, stepSize});
+			return flowCorrelation;
+		}
 
-		final long[] dimensions = attributes.getDimensions();
+		public int getFlowPyramidLevels() {
 
-		final JavaRDD<long[]> mappedGridCells = gridCells.map(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
+			return flowPyramidLevels;
+		}
 
-					final long[] intervalMin = new long[]{gridOffset[0] * stepSize, gridOffset[1] * stepSize, 0};
-					final long[] intervalMax = new long[]{
-							Math.min(dimensions[0], intervalMin[0] + stepSize) - 1,
-							Math.min(dimensions[1], intervalMin[1] + stepSize) - 1,
-							1};
-
-					System.out.println(Arrays.toString(gridOffset) + " : " + Arrays.toString(intervalMin) + " > " + Arrays.toString(intervalMax) + " : " + transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1));
-
-					final IntervalView<DoubleType> t00 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t01 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t10 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t11 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-
-					final Cursor<DoubleType> c00 = t00.cursor();
-					final Cursor<DoubleType> c01 = t01.cursor();
-					final Cursor<DoubleType> c10 = t10.cursor();
-					final Cursor<DoubleType> c11 = t11.cursor();
-
-					final ArrayImg<DoubleType, ?> tt = ArrayImgs.doubles(t00.dimension(0), t00.dimension(1), 2);
-					final ArrayLocalizingCursor<DoubleType> c = tt.localizingCursor();
-
-					while (c.hasNext()) {
-						final DoubleType v = c.next();
-						final DoubleType v00 = c00.next();
-						final DoubleType v01 = c01.next();
-						final DoubleType v10 = c10.next();
-						final DoubleType v11 = c11.next();
-						final double lambdaX = c.getDoublePosition(0) / stepSize;
-						final double lambdaY = c.getDoublePosition(1) / stepSize;
-						final double d0 = (v10.get() - v00.get()) * lambdaX + v00.get();
-						final double d1 = (v11.get() - v01.get()) * lambdaX + v01.get();
-						v.set((d1 - d0) * lambdaY + d0);
-					}
-
-					final DatasetAttributes targetAttributes = new DatasetAttributes(
-							dimensions,
-							new int[]{stepSize, stepSize, 2},
-							DataType.FLOAT64,
-							new GzipCompression());
-					N5Utils.saveBlock(tt, n5, transformDatasetBaseName, targetAttributes, Arrays.copyOf(gridOffset, 3));
-
-					return cell;
-				});
+		public short getFlowRefineRadius() {
 
-		return mappedGridCells;
-	}
+			return flowRefineRadius;
+		}
 
+		public int getFlowFFTStride() {
 
-	public static void deleteGridCells(
-			final JavaRDD<long[]> gridCells,
-			final String n5Path,
-			final String transformDatasetBaseName,
-			final double transformScale,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize) {
-
-		gridCells.foreach(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-					n5.remove(transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]);
-				});
-	}
+			return flowFFTStride;
+		}
+
+		public boolean getRecursiveGaussian() {
+
+			return recursiveGaussian;
+		}
+
+		public double getMinFlowForeground() {
 
+			return minFlowForeground;
+		}
+
+		public int getFlowTileSize() {
+
+			return flowTileSize;
+		}
+
+		public int getOccupancyScaleIndex() {
+
+			return occupancyScaleIndex;
+		}
+
+		public double getMinOccupancy() {
+
+			return minOccupancy;
+		}
+
+		/**
+		 * @return parameters for {@link PMCCScaleSpaceBlockFlow}
+		 */
+		public PMCCScaleSpaceBlockFlow.Param createFlowParam() {
 
-	static public JavaRDD<long[]> alignAndSaveAccumulatedGridCells(
+			final PMCCScaleSpaceBlockFlow.Param param = new PMCCScaleSpaceBlockFlow.Param(
+					(short)Math.ceil(Math.abs(maxFilterEpsilon)),
+					sigma,
+					3);
+			param.materialize = materializeFlow;
+			param.numThreads = numThreads;
+			param.correlation = flowCorrelation;
+			param.pyramidLevels = flowPyramidLevels;
+			param.pyramidRefineRadius = flowRefineRadius;
+			param.fftStride = flowFFTStride;
+			param.recursiveGaussian = recursiveGaussian;
+			param.minForegroundRatio = minFlowForeground;
+			param.tileSize = flowTileSize;
+			return param;
+		}
+	}
+
+	/**
+	 * Align the grid cells of a number of pairs and create the blocks of the
+	 * composition with the prior transform of B per grid cell for
+	 * {@link Spark#saveOverlappingGridCellBlocks(JavaPairRDD, String, List, double, double[], double[], int)}.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param warpedDatasetsA per pair, faces warped at scaleIndex by
+	 *     {@link Spark#saveTransformedFaces(JavaSparkContext, String, List, int, List, List, long[], long[], int[])}
+	 * @param warpedDatasetsB per pair, see warpedDatasetsA
+	 * @param scaleIndex
+	 * @param inTransformBDatasets per pair
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @param gridOffsets
+	 * @param occupied per pair, indexed like gridOffsets, only occupied grid
+	 *     cells are aligned, null for all
+	 * @param flowParam
+	 * @return blocks keyed by (pairIndex, block x, block y)
+	 * @throws IOException
+	 */
+	static public JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> alignGridCellBlocks(
 			final JavaSparkContext sc,
 			final String n5Path,
-			final String datasetA,
-			final String datasetB,
+			final List<String> warpedDatasetsA,
+			final List<String> warpedDatasetsB,
 			final int scaleIndex,
-			final String inTransformADataset,
-			final String inTransformBDataset,
-			final String outTransformDatasetBaseName,
+			final List<String> inTransformBDatasets,
 			final double[] boundsMin,
 			final double[] boundsMax,
-			final long[] scaledFloorMin,
-			final long[] scaledCeilMax,
 			final int stepSize,
 			final List<long[]> gridOffsets,
-			final short radius,
-			final double sigma,
-			final int numIterations) throws IOException {
+			final List<boolean[]> occupied,
+			final PMCCScaleSpaceBlockFlow.Param flowParam) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 		final long gridCellWidth = stepSize * 2;
 
-		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
+		final JavaRDD<Tuple2<Integer, long[]>> offsets = occupied == null ?
+				Spark.parallelizeGridCells(sc, warpedDatasetsA.size(), gridOffsets) :
+				Spark.parallelizeGridCells(sc, gridOffsets, occupied, true);
+
+		final JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> blocks =
+				offsets.flatMapToPair(cell -> {
 
-		final JavaRDD<long[]> gridCells =
-				offsets.map(offset -> {
+					final int pairIndex = cell._1();
+					final long[] offset = cell._2();
 
 					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
-
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							inTransformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							inTransformBDataset);
-
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
+					final RandomAccessibleInterval<FloatType> transformedA = Spark.openTransformedFace(n5Reader, warpedDatasetsA.get(pairIndex));
+					final RandomAccessibleInterval<FloatType> transformedB = Spark.openTransformedFace(n5Reader, warpedDatasetsB.get(pairIndex));
+
+					final RealTransform transformB = Transform.loadCachedScaledTransform(
+							n5Path,
+							inTransformBDatasets.get(pairIndex));
 
 					/* TODO pad by radius plus something ? */
 					final FinalInterval gridBlockInterval =
@@ -398,16 +326,12 @@ public class SparkPairAlignFlow {
 					final RealTransform transform = Align.alignFlow(
 							gridBlockB,
 							gridBlockA,
-							radius,
-							sigma,
-							numIterations);
+							flowParam);
 
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
+					final long[] gridCell = Grid.gridCell(
 							offset,
 							Grid.floorScaled(boundsMin, scale),
 							new int[]{stepSize, stepSize});
-					final String datasetName = outTransformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1];
 					final RealTransformSequence transformSequence = new RealTransformSequence();
 
 					/* TODO weight */
@@ -415,115 +339,280 @@ public class SparkPairAlignFlow {
 					transformSequence.add(transform);
 					transformSequence.add(new Scale2D(1.0 / scale,  1.0 / scale));
 					transformSequence.add(transformB);
-					Transform.saveScaledTransformBlock(
-							n5,
-							datasetName,
+
+					return Spark.gridCellBlocks(
+							pairIndex,
+							gridCell,
 							transformSequence,
 							scale,
 							boundsMin,
 							boundsMax,
-							gridOffset,
-							new int[] {stepSize, stepSize});
-
-					return offset;
+							stepSize).iterator();
 				});
 
-		return gridCells;
+		return blocks;
 	}
 
 
 	/**
-	 * Align a pair of transformed N5 sections using optic flow over a scale
-	 * space of block sizes on a grid of 50% overlapping cells.  The resulting
-	 * alignment is the composition of the prior transform and the interpolant
-	 * over the grid.  For grid cells, that do not return an alignment model,
-	 * the prior transformation is used.
-	 *
-	 * TODO weigh the composition of the calculated flow field and prior
-	 * transformation by the weight (mask * R)
+	 * Align a number of pairs of transformed N5 sections using optic flow
+	 * over a scale space of block sizes on a grid of 50% overlapping cells.
+	 * Alignment and composition run in one Spark job for the grid cells of
+	 * all pairs.  The resulting alignment is the composition of the prior
+	 * transform and the interpolant over the grid.  Optionally, a coarse
+	 * occupancy pre-pass prunes grid cells with too little foreground in A
+	 * or B, these keep the prior transform.
 	 *
 	 * @param sc
 	 * @param n5Path
 	 * @param inGroupName
 	 * @param outGroupName
-	 * @param datasetNames
-	 * @param indexA
-	 * @param indexB
+	 * @param datasetNamesA per pair
+	 * @param datasetNamesB per pair
+	 * @param transformDatasetNamesA per pair
+	 * @param transformDatasetNamesB per pair
 	 * @param transformScaleIndex
 	 * @param boundsMin
 	 * @param boundsMax
 	 * @param stepSize
 	 * @param gridOffsets
-	 * @param radius
-	 * @param sigma
-	 * @param numIterations
+	 * @param occupancyScaleIndex scale level of the occupancy pre-pass, &lt; 0
+	 *     to align all grid cells
+	 * @param minForegroundRatio min fraction of foreground pixels of an
+	 *     occupied grid cell
+	 * @param flowParam
 	 * @throws IOException
 	 */
-	public static void alignPairFlow(
+	public static void alignAllPairsFlow(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String inGroupName,
 			final String outGroupName,
-			final String datasetNameA,
-			final String datasetNameB,
-			final String transformDatasetNameA,
-			final String transformDatasetNameB,
+			final List<String> datasetNamesA,
+			final List<String> datasetNamesB,
+			final List<String> transformDatasetNamesA,
+			final List<String> transformDatasetNamesB,
 			final int transformScaleIndex,
 			final double[] boundsMin,
 			final double[] boundsMax,
 			final int stepSize,
 			final List<long[]> gridOffsets,
-			final short radius,
-			final double sigma,
-			final int numIterations) throws IOException {
+			final int occupancyScaleIndex,
+			final double minForegroundRatio,
+			final PMCCScaleSpaceBlockFlow.Param flowParam) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaRDD<long[]> gridCells = alignAndSaveAccumulatedGridCells(
+		final ArrayList<String> inTransformDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> inTransformDatasetNamesB = new ArrayList<>();
+		final ArrayList<String> outTransformDatasetNamesB = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			inTransformDatasetNamesA.add(inGroupName + "/" + transformDatasetNamesA.get(i));
+			inTransformDatasetNamesB.add(inGroupName + "/" + transformDatasetNamesB.get(i));
+			outTransformDatasetNamesB.add(outGroupName + "/" + transformDatasetNamesB.get(i));
+		}
+
+		final ArrayList<boolean[]> occupied = occupancyScaleIndex < 0 ?
+				null :
+				Spark.occupiedGridCells(
+						sc,
+						n5Path,
+						datasetNamesA,
+						datasetNamesB,
+						occupancyScaleIndex,
+						inTransformDatasetNamesA,
+						inTransformDatasetNamesB,
+						transformScaleIndex,
+						gridOffsets,
+						stepSize * 2,
+						minForegroundRatio);
+
+		/* warp each face once, a face is a dataset and its transform, faces shared by pairs are warped once */
+		final String warpedGroupName = outGroupName + "/warped";
+		final ArrayList<String> faceDatasetNames = new ArrayList<>();
+		final ArrayList<String> faceTransformDatasetNames = new ArrayList<>();
+		final ArrayList<String> warpedDatasetNames = new ArrayList<>();
+		final HashMap<Tuple2<String, String>, String> faceWarpedDatasetNames = new HashMap<>();
+		final ArrayList<String> warpedDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> warpedDatasetNamesB = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			for (final Tuple2<String, String> face : Arrays.asList(
+					new Tuple2<>(datasetNamesA.get(i), inTransformDatasetNamesA.get(i)),
+					new Tuple2<>(datasetNamesB.get(i), inTransformDatasetNamesB.get(i)))) {
+				String warpedDatasetName = faceWarpedDatasetNames.get(face);
+				if (warpedDatasetName == null) {
+					warpedDatasetName = warpedGroupName + "/" + warpedDatasetNames.size();
+					faceDatasetNames.add(face._1());
+					faceTransformDatasetNames.add(face._2());
+					warpedDatasetNames.add(warpedDatasetName);
+					faceWarpedDatasetNames.put(face, warpedDatasetName);
+				}
+			}
+			warpedDatasetNamesA.add(faceWarpedDatasetNames.get(new Tuple2<>(datasetNamesA.get(i), inTransformDatasetNamesA.get(i))));
+			warpedDatasetNamesB.add(faceWarpedDatasetNames.get(new Tuple2<>(datasetNamesB.get(i), inTransformDatasetNamesB.get(i))));
+		}
+
+		/* the warped faces are temporary, remove them also if the job fails */
+		try {
+			/* grid cells extend one cell width beyond the last offset, blocks are quarter cells */
+			final long gridCellWidth = stepSize * 2;
+			Spark.saveTransformedFaces(
+					sc,
+					n5Path,
+					faceDatasetNames,
+					transformScaleIndex,
+					faceTransformDatasetNames,
+					warpedDatasetNames,
+					floorScaledMin,
+					new long[]{ceilScaledMax[0] + gridCellWidth - 1, ceilScaledMax[1] + gridCellWidth - 1},
+					new int[]{stepSize, stepSize});
+
+			alignAndSaveGridCellBlocks(
+					sc,
+					n5Path,
+					warpedDatasetNamesA,
+					warpedDatasetNamesB,
+					transformScaleIndex,
+					inTransformDatasetNamesB,
+					outTransformDatasetNamesB,
+					boundsMin,
+					boundsMax,
+					stepSize,
+					gridOffsets,
+					occupied,
+					flowParam);
+		} finally {
+			new N5FSWriter(n5Path).remove(warpedGroupName);
+		}
+	}
+
+	/**
+	 * Align the grid cells of all pairs of warped faces and save the
+	 * composed transforms of B.  Pruned grid cells keep the prior transform
+	 * of B.
+	 */
+	private static void alignAndSaveGridCellBlocks(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> warpedDatasetNamesA,
+			final List<String> warpedDatasetNamesB,
+			final int transformScaleIndex,
+			final List<String> inTransformDatasetNamesB,
+			final List<String> outTransformDatasetNamesB,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final ArrayList<boolean[]> occupied,
+			final PMCCScaleSpaceBlockFlow.Param flowParam) throws IOException {
+
+		final double scale = 1.0 / (1 << transformScaleIndex);
+
+		JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> blocks = alignGridCellBlocks(
 				sc,
 				n5Path,
-				datasetNameA,
-				datasetNameB,
+				warpedDatasetNamesA,
+				warpedDatasetNamesB,
 				transformScaleIndex,
-				inGroupName + "/" + transformDatasetNameA,
-				inGroupName + "/" + transformDatasetNameB,
-				outGroupName + "/" + transformDatasetNameB,
+				inTransformDatasetNamesB,
 				boundsMin,
 				boundsMax,
-				floorScaledMin,
-				ceilScaledMax,
 				stepSize,
 				gridOffsets,
-				radius,
-				sigma,
-				numIterations);
-
-		gridCells.cache();
-		gridCells.count();
+				occupied,
+				flowParam);
+
+		/* pruned grid cells pass the prior transform of B through */
+		if (occupied != null)
+			blocks = blocks.union(
+					Spark.accumulatedAffineGridCellBlocks(
+							Spark.parallelizeGridCells(sc, gridOffsets, occupied, false).mapToPair(
+									cell -> new Tuple2<Tuple2<Integer, long[]>, double[]>(cell, null)),
+							n5Path,
+							inTransformDatasetNamesB,
+							boundsMin,
+							boundsMax,
+							stepSize,
+							scale));
 
-		final JavaRDD<long[]> composedGridCells = composeOverlappingTransformGridCells(
-				gridCells,
+		Spark.saveOverlappingGridCellBlocks(
+				blocks,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
+				outTransformDatasetNamesB,
 				scale,
 				boundsMin,
 				boundsMax,
 				stepSize);
+	}
+
 
-		composedGridCells.cache();
-		composedGridCells.count();
+	/**
+	 * Align a pair of transformed N5 sections using optic flow over a scale
+	 * space of block sizes on a grid of 50% overlapping cells.  The resulting
+	 * alignment is the composition of the prior transform and the interpolant
+	 * over the grid.  For grid cells, that do not return an alignment model,
+	 * the prior transformation is used.
+	 *
+	 * TODO weigh the composition of the calculated flow field and prior
+	 * transformation by the weight (mask * R)
+	 *
+	 * @see #alignAllPairsFlow
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param inGroupName
+	 * @param outGroupName
+	 * @param datasetNames
+	 * @param indexA
+	 * @param indexB
+	 * @param transformScaleIndex
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @param gridOffsets
+	 * @param occupancyScaleIndex
+	 * @param minForegroundRatio
+	 * @param flowParam
+	 * @throws IOException
+	 */
+	public static void alignPairFlow(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio,
+			final PMCCScaleSpaceBlockFlow.Param flowParam) throws IOException {
 
-		deleteGridCells(
-				composedGridCells,
+		alignAllPairsFlow(
+				sc,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
-				scale,
+				inGroupName,
+				outGroupName,
+				Collections.singletonList(datasetNameA),
+				Collections.singletonList(datasetNameB),
+				Collections.singletonList(transformDatasetNameA),
+				Collections.singletonList(transformDatasetNameB),
+				transformScaleIndex,
 				boundsMin,
 				boundsMax,
-				stepSize);
+				stepSize,
+				gridOffsets,
+				occupancyScaleIndex,
+				minForegroundRatio,
+				flowParam);
 	}
 
 
@@ -578,6 +667,10 @@ public class SparkPairAlignFlow {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final ArrayList<String> datasetNamesA = new ArrayList<>();
+		final ArrayList<String> datasetNamesB = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesB = new ArrayList<>();
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -589,25 +682,30 @@ public class SparkPairAlignFlow {
 					gridOffsets.size());
 			System.out.println();
 
-			alignPairFlow(
-					sc,
-					options.getN5Path(),
-					options.getInGroup(),
-					options.getOutGroup(),
-					datasetNames[i],
-					datasetNames[i + 1],
-					transformDatasetNames[i],
-					transformDatasetNames[i + 1],
-					options.getTransformScaleIndex(),
-					boundsMin,
-					boundsMax,
-					options.getStepSize(),
-					gridOffsets,
-					(short)Math.ceil(Math.abs(options.getMaxFilterEpsilon())),
-					options.getSigma(),
-					3);
+			datasetNamesA.add(datasetNames[i]);
+			datasetNamesB.add(datasetNames[i + 1]);
+			transformDatasetNamesA.add(transformDatasetNames[i]);
+			transformDatasetNamesB.add(transformDatasetNames[i + 1]);
 		}
 
+		alignAllPairsFlow(
+				sc,
+				options.getN5Path(),
+				options.getInGroup(),
+				options.getOutGroup(),
+				datasetNamesA,
+				datasetNamesB,
+				transformDatasetNamesA,
+				transformDatasetNamesB,
+				options.getTransformScaleIndex(),
+				boundsMin,
+				boundsMax,
+				options.getStepSize(),
+				gridOffsets,
+				options.getOccupancyScaleIndex(),
+				options.getMinOccupancy(),
+				options.createFlowParam());
+
 		sc.close();
 	}
 }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
@@ -29,36 +30,28 @@ import org.apache.spark.api.java.JavaPairRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Features;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.Spark;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
-import org.janelia.saalfeldlab.n5.DataType;
-import org.janelia.saalfeldlab.n5.DatasetAttributes;
-import org.janelia.saalfeldlab.n5.GzipCompression;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
-import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
 import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.InterpolatedAffineModel2D;
+import mpicbg.models.Model;
 import mpicbg.models.RigidModel2D;
-import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.img.array.ArrayLocalizingCursor;
 import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.RealTransform;
-import net.imglib2.realtransform.RealTransformSequence;
-import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 import scala.Tuple2;
 
 /**
@@ -95,6 +88,33 @@ public class SparkPairAlignSIFT {
 		@Option(name = "--maxEpsilon", required = true, usage = "residual threshold for filter in world pixels")
 		private double maxFilterEpsilon = 50.0;
 
+		@Option(name = "--filterConfidence", required = false, usage = "stop each RANSAC of the filter as soon as a larger consensus set is missed with a probability < 1 - filterConfidence, e.g. 0.999, <= 0 means a fixed number of iterations")
+		private double filterConfidence = 0;
+
+		@Option(name = "--filterThreads", required = false, usage = "threads of each RANSAC of the filter if filterConfidence > 0, Spark tasks already run in parallel, so this only pays off with few grid cells per executor core")
+		private int filterThreads = 1;
+
+		@Option(name = "--featuresGroup", required = false, usage = "N5 group to cache features of each face in, they are loaded from there if extracted with the same parameters and prior transform before, e.g. /features")
+		private String featuresGroup = null;
+
+		@Option(name = "--featureMatcher", required = false, usage = "descriptor matching, EXACT, KD_FOREST (approximate), or SPATIAL_HASH (within --matchRadius)")
+		private FeatureMatcher.Method featureMatcher = FeatureMatcher.Method.EXACT;
+
+		@Option(name = "--matchRadius", required = false, usage = "max distance of matching features after the prior transforms in world pixels for SPATIAL_HASH, <= 0 means unconstrained")
+		private double matchRadius = 0;
+
+		@Option(name = "--maxNumFeatures", required = false, usage = "max number of SIFT features per grid cell and face, finest scale first with an even spatial spread, <= 0 means unlimited")
+		private int maxNumFeatures = 0;
+
+		@Option(name = "--matchesGroup", required = false, usage = "SparkPairAlignSIFTAverage only, N5 group to save candidate matches per pair and grid cell to, or to load them from if present and only filter and solve, e.g. /matches")
+		private String matchesGroup = null;
+
+		@Option(name = "--occupancyScaleIndex", required = false, usage = "scale index of a coarse pre-pass that skips grid cells without enough foreground in both faces, they keep the prior transform, e.g. 7, < 0 aligns all grid cells")
+		private int occupancyScaleIndex = -1;
+
+		@Option(name = "--minOccupancy", required = false, usage = "min fraction of foreground pixels in both faces for a grid cell to be aligned, cells without foreground are always skipped by the pre-pass")
+		private double minOccupancy = 0;
+
 		public Options(final String[] args) {
 
 			final CmdLineParser parser = new CmdLineParser(this);
@@ -164,9 +184,382 @@ public class SparkPairAlignSIFT {
 
 			return maxFilterEpsilon;
 		}
+
+		public double getFilterConfidence() {
+
+			return filterConfidence;
+		}
+
+		public int getFilterThreads() {
+
+			return filterThreads;
+		}
+
+		public String getFeaturesGroup() {
+
+			return featuresGroup;
+		}
+
+		public FeatureMatcher.Method getFeatureMatcher() {
+
+			return featureMatcher;
+		}
+
+		public double getMatchRadius() {
+
+			return matchRadius > 0 ? matchRadius : Double.POSITIVE_INFINITY;
+		}
+
+		public int getMaxNumFeatures() {
+
+			return maxNumFeatures;
+		}
+
+		public String getMatchesGroup() {
+
+			return matchesGroup;
+		}
+
+		public int getOccupancyScaleIndex() {
+
+			return occupancyScaleIndex;
+		}
+
+		public double getMinOccupancy() {
+
+			return minOccupancy;
+		}
 	}
 
 	/**
+	 * SIFT parameters for extraction tiles such that a tile covers the same
+	 * range of feature scales relative to its size as a single grid cell.
+	 *
+	 * @param haloSize tile width including the halo
+	 * @param maxScale
+	 * @param minScale
+	 * @return
+	 */
+	private static FloatArray2DSIFT.Param createTileSIFTParam(
+			final long haloSize,
+			final double maxScale,
+			final double minScale) {
+
+		return Align.createSIFTParam(haloSize, haloSize, maxScale, minScale, 4);
+	}
+
+	/**
+	 * Hash of the SIFT parameters of {@link #extractGridCellFeatures} for a
+	 * grid cell width, e.g. for keys of data derived from the features.
+	 *
+	 * @param gridCellWidth
+	 * @param maxScale
+	 * @param minScale
+	 * @return
+	 */
+	public static long hashGridCellSIFTParam(
+			final long gridCellWidth,
+			final double maxScale,
+			final double minScale) {
+
+		return Features.hash(createTileSIFTParam(gridCellWidth * 2 + gridCellWidth / 2 * 2, maxScale, minScale));
+	}
+
+	/**
+	 * Extract the SIFT features of a transformed section in the interior of
+	 * a tile and its halo, or load them from the feature cache.  Features
+	 * that were extracted are saved to the cache if cacheDatasetName is not
+	 * null.
+	 *
+	 * @param n5
+	 * @param n5Path of n5, for the executor-wide transform cache
+	 * @param dataset
+	 * @param scaleIndex
+	 * @param transformDataset
+	 * @param haloInterval
+	 * @param p
+	 * @param cacheDatasetName null for no caching
+	 * @param gridPosition of the tile in the cache dataset
+	 * @return
+	 * @throws IOException
+	 */
+	private static ArrayList<Feature> extractTileFeatures(
+			final N5Writer n5,
+			final String n5Path,
+			final String dataset,
+			final int scaleIndex,
+			final String transformDataset,
+			final FinalInterval haloInterval,
+			final FloatArray2DSIFT.Param p,
+			final String cacheDatasetName,
+			final long[] gridPosition) throws IOException {
+
+		if (cacheDatasetName != null) {
+			final ArrayList<Feature> features = Features.loadBlock(n5, cacheDatasetName, gridPosition);
+			if (features != null)
+				return features;
+		}
+
+		final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5, dataset + "/s" + scaleIndex);
+		final RealTransform transform = Transform.loadCachedScaledTransform(n5Path, transformDataset);
+		final RandomAccessibleInterval<FloatType> transformed = Transform.createTransformedInterval(
+				source,
+				haloInterval,
+				Transform.createScaledRealTransform(transform, scaleIndex),
+				new FloatType(0));
+
+		final ArrayList<Feature> features = Align.extractFeatures(transformed, p);
+
+		if (cacheDatasetName != null)
+			Features.saveBlock(n5, cacheDatasetName, gridPosition, features);
+
+		return features;
+	}
+
+	/**
+	 * Create the feature cache dataset of a face for
+	 * {@link #extractGridCellFeatures}.
+	 *
+	 * @param n5
+	 * @param featuresGroupName
+	 * @param datasetName
+	 * @param scaleIndex
+	 * @param paramHash
+	 * @param tilingHash
+	 * @param transformDatasetName prior transform of the face
+	 * @param gridDimensions number of tiles per dimension
+	 * @return the cache dataset name or null if the prior transform has no
+	 *     version and features are not cached
+	 * @throws IOException
+	 */
+	private static String createFeatureCache(
+			final N5Writer n5,
+			final String featuresGroupName,
+			final String datasetName,
+			final int scaleIndex,
+			final long paramHash,
+			final long tilingHash,
+			final String transformDatasetName,
+			final long[] gridDimensions) throws IOException {
+
+		final Long transformHash = Features.hash(n5, transformDatasetName);
+		if (transformHash == null) {
+			System.out.println(transformDatasetName + " has no version, features of " + datasetName + " are not cached");
+			return null;
+		}
+
+		final String cacheDatasetName = Features.cacheDatasetName(
+				featuresGroupName,
+				datasetName,
+				scaleIndex,
+				paramHash,
+				tilingHash,
+				transformHash);
+		Features.createCache(n5, cacheDatasetName, gridDimensions);
+		return cacheDatasetName;
+	}
+
+	/**
+	 * Extract SIFT features of the transformed sections A and B of a number
+	 * of pairs once per face and distribute them to the 50% overlapping grid
+	 * cells.  All pairs are processed in one Spark job.  Features are
+	 * extracted on tiles of two grid cells width with a halo of half a grid
+	 * cell to avoid edge effects, only features in the tile interior are
+	 * kept.  The octave sizes are chosen such that the tiles cover the same
+	 * range of feature scales as a single grid cell.  Feature locations are
+	 * in scaled face coordinates.
+	 *
+	 * @param sc Spark context
+	 * @param n5Path
+	 * @param datasetsA multi-scale dataset groups per pair, dataset path is datasetA + "/s" + scaleIndex
+	 * @param datasetsB multi-scale dataset groups per pair, dataset path is datasetB + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformADatasets scaled transform datasets A per pair, scale is resolved from scale property
+	 * @param transformBDatasets scaled transform datasets B per pair, scale is resolved from scale property
+	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
+	 * @param scaledCeilMax scaled (according to scaleIndex above) and ceil rounded max coordinates of bounding box
+	 * @param gridCellWidth
+	 * @param gridOffsets
+	 * @param maxScale max octave size relative to the tile with halo
+	 * @param minScale min octave size relative to the tile with halo
+	 * @param featuresGroupName N5 group of the feature caches, features of
+	 *     tiles are loaded from the cache dataset of each face if they were
+	 *     extracted with the same parameters and prior transform before, and
+	 *     saved there otherwise, null to not cache features
+	 * @param maxNumFeatures max number of features of A and B per grid cell,
+	 *     selected by {@link Align#limitFeatures}, &lt;= 0 means unlimited
+	 * @param occupied per pair, indexed like gridOffsets, only occupied grid
+	 *     cells and the tiles they overlap are processed, null for all
+	 * @return features of A and B per grid cell, keyed by pair index and
+	 *     grid cell offset
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> extractGridCellFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetsA,
+			final List<String> datasetsB,
+			final int scaleIndex,
+			final List<String> transformADatasets,
+			final List<String> transformBDatasets,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final double maxScale,
+			final double minScale,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final List<boolean[]> occupied) throws IOException {
+
+		final int tileSize = (int)gridCellWidth * 2;
+		final long halo = gridCellWidth / 2;
+
+		/* grid cells reach up to one cell width beyond the last offset */
+		final FinalInterval tilesInterval = new FinalInterval(
+				scaledFloorMin,
+				new long[]{scaledCeilMax[0] + gridCellWidth - 1, scaledCeilMax[1] + gridCellWidth - 1});
+		final List<long[]> tileOffsets = Grid.createOffsets(
+				tilesInterval,
+				new int[]{tileSize, tileSize});
+
+		final ArrayList<String> cacheDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> cacheDatasetNamesB = new ArrayList<>();
+		if (featuresGroupName != null) {
+			final N5Writer n5 = new N5FSWriter(n5Path);
+			final long[] gridDimensions = new long[]{
+					(tilesInterval.dimension(0) + tileSize - 1) / tileSize,
+					(tilesInterval.dimension(1) + tileSize - 1) / tileSize};
+			final long paramHash = hashGridCellSIFTParam(gridCellWidth, maxScale, minScale);
+			final long tilingHash = Features.hash(scaledFloorMin[0], scaledFloorMin[1], tileSize, halo);
+			for (int i = 0; i < datasetsA.size(); ++i) {
+				cacheDatasetNamesA.add(createFeatureCache(n5, featuresGroupName, datasetsA.get(i), scaleIndex, paramHash, tilingHash, transformADatasets.get(i), gridDimensions));
+				cacheDatasetNamesB.add(createFeatureCache(n5, featuresGroupName, datasetsB.get(i), scaleIndex, paramHash, tilingHash, transformBDatasets.get(i), gridDimensions));
+			}
+		} else {
+			for (int i = 0; i < datasetsA.size(); ++i) {
+				cacheDatasetNamesA.add(null);
+				cacheDatasetNamesB.add(null);
+			}
+		}
+
+		final JavaRDD<Tuple2<Integer, long[]>> tiles;
+		if (occupied == null)
+			tiles = Spark.parallelizeGridCells(sc, datasetsA.size(), tileOffsets);
+		else {
+			/* tiles that overlap an occupied grid cell */
+			final ArrayList<boolean[]> occupiedTiles = new ArrayList<>();
+			for (final boolean[] occupiedCells : occupied) {
+				final boolean[] occupiedTile = new boolean[tileOffsets.size()];
+				for (int j = 0; j < gridOffsets.size(); ++j) {
+					if (!occupiedCells[j])
+						continue;
+					final long[] offset = gridOffsets.get(j);
+					for (int k = 0; k < occupiedTile.length; ++k) {
+						final long[] tileOffset = tileOffsets.get(k);
+						occupiedTile[k] |=
+								offset[0] < tileOffset[0] + tileSize && tileOffset[0] < offset[0] + gridCellWidth &&
+								offset[1] < tileOffset[1] + tileSize && tileOffset[1] < offset[1] + gridCellWidth;
+					}
+				}
+				occupiedTiles.add(occupiedTile);
+			}
+			tiles = Spark.parallelizeGridCells(sc, tileOffsets, occupiedTiles, true);
+		}
+
+		final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> features =
+				tiles.flatMapToPair(tile -> {
+
+					final N5Writer n5 = new N5FSWriter(n5Path);
+					final int pairIndex = tile._1();
+					final long[] tileOffset = tile._2();
+					final long[] gridPosition = new long[]{
+							(tileOffset[0] - scaledFloorMin[0]) / tileSize,
+							(tileOffset[1] - scaledFloorMin[1]) / tileSize};
+					final FinalInterval haloInterval = new FinalInterval(
+							new long[]{tileOffset[0] - halo, tileOffset[1] - halo},
+							new long[]{tileOffset[0] + tileSize + halo - 1, tileOffset[1] + tileSize + halo - 1});
+					final FloatArray2DSIFT.Param p = createTileSIFTParam(tileSize + 2 * halo, maxScale, minScale);
+
+					final ArrayList<Feature> featuresA = extractTileFeatures(
+							n5,
+							n5Path,
+							datasetsA.get(pairIndex),
+							scaleIndex,
+							transformADatasets.get(pairIndex),
+							haloInterval,
+							p,
+							cacheDatasetNamesA.get(pairIndex),
+							gridPosition);
+					final ArrayList<Feature> featuresB = extractTileFeatures(
+							n5,
+							n5Path,
+							datasetsB.get(pairIndex),
+							scaleIndex,
+							transformBDatasets.get(pairIndex),
+							haloInterval,
+							p,
+							cacheDatasetNamesB.get(pairIndex),
+							gridPosition);
+
+					final ArrayList<Tuple2<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>>> cells = new ArrayList<>();
+					for (int j = 0; j < gridOffsets.size(); ++j) {
+						if (occupied != null && !occupied.get(pairIndex)[j])
+							continue;
+						final long[] offset = gridOffsets.get(j);
+						final long[] min = new long[]{
+								Math.max(offset[0], tileOffset[0]),
+								Math.max(offset[1], tileOffset[1])};
+						final long[] max = new long[]{
+								Math.min(offset[0] + gridCellWidth, tileOffset[0] + tileSize),
+								Math.min(offset[1] + gridCellWidth, tileOffset[1] + tileSize)};
+						if (min[0] >= max[0] || min[1] >= max[1])
+							continue;
+
+						/* limit already here to not shuffle features that will be dropped */
+						final double[] realMin = new double[]{min[0], min[1]};
+						final double[] realMax = new double[]{max[0], max[1]};
+						cells.add(
+								new Tuple2<>(
+										new Tuple2<>(pairIndex, new Tuple2<>(offset[0], offset[1])),
+										new Tuple2<>(
+												Align.limitFeatures(featuresA, realMin, realMax, maxNumFeatures),
+												Align.limitFeatures(featuresB, realMin, realMax, maxNumFeatures))));
+					}
+
+					return cells.iterator();
+				});
+
+		final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> cellFeatures = features.reduceByKey(
+				(x, y) -> {
+					final ArrayList<Feature> featuresA = new ArrayList<>(x._1());
+					featuresA.addAll(y._1());
+					final ArrayList<Feature> featuresB = new ArrayList<>(x._2());
+					featuresB.addAll(y._2());
+					return new Tuple2<>(featuresA, featuresB);
+				});
+
+		if (maxNumFeatures <= 0)
+			return cellFeatures;
+
+		return cellFeatures.mapToPair(
+				cell -> {
+					final Tuple2<Long, Long> offset = cell._1()._2();
+					final double[] realMin = new double[]{offset._1(), offset._2()};
+					final double[] realMax = new double[]{realMin[0] + gridCellWidth, realMin[1] + gridCellWidth};
+					return new Tuple2<>(
+							cell._1(),
+							new Tuple2<>(
+									Align.limitFeatures(cell._2()._1(), realMin, realMax, maxNumFeatures),
+									Align.limitFeatures(cell._2()._2(), realMin, realMax, maxNumFeatures)));
+				});
+	}
+
+	/**
+	 * Extract SIFT features of the transformed sections A and B once per
+	 * face and distribute them to the 50% overlapping grid cells.
+	 *
+	 * @see #extractGridCellFeatures(JavaSparkContext, String, List, List, int, List, List, long[], long[], long, List, double, double, boolean, int, List)
 	 *
 	 * @param sc Spark context
 	 * @param n5Path
@@ -175,6 +568,111 @@ public class SparkPairAlignSIFT {
 	 * @param scaleIndex
 	 * @param transformADataset scaled transform dataset A, scale is resolved from scale property
 	 * @param transformBDataset scaled transform dataset B, scale is resolved from scale property
+	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
+	 * @param scaledCeilMax scaled (according to scaleIndex above) and ceil rounded max coordinates of bounding box
+	 * @param gridCellWidth
+	 * @param gridOffsets
+	 * @param maxScale max octave size relative to the tile with halo
+	 * @param minScale min octave size relative to the tile with halo
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @return features of A and B per grid cell, keyed by grid cell offset
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Long, Long>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> extractGridCellFeatures(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final double maxScale,
+			final double minScale,
+			final String featuresGroupName,
+			final int maxNumFeatures) throws IOException {
+
+		return extractGridCellFeatures(
+				sc,
+				n5Path,
+				Collections.singletonList(datasetA),
+				Collections.singletonList(datasetB),
+				scaleIndex,
+				Collections.singletonList(transformADataset),
+				Collections.singletonList(transformBDataset),
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				maxScale,
+				minScale,
+				featuresGroupName,
+				maxNumFeatures,
+				null).mapToPair(cell -> new Tuple2<>(cell._1()._2(), cell._2()));
+	}
+
+	/**
+	 * Create the consensus filter of a grid cell.  This is a
+	 * {@link MultiConsensusFilter} with maxIterations RANSAC iterations per
+	 * consensus set, or an {@link AdaptiveMultiConsensusFilter} that stops
+	 * earlier if filterConfidence &gt; 0.  Both refine the consensus sets with
+	 * the same maxTrust.
+	 *
+	 * @param modelSupplier
+	 * @param maxIterations
+	 * @param maxEpsilon
+	 * @param minInlierRatio
+	 * @param minNumInliers
+	 * @param filterConfidence &lt;= 0 for a fixed number of iterations
+	 * @param filterThreads threads of each RANSAC of the
+	 *     {@link AdaptiveMultiConsensusFilter}, ignored otherwise
+	 * @return
+	 */
+	public static <M extends Model<?>> ConsensusFilter createConsensusFilter(
+			final Supplier<M> modelSupplier,
+			final int maxIterations,
+			final double maxEpsilon,
+			final double minInlierRatio,
+			final int minNumInliers,
+			final double filterConfidence,
+			final int filterThreads) {
+
+		if (filterConfidence > 0)
+			return new AdaptiveMultiConsensusFilter<>(
+					modelSupplier,
+					maxIterations,
+					maxEpsilon,
+					minInlierRatio,
+					minNumInliers,
+					MultiConsensusFilter.DEFAULT_MAX_TRUST,
+					filterConfidence,
+					filterThreads,
+					0);
+		else
+			return new MultiConsensusFilter<>(
+					modelSupplier,
+					maxIterations,
+					maxEpsilon,
+					minInlierRatio,
+					minNumInliers,
+					MultiConsensusFilter.DEFAULT_MAX_TRUST);
+	}
+
+	/**
+	 * Align the grid cells of a number of pairs in one Spark job.
+	 *
+	 * @param sc Spark context
+	 * @param n5Path
+	 * @param datasetsA multi-scale dataset groups per pair, dataset path is datasetA + "/s" + scaleIndex
+	 * @param datasetsB multi-scale dataset groups per pair, dataset path is datasetB + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformADatasets scaled transform datasets A per pair, scale is resolved from scale property
+	 * @param transformBDatasets scaled transform datasets B per pair, scale is resolved from scale property
 	 * @param boundsMin min coordinates of bounding box in world coordinates (not scaled)
 	 * @param boundsMax max coordinates of bounding box in world coordinates (not scaled)
 	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
@@ -184,17 +682,25 @@ public class SparkPairAlignSIFT {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
-	 * @return
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @param occupied per pair, indexed like gridOffsets, only occupied grid
+	 *     cells are aligned, null for all
+	 * @return affines keyed by pair index and grid cell offset
 	 * @throws IOException
 	 */
-	public static JavaPairRDD<long[], double[]> alignSIFT(
+	public static JavaPairRDD<Tuple2<Integer, long[]>, double[]> alignSIFT(
 			final JavaSparkContext sc,
 			final String n5Path,
-			final String datasetA,
-			final String datasetB,
+			final List<String> datasetsA,
+			final List<String> datasetsB,
 			final int scaleIndex,
-			final String transformADataset,
-			final String transformBDataset,
+			final List<String> transformADatasets,
+			final List<String> transformBDatasets,
 			final double[] boundsMin,
 			final double[] boundsMax,
 			final long[] scaledFloorMin,
@@ -203,43 +709,38 @@ public class SparkPairAlignSIFT {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher,
+			final List<boolean[]> occupied) throws IOException {
 
 		final double scale = 1.0 / (1 << scaleIndex);
 
-		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
-
-		final JavaPairRDD<long[], double[]> affines =
-				offsets.mapToPair(offset -> {
-
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
-
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							transformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							transformBDataset);
-
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
+		final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> features = extractGridCellFeatures(
+				sc,
+				n5Path,
+				datasetsA,
+				datasetsB,
+				scaleIndex,
+				transformADatasets,
+				transformBDatasets,
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				1.0,
+				0.5,
+				featuresGroupName,
+				maxNumFeatures,
+				occupied);
 
-					final FinalInterval gridBlockInterval =
-							new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
+		final JavaPairRDD<Tuple2<Integer, long[]>, double[]> affines =
+				features.mapToPair(cell -> {
 
-					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
-					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
+					final long[] offset = new long[]{cell._1()._2()._1(), cell._1()._2()._2()};
 
 					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
 							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
@@ -253,213 +754,108 @@ public class SparkPairAlignSIFT {
 								(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
 								lambdaFilter);
 
-					final MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>> filter = new MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>>(
+					final ConsensusFilter filter = SparkPairAlignSIFT.createConsensusFilter(
 							filterModelSupplier,
 							10000,
 							maxFilterEpsilon,
 							0.0,
-							7);
-
-					final AffineTransform2D transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignSIFT(
-							gridBlockB,
-							gridBlockA,
-							1.0,
-							0.5,
-							4,
+							7,
+							filterConfidence,
+							filterThreads);
+
+					final AffineTransform2D transform = Align.<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, AffineTransform2D>alignFeatures(
+							cell._2()._2(),
+							cell._2()._1(),
 							0.92,
 							1.0 / scale,
 							filter,
+							matcher,
 							modelSupplier,
 							Transform::convertAndInvertAffine2DtoAffineTransform2D);
 
-					return new Tuple2<long[], double[]>(offset, transform == null ? null : transform.getRowPackedCopy());
+					return new Tuple2<Tuple2<Integer, long[]>, double[]>(
+							new Tuple2<>(cell._1()._1(), offset),
+							transform == null ? null : transform.getRowPackedCopy());
 				});
 
 		return affines;
 	}
 
 	/**
-	 * This is for 2D affine transforms only.
 	 *
-	 * @param affines
-	 * @param n5Path
-	 * @param priorTransformDatasetName
-	 * @param priorTransformScaleIndex
-	 * @param datasetBaseName
-	 * @param boundsMin
-	 * @param boundsMax
-	 * @param stepSize
-	 * @param transformScale
-	 */
-	public static JavaRDD<long[]> saveAccumulatedAffineGridCells(
-			final JavaPairRDD<long[], double[]> affines,
-			final String n5Path,
-			final String priorTransformDatasetName,
-			final String datasetBaseName,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize,
-			final double transformScale) {
-
-		final JavaRDD<long[]> gridCells = affines.map(
-				t -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final RealTransform priorTransform = Transform.loadScaledTransform(
-							n5,
-							priorTransformDatasetName);
-					final long[] gridOffset = Grid.gridCell(
-							t._1(),
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-					final String datasetName = datasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1];
-					final RealTransformSequence transformSequence = new RealTransformSequence();
-					if (t._2() != null) {
-						final AffineTransform2D transform = new AffineTransform2D();
-						transform.set(t._2());
-						transformSequence.add(transform);
-					}
-					transformSequence.add(priorTransform);
-					Transform.saveScaledTransformBlock(
-							n5,
-							datasetName,
-							transformSequence,
-							transformScale,
-							boundsMin,
-							boundsMax,
-							gridOffset,
-							new int[] {stepSize, stepSize});
-
-					return t._1();
-				});
-
-		return gridCells;
-	}
-
-
-	/**
-	 * This is for 2D transformation fields only
-	 *
-	 * @param affines
+	 * @param sc Spark context
 	 * @param n5Path
-	 * @param transformDatasetBaseName
-	 * @param transformScale
-	 * @param boundsMin
-	 * @param boundsMax
-	 * @param stepSize
+	 * @param datasetA multi-scale dataset group, dataset path is datasetA + "/s" + scaleIndex
+	 * @param datasetB multi-scale dataset group, dataset path is datasetA + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformADataset scaled transform dataset A, scale is resolved from scale property
+	 * @param transformBDataset scaled transform dataset B, scale is resolved from scale property
+	 * @param boundsMin min coordinates of bounding box in world coordinates (not scaled)
+	 * @param boundsMax max coordinates of bounding box in world coordinates (not scaled)
+	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
+	 * @param scaledCeilMax scaled (according to scaleIndex above) and ceil rounded max coordinates of bounding box
+	 * @param gridCellWidth
+	 * @param gridOffsets
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @return
 	 * @throws IOException
 	 */
-	public static JavaRDD<long[]> composeOverlappingTransformGridCells(
-			final JavaRDD<long[]> gridCells,
+	public static JavaPairRDD<long[], double[]> alignSIFT(
+			final JavaSparkContext sc,
 			final String n5Path,
-			final String transformDatasetBaseName,
-			final double transformScale,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
 			final double[] boundsMin,
 			final double[] boundsMax,
-			final int stepSize) throws IOException {
-
-		final DatasetAttributes attributes = Transform.createScaledTransformDataset(
-				new N5FSWriter(n5Path),
-				transformDatasetBaseName,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher) throws IOException {
+
+		return alignSIFT(
+				sc,
+				n5Path,
+				Collections.singletonList(datasetA),
+				Collections.singletonList(datasetB),
+				scaleIndex,
+				Collections.singletonList(transformADataset),
+				Collections.singletonList(transformBDataset),
 				boundsMin,
 				boundsMax,
-				transformScale,
-				new int[] {stepSize, stepSize});
-
-		final long[] dimensions = attributes.getDimensions();
-
-		final JavaRDD<long[]> mappedGridCells = gridCells.map(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-
-					final long[] intervalMin = new long[]{gridOffset[0] * stepSize, gridOffset[1] * stepSize, 0};
-					final long[] intervalMax = new long[]{
-							Math.min(dimensions[0], intervalMin[0] + stepSize) - 1,
-							Math.min(dimensions[1], intervalMin[1] + stepSize) - 1,
-							1};
-
-					System.out.println(Arrays.toString(gridOffset) + " : " + Arrays.toString(intervalMin) + " > " + Arrays.toString(intervalMax) + " : " + transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1));
-
-					final IntervalView<DoubleType> t00 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t01 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + Math.max(0, gridOffset[0] - 1) + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t10 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + Math.max(0, gridOffset[1] - 1)),
-									intervalMin,
-									intervalMax);
-					final IntervalView<DoubleType> t11 =
-							Views.interval(
-									N5Utils.<DoubleType>open(n5, transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]),
-									intervalMin,
-									intervalMax);
-
-					final Cursor<DoubleType> c00 = t00.cursor();
-					final Cursor<DoubleType> c01 = t01.cursor();
-					final Cursor<DoubleType> c10 = t10.cursor();
-					final Cursor<DoubleType> c11 = t11.cursor();
-
-					final ArrayImg<DoubleType, ?> tt = ArrayImgs.doubles(t00.dimension(0), t00.dimension(1), 2);
-					final ArrayLocalizingCursor<DoubleType> c = tt.localizingCursor();
-
-					while (c.hasNext()) {
-						final DoubleType v = c.next();
-						final DoubleType v00 = c00.next();
-						final DoubleType v01 = c01.next();
-						final DoubleType v10 = c10.next();
-						final DoubleType v11 = c11.next();
-						final double lambdaX = c.getDoublePosition(0) / stepSize;
-						final double lambdaY = c.getDoublePosition(1) / stepSize;
-						final double d0 = (v10.get() - v00.get()) * lambdaX + v00.get();
-						final double d1 = (v11.get() - v01.get()) * lambdaX + v01.get();
-						v.set((d1 - d0) * lambdaY + d0);
-					}
-
-					final DatasetAttributes targetAttributes = new DatasetAttributes(
-							dimensions,
-							new int[]{stepSize, stepSize, 2},
-							DataType.FLOAT64,
-							new GzipCompression());
-					N5Utils.saveBlock(tt, n5, transformDatasetBaseName, targetAttributes, Arrays.copyOf(gridOffset, 3));
-
-					return cell;
-				});
-
-		return mappedGridCells;
-	}
-
-
-	public static void deleteGridCells(
-			final JavaRDD<long[]> gridCells,
-			final String n5Path,
-			final String transformDatasetBaseName,
-			final double transformScale,
-			final double[] boundsMin,
-			final double[] boundsMax,
-			final int stepSize) {
-
-		gridCells.foreach(
-				cell -> {
-					final N5Writer n5 = new N5FSWriter(n5Path);
-					final long[] gridOffset = Grid.gridCell(
-							cell,
-							Grid.floorScaled(boundsMin, transformScale),
-							new int[]{stepSize, stepSize});
-					n5.remove(transformDatasetBaseName + "." + gridOffset[0] + "-" + gridOffset[1]);
-				});
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				filterConfidence,
+				filterThreads,
+				featuresGroupName,
+				maxNumFeatures,
+				matcher,
+				null).mapToPair(cell -> new Tuple2<>(cell._1()._2(), cell._2()));
 	}
 
-
 	public static void reSaveTransforms(
 			final JavaSparkContext sc,
 			final String n5Path,
@@ -491,19 +887,26 @@ public class SparkPairAlignSIFT {
 
 
 	/**
-	 * Align a pair of transformed N5 sections using SIFT and affine models on
-	 * a grid of 50% overlapping cells.  The resulting alignment is the
-	 * composition of the prior transform and the interpolant over the grid.
+	 * Align a number of pairs of transformed N5 sections using SIFT and
+	 * affine models on a grid of 50% overlapping cells.  Alignment and
+	 * composition run in one Spark job for the grid cells of all pairs.  The
+	 * transforms of overlapping grid cells are blended in memory and each
+	 * block of the resulting transforms is written once.  The resulting
+	 * alignment of each B is the composition of its prior transform and the
+	 * interpolant over the grid.
 	 * For grid cells, that do not return an alignment model, the prior
-	 * transformation is used.
+	 * transformation is used.  Optionally, a coarse occupancy pre-pass
+	 * prunes grid cells with too little foreground in A or B, these keep
+	 * the prior transform without extracting features.
 	 *
 	 * @param sc
 	 * @param n5Path
 	 * @param inGroupName
 	 * @param outGroupName
-	 * @param datasetNames
-	 * @param indexA
-	 * @param indexB
+	 * @param datasetNamesA per pair
+	 * @param datasetNamesB per pair
+	 * @param transformDatasetNamesA per pair
+	 * @param transformDatasetNamesB per pair
 	 * @param transformScaleIndex
 	 * @param boundsMin
 	 * @param boundsMax
@@ -512,17 +915,27 @@ public class SparkPairAlignSIFT {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @param occupancyScaleIndex scale level of the occupancy pre-pass, &lt; 0
+	 *     to align all grid cells
+	 * @param minForegroundRatio min fraction of foreground pixels of an
+	 *     occupied grid cell
 	 * @throws IOException
 	 */
-	public static void alignPairSIFT(
+	public static void alignAllPairsSIFT(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String inGroupName,
 			final String outGroupName,
-			final String datasetNameA,
-			final String datasetNameB,
-			final String transformDatasetNameA,
-			final String transformDatasetNameB,
+			final List<String> datasetNamesA,
+			final List<String> datasetNamesB,
+			final List<String> transformDatasetNamesA,
+			final List<String> transformDatasetNamesB,
 			final int transformScaleIndex,
 			final double[] boundsMin,
 			final double[] boundsMax,
@@ -530,21 +943,52 @@ public class SparkPairAlignSIFT {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaPairRDD<long[], double[]> affines = alignSIFT(
+		final ArrayList<String> inTransformDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> inTransformDatasetNamesB = new ArrayList<>();
+		final ArrayList<String> outTransformDatasetNamesB = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			inTransformDatasetNamesA.add(inGroupName + "/" + transformDatasetNamesA.get(i));
+			inTransformDatasetNamesB.add(inGroupName + "/" + transformDatasetNamesB.get(i));
+			outTransformDatasetNamesB.add(outGroupName + "/" + transformDatasetNamesB.get(i));
+		}
+
+		final ArrayList<boolean[]> occupied = occupancyScaleIndex < 0 ?
+				null :
+				Spark.occupiedGridCells(
+						sc,
+						n5Path,
+						datasetNamesA,
+						datasetNamesB,
+						occupancyScaleIndex,
+						inTransformDatasetNamesA,
+						inTransformDatasetNamesB,
+						transformScaleIndex,
+						gridOffsets,
+						stepSize * 2,
+						minForegroundRatio);
+
+		JavaPairRDD<Tuple2<Integer, long[]>, double[]> affines = alignSIFT(
 				sc,
 				n5Path,
-				datasetNameA,
-				datasetNameB,
+				datasetNamesA,
+				datasetNamesB,
 				transformScaleIndex,
-				inGroupName + "/" + transformDatasetNameA,
-				inGroupName + "/" + transformDatasetNameB,
+				inTransformDatasetNamesA,
+				inTransformDatasetNamesB,
 				boundsMin,
 				boundsMax,
 				floorScaledMin,
@@ -553,44 +997,121 @@ public class SparkPairAlignSIFT {
 				gridOffsets,
 				lambdaModel,
 				lambdaFilter,
-				maxFilterEpsilon);
-
-		affines.cache();
-		affines.count();
-
-		final JavaRDD<long[]> gridCells = saveAccumulatedAffineGridCells(
-				affines,
+				maxFilterEpsilon,
+				filterConfidence,
+				filterThreads,
+				featuresGroupName,
+				maxNumFeatures,
+				matcher,
+				occupied);
+
+		/* pruned grid cells pass the prior transform of B through */
+		if (occupied != null)
+			affines = affines.union(
+					Spark.parallelizeGridCells(sc, gridOffsets, occupied, false).mapToPair(
+							cell -> new Tuple2<Tuple2<Integer, long[]>, double[]>(cell, null)));
+
+		Spark.saveOverlappingGridCellBlocks(
+				Spark.accumulatedAffineGridCellBlocks(
+						affines,
+						n5Path,
+						inTransformDatasetNamesB,
+						boundsMin,
+						boundsMax,
+						stepSize,
+						scale),
 				n5Path,
-				inGroupName + "/" + transformDatasetNameB,
-				outGroupName + "/" + transformDatasetNameB,
-				boundsMin,
-				boundsMax,
-				stepSize,
-				scale);
-
-		gridCells.cache();
-		gridCells.count();
-
-		final JavaRDD<long[]> composedGridCells = composeOverlappingTransformGridCells(
-				gridCells,
-				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
+				outTransformDatasetNamesB,
 				scale,
 				boundsMin,
 				boundsMax,
 				stepSize);
+	}
 
-		composedGridCells.cache();
-		composedGridCells.count();
-
-		deleteGridCells(
-				composedGridCells,
+	/**
+	 * Align a pair of transformed N5 sections using SIFT and affine models on
+	 * a grid of 50% overlapping cells.  The resulting alignment is the
+	 * composition of the prior transform and the interpolant over the grid.
+	 * For grid cells, that do not return an alignment model, the prior
+	 * transformation is used.
+	 *
+	 * @see #alignAllPairsSIFT
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param inGroupName
+	 * @param outGroupName
+	 * @param datasetNameA
+	 * @param datasetNameB
+	 * @param transformDatasetNameA
+	 * @param transformDatasetNameB
+	 * @param transformScaleIndex
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @param gridOffsets
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @param occupancyScaleIndex
+	 * @param minForegroundRatio
+	 * @throws IOException
+	 */
+	public static void alignPairSIFT(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio) throws IOException {
+
+		alignAllPairsSIFT(
+				sc,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
-				scale,
+				inGroupName,
+				outGroupName,
+				Collections.singletonList(datasetNameA),
+				Collections.singletonList(datasetNameB),
+				Collections.singletonList(transformDatasetNameA),
+				Collections.singletonList(transformDatasetNameB),
+				transformScaleIndex,
 				boundsMin,
 				boundsMax,
-				stepSize);
+				stepSize,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				filterConfidence,
+				filterThreads,
+				featuresGroupName,
+				maxNumFeatures,
+				matcher,
+				occupancyScaleIndex,
+				minForegroundRatio);
 	}
 
 	public static final void main(final String... args) throws IOException, InterruptedException, ExecutionException {
@@ -644,6 +1165,10 @@ public class SparkPairAlignSIFT {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final ArrayList<String> datasetNamesA = new ArrayList<>();
+		final ArrayList<String> datasetNamesB = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesB = new ArrayList<>();
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -655,30 +1180,37 @@ public class SparkPairAlignSIFT {
 					gridOffsets.size());
 			System.out.println();
 
-			final String datasetNameA = datasetNames[i];
-			final String datasetNameB = datasetNames[i + 1];
-			final String transformDatasetNameA = transformDatasetNames[i];
-			final String transformDatasetNameB = transformDatasetNames[i + 1];
-
-			alignPairSIFT(
-					sc,
-					options.getN5Path(),
-					options.getInGroup(),
-					options.getOutGroup(),
-					datasetNameA,
-					datasetNameB,
-					transformDatasetNameA,
-					transformDatasetNameB,
-					options.getTransformScaleIndex(),
-					boundsMin,
-					boundsMax,
-					options.getStepSize(),
-					gridOffsets,
-					options.getLambdaModel(),
-					options.getLambdaFilter(),
-					options.getMaxFilterEpsilon());
+			datasetNamesA.add(datasetNames[i]);
+			datasetNamesB.add(datasetNames[i + 1]);
+			transformDatasetNamesA.add(transformDatasetNames[i]);
+			transformDatasetNamesB.add(transformDatasetNames[i + 1]);
 		}
 
+		alignAllPairsSIFT(
+				sc,
+				options.getN5Path(),
+				options.getInGroup(),
+				options.getOutGroup(),
+				datasetNamesA,
+				datasetNamesB,
+				transformDatasetNamesA,
+				transformDatasetNamesB,
+				options.getTransformScaleIndex(),
+				boundsMin,
+				boundsMax,
+				options.getStepSize(),
+				gridOffsets,
+				options.getLambdaModel(),
+				options.getLambdaFilter(),
+				options.getMaxFilterEpsilon(),
+				options.getFilterConfidence(),
+				options.getFilterThreads(),
+				options.getFeaturesGroup(),
+				options.getMaxNumFeatures(),
+				options.getFeatureMatcher().create(options.getMatchRadius()),
+				options.getOccupancyScaleIndex(),
+				options.getMinOccupancy());
+
 		sc.close();
 	}
 }
@@ -20,23 +20,25 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.function.Supplier;
 
 import org.apache.spark.SparkConf;
 import org.apache.spark.api.java.JavaPairRDD;
-import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.janelia.saalfeldlab.hotknife.util.Align;
+import org.janelia.saalfeldlab.hotknife.util.Features;
 import org.janelia.saalfeldlab.hotknife.util.Grid;
+import org.janelia.saalfeldlab.hotknife.util.PointMatches;
+import org.janelia.saalfeldlab.hotknife.util.Spark;
 import org.janelia.saalfeldlab.hotknife.util.Transform;
-import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
 import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
-import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
+import mpicbg.imagefeatures.Feature;
 import mpicbg.models.AffineModel2D;
 import mpicbg.models.ErrorStatistic;
 import mpicbg.models.IdentityModel;
@@ -48,12 +50,7 @@ import mpicbg.models.RigidModel2D;
 import mpicbg.models.Tile;
 import mpicbg.models.TileConfiguration;
 import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform2D;
-import net.imglib2.realtransform.RealTransform;
-import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.Views;
 import scala.Tuple2;
 
 /**
@@ -63,6 +60,255 @@ import scala.Tuple2;
  */
 public class SparkPairAlignSIFTAverage {
 
+	/* octave sizes relative to the extraction tiles */
+	final static private double MAX_SCALE = 1.0;
+	final static private double MIN_SCALE = 0.5;
+
+	/**
+	 * Extract and match features of A and B per grid cell for a number of
+	 * pairs in one Spark job.  These are the candidates for
+	 * {@link #filterSolveSIFTAverage(ArrayList, double, double, double, double)},
+	 * in world coordinates, B in p1 and A in p2.
+	 *
+	 * @param sc Spark context
+	 * @param n5Path
+	 * @param datasetsA multi-scale dataset groups per pair, dataset path is datasetA + "/s" + scaleIndex
+	 * @param datasetsB multi-scale dataset groups per pair, dataset path is datasetB + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformADatasets scaled transform datasets A per pair, scale is resolved from scale property
+	 * @param transformBDatasets scaled transform datasets B per pair, scale is resolved from scale property
+	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
+	 * @param scaledCeilMax scaled (according to scaleIndex above) and ceil rounded max coordinates of bounding box
+	 * @param gridCellWidth
+	 * @param gridOffsets
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @param occupied per pair, indexed like gridOffsets, only occupied grid
+	 *     cells are matched, null for all
+	 * @return candidate matches keyed by pair index and grid cell offset
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> matchSIFTAverage(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetsA,
+			final List<String> datasetsB,
+			final int scaleIndex,
+			final List<String> transformADatasets,
+			final List<String> transformBDatasets,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher,
+			final List<boolean[]> occupied) throws IOException {
+
+		final double scale = 1.0 / (1 << scaleIndex);
+
+		final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<ArrayList<Feature>, ArrayList<Feature>>> features = SparkPairAlignSIFT.extractGridCellFeatures(
+				sc,
+				n5Path,
+				datasetsA,
+				datasetsB,
+				scaleIndex,
+				transformADatasets,
+				transformBDatasets,
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				MAX_SCALE,
+				MIN_SCALE,
+				featuresGroupName,
+				maxNumFeatures,
+				occupied);
+
+		return features.mapToPair(
+				cell -> {
+					System.out.printf("%d and %d features selected.", cell._2()._2().size(), cell._2()._1().size());
+					System.out.println();
+
+					return new Tuple2<>(
+							cell._1(),
+							Align.matchFeatures(
+									Align.scaleFeatures(cell._2()._2(), 1.0 / scale),
+									Align.scaleFeatures(cell._2()._1(), 1.0 / scale),
+									0.92,
+									matcher));
+				});
+	}
+
+	/**
+	 * Extract and match features of A and B per grid cell.  These are the
+	 * candidates for {@link #filterSolveSIFTAverage(JavaPairRDD, double, double, double, double)},
+	 * in world coordinates, B in p1 and A in p2.
+	 *
+	 * @param sc Spark context
+	 * @param n5Path
+	 * @param datasetA multi-scale dataset group, dataset path is datasetA + "/s" + scaleIndex
+	 * @param datasetB multi-scale dataset group, dataset path is datasetA + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformADataset scaled transform dataset A, scale is resolved from scale property
+	 * @param transformBDataset scaled transform dataset B, scale is resolved from scale property
+	 * @param scaledFloorMin scaled (according to scaleIndex above) and floor rounded min coordinates of bounding box
+	 * @param scaledCeilMax scaled (according to scaleIndex above) and ceil rounded max coordinates of bounding box
+	 * @param gridCellWidth
+	 * @param gridOffsets
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @return candidate matches keyed by grid cell offset
+	 * @throws IOException
+	 */
+	public static JavaPairRDD<Tuple2<Long, Long>, ArrayList<PointMatch>> matchSIFTAverage(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String datasetA,
+			final String datasetB,
+			final int scaleIndex,
+			final String transformADataset,
+			final String transformBDataset,
+			final long[] scaledFloorMin,
+			final long[] scaledCeilMax,
+			final long gridCellWidth,
+			final List<long[]> gridOffsets,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher) throws IOException {
+
+		return matchSIFTAverage(
+				sc,
+				n5Path,
+				Collections.singletonList(datasetA),
+				Collections.singletonList(datasetB),
+				scaleIndex,
+				Collections.singletonList(transformADataset),
+				Collections.singletonList(transformBDataset),
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				featuresGroupName,
+				maxNumFeatures,
+				matcher,
+				null).mapToPair(cell -> new Tuple2<>(cell._1()._2(), cell._2()));
+	}
+
+	/**
+	 * Filter the candidate matches of one grid cell and solve for the pair
+	 * of affines that transform A and B half way each.
+	 *
+	 * @param candidates B in p1 and A in p2, not modified
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @return row packed affines of A and B, null if no model was found
+	 */
+	public static Tuple2<double[], double[]> filterSolveSIFTAverage(
+			final ArrayList<PointMatch> candidates,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads) {
+
+		/* e.g. pruned grid cells */
+		if (candidates.isEmpty())
+			return new Tuple2<>(null, null);
+
+		final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
+				new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
+					(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+					(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
+					lambdaModel);
+
+		final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> filterModelSupplier =
+				new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
+					(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
+					(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
+					lambdaFilter);
+
+		final ConsensusFilter filter = SparkPairAlignSIFT.createConsensusFilter(
+				filterModelSupplier,
+				2000,
+				maxFilterEpsilon,
+				0.0,
+				10,
+				filterConfidence,
+				filterThreads);
+
+		/* the filter removes from the candidates */
+		final ArrayList<PointMatch> cellCandidates = new ArrayList<>(candidates);
+		final ArrayList<PointMatch> matches = filter.filter(cellCandidates);
+
+		System.out.printf("%d of %d matches found.", matches.size(), candidates.size());
+		System.out.println();
+
+		final InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel> modelA =
+				new InterpolatedAffineModel2D<>(modelSupplier.get(), new IdentityModel(), 0.5);
+		final InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel> modelB =
+				new InterpolatedAffineModel2D<>(modelSupplier.get(), new IdentityModel(), 0.5);
+		final Tile<InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel>> tileA = new Tile<>(modelA);
+		final Tile<InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel>> tileB = new Tile<>(modelB);
+
+		tileB.connect(tileA, matches);
+
+		final TileConfiguration tc = new TileConfiguration();
+		tc.addTile(tileA);
+		tc.addTile(tileB);
+
+		AffineTransform2D tileATransform;
+		AffineTransform2D tileBTransform;
+		try {
+			tc.optimizeSilently(new ErrorStatistic(201), maxFilterEpsilon, 1000, 1000, 0.6);
+			tileATransform = Transform.convertAndInvertAffine2DtoAffineTransform2D(modelA);
+			tileBTransform = Transform.convertAndInvertAffine2DtoAffineTransform2D(modelB);
+		} catch (final IllDefinedDataPointsException | NotEnoughDataPointsException e) {
+			tileATransform = null;
+			tileBTransform = null;
+		}
+
+		return new Tuple2<>(
+				tileATransform == null ? null : tileATransform.getRowPackedCopy(),
+				tileBTransform == null ? null : tileBTransform.getRowPackedCopy());
+	}
+
+	/**
+	 * Filter candidate matches per grid cell and solve for the pair of
+	 * affines that transform A and B half way each.
+	 *
+	 * @param candidates candidate matches keyed by grid cell offset, B in p1
+	 *     and A in p2, not modified
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @return
+	 */
+	public static JavaPairRDD<long[], Tuple2<double[], double[]>> filterSolveSIFTAverage(
+			final JavaPairRDD<Tuple2<Long, Long>, ArrayList<PointMatch>> candidates,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads) {
+
+		final JavaPairRDD<long[], Tuple2<double[], double[]>> affines =
+				candidates.mapToPair(cell -> new Tuple2<>(
+						new long[]{cell._1()._1(), cell._1()._2()},
+						filterSolveSIFTAverage(cell._2(), lambdaModel, lambdaFilter, maxFilterEpsilon, filterConfidence, filterThreads)));
+
+		return affines;
+	}
+
 	/**
 	 *
 	 * @param sc Spark context
@@ -81,6 +327,12 @@ public class SparkPairAlignSIFTAverage {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matcher
 	 * @return
 	 * @throws IOException
 	 */
@@ -100,124 +352,266 @@ public class SparkPairAlignSIFTAverage {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher) throws IOException {
 
-		final double scale = 1.0 / (1 << scaleIndex);
+		final JavaPairRDD<Tuple2<Long, Long>, ArrayList<PointMatch>> candidates = matchSIFTAverage(
+				sc,
+				n5Path,
+				datasetA,
+				datasetB,
+				scaleIndex,
+				transformADataset,
+				transformBDataset,
+				scaledFloorMin,
+				scaledCeilMax,
+				gridCellWidth,
+				gridOffsets,
+				featuresGroupName,
+				maxNumFeatures,
+				matcher);
 
-		final JavaRDD<long[]> offsets = sc.parallelize(gridOffsets);
+		return filterSolveSIFTAverage(candidates, lambdaModel, lambdaFilter, maxFilterEpsilon, filterConfidence, filterThreads);
+	}
 
-		final JavaPairRDD<long[], Tuple2<double[], double[]>> affines =
-				offsets.mapToPair(offset -> {
-
-					final N5Reader n5Reader = new N5FSReader(n5Path);
-					final RandomAccessibleInterval<FloatType> a = N5Utils.open(n5Reader, datasetA + "/s" + scaleIndex);
-					final RandomAccessibleInterval<FloatType> b = N5Utils.open(n5Reader, datasetB + "/s" + scaleIndex);
-
-					final RealTransform transformA = Transform.loadScaledTransform(
-							n5Reader,
-							transformADataset);
-					final RealTransform transformB = Transform.loadScaledTransform(
-							n5Reader,
-							transformBDataset);
-
-					final RandomAccessibleInterval<FloatType> transformedA = Transform.createTransformedInterval(
-							a,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformA, scaleIndex),
-							new FloatType(0));
-
-					final RandomAccessibleInterval<FloatType> transformedB = Transform.createTransformedInterval(
-							b,
-							new FinalInterval(scaledFloorMin, scaledCeilMax),
-							Transform.createScaledRealTransform(transformB, scaleIndex),
-							new FloatType(0));
-
-					final FinalInterval gridBlockInterval =
-							new FinalInterval(offset, new long[]{offset[0] + gridCellWidth - 1, offset[1] + gridCellWidth - 1});
-
-					final IntervalView<FloatType> gridBlockA = Views.interval(transformedA, gridBlockInterval);
-					final IntervalView<FloatType> gridBlockB = Views.interval(transformedB, gridBlockInterval);
-
-					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> modelSupplier =
-							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
-								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
-								(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
-								lambdaModel);
-
-					final Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D> filterModelSupplier =
-							new Transform.InterpolatedAffineModel2DSupplier<AffineModel2D, RigidModel2D>(
-								(Supplier<AffineModel2D> & Serializable)AffineModel2D::new,
-								(Supplier<RigidModel2D> & Serializable)RigidModel2D::new,
-								lambdaFilter);
-
-					final MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>> filter = new MultiConsensusFilter<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>>(
-							filterModelSupplier,
-							2000,
-							maxFilterEpsilon,
-							0.0,
-							10);
-
-					final ArrayList<PointMatch> matches = Align.filterMatchSIFT(
-							gridBlockB,
-							gridBlockA,
-							1.0,
-							0.5,
-							4,
-							0.92,
-							1.0 / scale,
-							filter);
-
-					final InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel> modelA =
-							new InterpolatedAffineModel2D<>(modelSupplier.get(), new IdentityModel(), 0.5);
-					final InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel> modelB =
-							new InterpolatedAffineModel2D<>(modelSupplier.get(), new IdentityModel(), 0.5);
-					final Tile<InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel>> tileA = new Tile<>(modelA);
-					final Tile<InterpolatedAffineModel2D<InterpolatedAffineModel2D<AffineModel2D, RigidModel2D>, IdentityModel>> tileB = new Tile<>(modelB);
-
-					tileB.connect(tileA, matches);
-
-					final TileConfiguration tc = new TileConfiguration();
-					tc.addTile(tileA);
-					tc.addTile(tileB);
-
-					AffineTransform2D tileATransform;
-					AffineTransform2D tileBTransform;
-					try {
-						tc.optimizeSilently(new ErrorStatistic(201), maxFilterEpsilon, 1000, 1000, 0.6);
-						tileATransform = Transform.convertAndInvertAffine2DtoAffineTransform2D(modelA);
-						tileBTransform = Transform.convertAndInvertAffine2DtoAffineTransform2D(modelB);
-					} catch (final IllDefinedDataPointsException | NotEnoughDataPointsException e) {
-						tileATransform = null;
-						tileBTransform = null;
-					}
+	/**
+	 * Key of the candidate matches of a pair for {@link PointMatches}, a hash
+	 * of everything but the grid that determines them.  The prior transforms
+	 * are identified by {@link Features#hash(N5Reader, String)}, matches of
+	 * transforms without version have no key and are not persisted.
+	 *
+	 * @param n5
+	 * @param transformADataset prior transform of A
+	 * @param transformBDataset prior transform of B
+	 * @param scaleIndex
+	 * @param gridCellWidth
+	 * @param maxNumFeatures
+	 * @param matcher
+	 * @param occupancyScaleIndex
+	 * @param minForegroundRatio
+	 * @return the key or null if a prior transform has no version
+	 * @throws IOException
+	 */
+	public static Long matchesKey(
+			final N5Reader n5,
+			final String transformADataset,
+			final String transformBDataset,
+			final int scaleIndex,
+			final long gridCellWidth,
+			final int maxNumFeatures,
+			final FeatureMatcher matcher,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio) throws IOException {
 
-					return new Tuple2<>(
-							offset,
-							new Tuple2<>(
-									tileATransform == null ? null : tileATransform.getRowPackedCopy(),
-									tileBTransform == null ? null : tileBTransform.getRowPackedCopy()));
+		final Long transformAHash = Features.hash(n5, transformADataset);
+		final Long transformBHash = Features.hash(n5, transformBDataset);
+		if (transformAHash == null || transformBHash == null)
+			return null;
+
+		return Features.hash(
+				transformAHash,
+				transformBHash,
+				scaleIndex,
+				SparkPairAlignSIFT.hashGridCellSIFTParam(gridCellWidth, MAX_SCALE, MIN_SCALE),
+				maxNumFeatures,
+				matcher.hash(),
+				occupancyScaleIndex,
+				Double.doubleToLongBits(occupancyScaleIndex < 0 ? 0 : minForegroundRatio));
+	}
+
+	/**
+	 * Save candidate matches per grid cell of a number of pairs into a new
+	 * match dataset per pair and mark them complete.
+	 *
+	 * @param candidates keyed by pair index and grid cell offset
+	 * @param n5Path
+	 * @param matchesDatasetNames per pair index, null for pairs whose
+	 *     matches are not saved
+	 * @param matchesKeys per pair index, see {@link #matchesKey}
+	 * @param gridOffsets
+	 * @param scaledFloorMin min of the grid
+	 * @param stepSize grid spacing
+	 * @throws IOException
+	 */
+	public static void saveMatches(
+			final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> candidates,
+			final String n5Path,
+			final List<String> matchesDatasetNames,
+			final List<Long> matchesKeys,
+			final List<long[]> gridOffsets,
+			final long[] scaledFloorMin,
+			final int stepSize) throws IOException {
+
+		final int[] spacing = new int[]{stepSize, stepSize};
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		for (int i = 0; i < matchesDatasetNames.size(); ++i)
+			if (matchesDatasetNames.get(i) != null)
+				PointMatches.createDataset(
+						n5,
+						matchesDatasetNames.get(i),
+						gridDimensions(gridOffsets, scaledFloorMin, spacing),
+						scaledFloorMin,
+						spacing,
+						matchesKeys.get(i));
+
+		candidates.foreach(
+				cell -> {
+					final String matchesDatasetName = matchesDatasetNames.get(cell._1()._1());
+					if (matchesDatasetName == null)
+						return;
+					final long[] offset = new long[]{cell._1()._2()._1(), cell._1()._2()._2()};
+					PointMatches.saveBlock(
+							new N5FSWriter(n5Path),
+							matchesDatasetName,
+							Grid.gridCell(offset, scaledFloorMin, spacing),
+							cell._2());
 				});
 
-		return affines;
+		for (final String matchesDatasetName : matchesDatasetNames)
+			if (matchesDatasetName != null)
+				PointMatches.setComplete(n5, matchesDatasetName);
 	}
 
 	/**
-	 * Align a pair of transformed N5 sections using SIFT and affine models on
-	 * a grid of 50% overlapping cells.  The resulting alignment is the
-	 * composition of the prior transform and the interpolant over the grid.
-	 * For grid cells, that do not return an alignment model, the prior
-	 * transformation is used.
-	 * Other than by {@link SparkPairAlignSIFT#alignPairSIFT(JavaSparkContext, String, String, String, String, String, String, String, int, double[], double[], int, List, double, double, double)},
+	 * Save candidate matches per grid cell into a new match dataset and
+	 * mark it complete.
+	 *
+	 * @param candidates
+	 * @param n5Path
+	 * @param matchesDatasetName
+	 * @param matchesKey see {@link #matchesKey}
+	 * @param gridOffsets
+	 * @param scaledFloorMin min of the grid
+	 * @param stepSize grid spacing
+	 * @throws IOException
+	 */
+	public static void saveMatches(
+			final JavaPairRDD<Tuple2<Long, Long>, ArrayList<PointMatch>> candidates,
+			final String n5Path,
+			final String matchesDatasetName,
+			final long matchesKey,
+			final List<long[]> gridOffsets,
+			final long[] scaledFloorMin,
+			final int stepSize) throws IOException {
+
+		saveMatches(
+				candidates.mapToPair(cell -> new Tuple2<>(new Tuple2<>(0, cell._1()), cell._2())),
+				n5Path,
+				Collections.singletonList(matchesDatasetName),
+				Collections.singletonList(matchesKey),
+				gridOffsets,
+				scaledFloorMin,
+				stepSize);
+	}
+
+	/**
+	 * Load candidate matches per grid cell of a number of pairs saved by
+	 * {@link #saveMatches(JavaPairRDD, String, List, List, List, long[], int)}.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param matchesDatasetNames per pair index, null for pairs whose
+	 *     matches are not loaded
+	 * @param gridOffsets
+	 * @param scaledFloorMin
+	 * @param stepSize
+	 * @return candidate matches keyed by pair index and grid cell offset
+	 */
+	public static JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> loadMatches(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> matchesDatasetNames,
+			final List<long[]> gridOffsets,
+			final long[] scaledFloorMin,
+			final int stepSize) {
+
+		final int[] spacing = new int[]{stepSize, stepSize};
+
+		final ArrayList<Tuple2<Integer, long[]>> gridCells = new ArrayList<>();
+		for (int i = 0; i < matchesDatasetNames.size(); ++i)
+			if (matchesDatasetNames.get(i) != null)
+				for (final long[] gridOffset : gridOffsets)
+					gridCells.add(new Tuple2<>(i, gridOffset));
+
+		return sc.parallelize(gridCells).mapToPair(
+				cell -> new Tuple2<>(
+						new Tuple2<>(cell._1(), new Tuple2<>(cell._2()[0], cell._2()[1])),
+						PointMatches.loadBlock(
+								new N5FSWriter(n5Path),
+								matchesDatasetNames.get(cell._1()),
+								Grid.gridCell(cell._2(), scaledFloorMin, spacing))));
+	}
+
+	/**
+	 * Load candidate matches per grid cell saved by
+	 * {@link #saveMatches(JavaPairRDD, String, String, long, List, long[], int)}.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param matchesDatasetName
+	 * @param gridOffsets
+	 * @param scaledFloorMin
+	 * @param stepSize
+	 * @return
+	 */
+	public static JavaPairRDD<Tuple2<Long, Long>, ArrayList<PointMatch>> loadMatches(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String matchesDatasetName,
+			final List<long[]> gridOffsets,
+			final long[] scaledFloorMin,
+			final int stepSize) {
+
+		return loadMatches(
+				sc,
+				n5Path,
+				Collections.singletonList(matchesDatasetName),
+				gridOffsets,
+				scaledFloorMin,
+				stepSize).mapToPair(cell -> new Tuple2<>(cell._1()._2(), cell._2()));
+	}
+
+	private static long[] gridDimensions(
+			final List<long[]> gridOffsets,
+			final long[] min,
+			final int[] spacing) {
+
+		final long[] dimensions = new long[min.length];
+		for (final long[] offset : gridOffsets) {
+			final long[] gridCell = Grid.gridCell(offset, min, spacing);
+			for (int d = 0; d < dimensions.length; ++d)
+				dimensions[d] = Math.max(dimensions[d], gridCell[d] + 1);
+		}
+		return dimensions;
+	}
+
+	/**
+	 * Align a number of pairs of transformed N5 sections using SIFT and
+	 * affine models on a grid of 50% overlapping cells.  The resulting
+	 * alignment is the composition of the prior transform and the
+	 * interpolant over the grid.  For grid cells, that do not return an
+	 * alignment model, the prior transformation is used.
+	 * Other than by {@link SparkPairAlignSIFT#alignAllPairsSIFT(JavaSparkContext, String, String, String, List, List, List, List, int, double[], double[], int, List, double, double, double, double, boolean, int, FeatureMatcher, int, double)},
 	 * both N5 sections are transformed, B by affine/2 and A by affine<sup>-1</sup>/2.
+	 * Each phase runs once for the grid cells of all pairs.  With a
+	 * matchesGroupName, candidate matches are loaded from a complete match
+	 * dataset per pair and grid if it exists, and extracted, matched, and
+	 * saved there otherwise, such that filtering and solving can be
+	 * repeated with other parameters on cheap I/O.
 	 *
 	 * @param sc
 	 * @param n5Path
 	 * @param inGroupName
 	 * @param outGroupName
-	 * @param datasetNameA
-	 * @parrm datasetNameB
-	 * @param transformDatasetNameA
-	 * @parrm transformDatasetNameB
+	 * @param datasetNamesA per pair
+	 * @param datasetNamesB per pair
+	 * @param transformDatasetNamesA per pair
+	 * @param transformDatasetNamesB per pair
 	 * @param transformScaleIndex
 	 * @param boundsMin
 	 * @param boundsMax
@@ -226,17 +620,30 @@ public class SparkPairAlignSIFTAverage {
 	 * @param lambdaModel
 	 * @param lambdaFilter
 	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matchesGroupName N5 group of the match datasets, null to not
+	 *     persist matches
+	 * @param matcher
+	 * @param occupancyScaleIndex scale level of the occupancy pre-pass for
+	 *     the pairs that are matched, pruned grid cells have no candidates
+	 *     and keep the prior transforms, &lt; 0 to match all grid cells
+	 * @param minForegroundRatio min fraction of foreground pixels of an
+	 *     occupied grid cell
 	 * @throws IOException
 	 */
-	public static void alignPairSIFTAverage(
+	public static void alignAllPairsSIFTAverage(
 			final JavaSparkContext sc,
 			final String n5Path,
 			final String inGroupName,
 			final String outGroupName,
-			final String datasetNameA,
-			final String datasetNameB,
-			final String transformDatasetNameA,
-			final String transformDatasetNameB,
+			final List<String> datasetNamesA,
+			final List<String> datasetNamesB,
+			final List<String> transformDatasetNamesA,
+			final List<String> transformDatasetNamesB,
 			final int transformScaleIndex,
 			final double[] boundsMin,
 			final double[] boundsMax,
@@ -244,102 +651,296 @@ public class SparkPairAlignSIFTAverage {
 			final List<long[]> gridOffsets,
 			final double lambdaModel,
 			final double lambdaFilter,
-			final double maxFilterEpsilon) throws IOException {
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final String matchesGroupName,
+			final FeatureMatcher matcher,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio) throws IOException {
 
 		final double scale = 1.0 / (1 << transformScaleIndex);
 
 		final long[] floorScaledMin = Grid.floorScaled(boundsMin, scale);
 		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, scale);
 
-		final JavaPairRDD<long[], Tuple2<double[], double[]>> affines = alignSIFTAverage(
-				sc,
-				n5Path,
-				datasetNameA,
-				datasetNameB,
-				transformScaleIndex,
-				inGroupName + "/" + transformDatasetNameA,
-				inGroupName + "/" + transformDatasetNameB,
-				boundsMin,
-				boundsMax,
-				floorScaledMin,
-				ceilScaledMax,
-				stepSize * 2,
-				gridOffsets,
-				lambdaModel,
-				lambdaFilter,
-				maxFilterEpsilon);
+		final int[] spacing = new int[]{stepSize, stepSize};
+		final N5Writer n5 = new N5FSWriter(n5Path);
 
-		affines.cache();
-		affines.count();
+		/* pairs with complete match datasets are loaded, all others matched */
+		final ArrayList<String> loadDatasetNames = new ArrayList<>();
+		final ArrayList<String> saveDatasetNames = new ArrayList<>();
+		final ArrayList<Long> saveKeys = new ArrayList<>();
+		final ArrayList<Integer> matchIndices = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			final Long matchesKey = matchesGroupName == null ?
+					null :
+					matchesKey(
+							n5,
+							inGroupName + "/" + transformDatasetNamesA.get(i),
+							inGroupName + "/" + transformDatasetNamesB.get(i),
+							transformScaleIndex,
+							stepSize * 2,
+							maxNumFeatures,
+							matcher,
+							occupancyScaleIndex,
+							minForegroundRatio);
+			final String matchesDatasetName = matchesKey == null ?
+					null :
+					PointMatches.datasetName(matchesGroupName, transformDatasetNamesA.get(i), transformDatasetNamesB.get(i));
+			saveKeys.add(matchesKey);
+			if (matchesDatasetName != null &&
+					PointMatches.exists(
+							n5,
+							matchesDatasetName,
+							gridDimensions(gridOffsets, floorScaledMin, spacing),
+							floorScaledMin,
+							spacing,
+							matchesKey)) {
 
-		final JavaPairRDD<long[], double[]> affinesA = affines.mapToPair(
-				a -> new Tuple2<>(a._1(), a._2()._1()));
-		final JavaPairRDD<long[], double[]> affinesB = affines.mapToPair(
-				a -> new Tuple2<>(a._1(), a._2()._2()));
+				System.out.println("Loading matches from " + matchesDatasetName);
 
-		final JavaRDD<long[]> gridCellsA = SparkPairAlignSIFT.saveAccumulatedAffineGridCells(
-				affinesA,
-				n5Path,
-				inGroupName + "/" + transformDatasetNameA,
-				outGroupName + "/" + transformDatasetNameA,
-				boundsMin,
-				boundsMax,
-				stepSize,
-				scale);
+				loadDatasetNames.add(matchesDatasetName);
+				saveDatasetNames.add(null);
+			} else {
+				loadDatasetNames.add(null);
+				saveDatasetNames.add(matchesDatasetName);
+				matchIndices.add(i);
+			}
+		}
 
-		final JavaRDD<long[]> gridCellsB = SparkPairAlignSIFT.saveAccumulatedAffineGridCells(
-				affinesB,
-				n5Path,
-				inGroupName + "/" + transformDatasetNameB,
-				outGroupName + "/" + transformDatasetNameB,
-				boundsMin,
-				boundsMax,
-				stepSize,
-				scale);
+		JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> candidates = null;
+		JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> matches = null;
+		if (matchIndices.size() < datasetNamesA.size())
+			candidates = loadMatches(
+					sc,
+					n5Path,
+					loadDatasetNames,
+					gridOffsets,
+					floorScaledMin,
+					stepSize);
 
-		gridCellsA.cache();
-		gridCellsA.count();
-		gridCellsB.cache();
-		gridCellsB.count();
+		if (matchIndices.size() > 0) {
+			final ArrayList<String> matchDatasetNamesA = new ArrayList<>();
+			final ArrayList<String> matchDatasetNamesB = new ArrayList<>();
+			final ArrayList<String> matchTransformDatasetNamesA = new ArrayList<>();
+			final ArrayList<String> matchTransformDatasetNamesB = new ArrayList<>();
+			for (final int i : matchIndices) {
+				matchDatasetNamesA.add(datasetNamesA.get(i));
+				matchDatasetNamesB.add(datasetNamesB.get(i));
+				matchTransformDatasetNamesA.add(inGroupName + "/" + transformDatasetNamesA.get(i));
+				matchTransformDatasetNamesB.add(inGroupName + "/" + transformDatasetNamesB.get(i));
+			}
 
-		final JavaRDD<long[]> composedGridCellsA = SparkPairAlignSIFT.composeOverlappingTransformGridCells(
-				gridCellsA,
-				n5Path,
-				outGroupName + "/" + transformDatasetNameA,
-				scale,
-				boundsMin,
-				boundsMax,
-				stepSize);
-		final JavaRDD<long[]> composedGridCellsB = SparkPairAlignSIFT.composeOverlappingTransformGridCells(
-				gridCellsB,
-				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
-				scale,
-				boundsMin,
-				boundsMax,
-				stepSize);
+			final ArrayList<boolean[]> occupied = occupancyScaleIndex < 0 ?
+					null :
+					Spark.occupiedGridCells(
+							sc,
+							n5Path,
+							matchDatasetNamesA,
+							matchDatasetNamesB,
+							occupancyScaleIndex,
+							matchTransformDatasetNamesA,
+							matchTransformDatasetNamesB,
+							transformScaleIndex,
+							gridOffsets,
+							stepSize * 2,
+							minForegroundRatio);
+
+			JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, ArrayList<PointMatch>> matched = matchSIFTAverage(
+					sc,
+					n5Path,
+					matchDatasetNamesA,
+					matchDatasetNamesB,
+					transformScaleIndex,
+					matchTransformDatasetNamesA,
+					matchTransformDatasetNamesB,
+					floorScaledMin,
+					ceilScaledMax,
+					stepSize * 2,
+					gridOffsets,
+					featuresGroupName,
+					maxNumFeatures,
+					matcher,
+					occupied);
+
+			/* pruned grid cells have no candidates, such that saved matches are complete */
+			if (occupied != null)
+				matched = matched.union(
+						Spark.parallelizeGridCells(sc, gridOffsets, occupied, false).mapToPair(
+								cell -> new Tuple2<>(
+										new Tuple2<>(cell._1(), new Tuple2<>(cell._2()[0], cell._2()[1])),
+										new ArrayList<PointMatch>())));
+
+			/* back to pair indices */
+			matches = matched.mapToPair(
+					cell -> new Tuple2<>(
+							new Tuple2<>(matchIndices.get(cell._1()._1()), cell._1()._2()),
+							cell._2()));
+
+			if (matchesGroupName != null) {
+				matches.cache();
+				saveMatches(
+						matches,
+						n5Path,
+						saveDatasetNames,
+						saveKeys,
+						gridOffsets,
+						floorScaledMin,
+						stepSize);
+			}
+
+			candidates = candidates == null ? matches : candidates.union(matches);
+		}
+
+		if (candidates == null)
+			return;
+
+		final JavaPairRDD<Tuple2<Integer, Tuple2<Long, Long>>, Tuple2<double[], double[]>> affines = candidates.mapValues(
+				cellCandidates -> filterSolveSIFTAverage(
+						cellCandidates,
+						lambdaModel,
+						lambdaFilter,
+						maxFilterEpsilon,
+						filterConfidence,
+						filterThreads));
+
+		affines.cache();
+		affines.count();
+		if (matches != null)
+			matches.unpersist();
 
-		composedGridCellsA.cache();
-		composedGridCellsA.count();
-		composedGridCellsB.cache();
-		composedGridCellsB.count();
+		/* A of pair i is target 2i, B is target 2i + 1 */
+		final ArrayList<String> priorTransformDatasetNames = new ArrayList<>();
+		final ArrayList<String> outTransformDatasetNames = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			priorTransformDatasetNames.add(inGroupName + "/" + transformDatasetNamesA.get(i));
+			priorTransformDatasetNames.add(inGroupName + "/" + transformDatasetNamesB.get(i));
+			outTransformDatasetNames.add(outGroupName + "/" + transformDatasetNamesA.get(i));
+			outTransformDatasetNames.add(outGroupName + "/" + transformDatasetNamesB.get(i));
+		}
+
+		final JavaPairRDD<Tuple2<Integer, long[]>, double[]> targetAffines = affines.flatMapToPair(
+				a -> {
+					final int pairIndex = a._1()._1();
+					final long[] offset = new long[]{a._1()._2()._1(), a._1()._2()._2()};
+					final ArrayList<Tuple2<Tuple2<Integer, long[]>, double[]>> targets = new ArrayList<>();
+					targets.add(new Tuple2<>(new Tuple2<>(2 * pairIndex, offset), a._2()._1()));
+					targets.add(new Tuple2<>(new Tuple2<>(2 * pairIndex + 1, offset), a._2()._2()));
+					return targets.iterator();
+				});
 
-		SparkPairAlignSIFT.deleteGridCells(
-				composedGridCellsA,
+		Spark.saveOverlappingGridCellBlocks(
+				Spark.accumulatedAffineGridCellBlocks(
+						targetAffines,
+						n5Path,
+						priorTransformDatasetNames,
+						boundsMin,
+						boundsMax,
+						stepSize,
+						scale),
 				n5Path,
-				outGroupName + "/" + transformDatasetNameA,
+				outTransformDatasetNames,
 				scale,
 				boundsMin,
 				boundsMax,
 				stepSize);
-		SparkPairAlignSIFT.deleteGridCells(
-				composedGridCellsB,
+
+		affines.unpersist();
+	}
+
+	/**
+	 * Align a pair of transformed N5 sections using SIFT and affine models on
+	 * a grid of 50% overlapping cells.  The resulting alignment is the
+	 * composition of the prior transform and the interpolant over the grid.
+	 * For grid cells, that do not return an alignment model, the prior
+	 * transformation is used.
+	 * Other than by {@link SparkPairAlignSIFT#alignPairSIFT(JavaSparkContext, String, String, String, String, String, String, String, int, double[], double[], int, List, double, double, double, double, boolean, int, FeatureMatcher, int, double)},
+	 * both N5 sections are transformed, B by affine/2 and A by affine<sup>-1</sup>/2.
+	 *
+	 * @see #alignAllPairsSIFTAverage
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param inGroupName
+	 * @param outGroupName
+	 * @param datasetNameA
+	 * @param datasetNameB
+	 * @param transformDatasetNameA
+	 * @param transformDatasetNameB
+	 * @param transformScaleIndex
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @param gridOffsets
+	 * @param lambdaModel
+	 * @param lambdaFilter
+	 * @param maxFilterEpsilon
+	 * @param filterConfidence
+	 * @param filterThreads
+	 * @param featuresGroupName N5 group of the feature caches, null to not
+	 *     cache features
+	 * @param maxNumFeatures
+	 * @param matchesGroupName N5 group of the match datasets, null to not
+	 *     persist matches
+	 * @param matcher
+	 * @param occupancyScaleIndex
+	 * @param minForegroundRatio
+	 * @throws IOException
+	 */
+	public static void alignPairSIFTAverage(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final String inGroupName,
+			final String outGroupName,
+			final String datasetNameA,
+			final String datasetNameB,
+			final String transformDatasetNameA,
+			final String transformDatasetNameB,
+			final int transformScaleIndex,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final List<long[]> gridOffsets,
+			final double lambdaModel,
+			final double lambdaFilter,
+			final double maxFilterEpsilon,
+			final double filterConfidence,
+			final int filterThreads,
+			final String featuresGroupName,
+			final int maxNumFeatures,
+			final String matchesGroupName,
+			final FeatureMatcher matcher,
+			final int occupancyScaleIndex,
+			final double minForegroundRatio) throws IOException {
+
+		alignAllPairsSIFTAverage(
+				sc,
 				n5Path,
-				outGroupName + "/" + transformDatasetNameB,
-				scale,
+				inGroupName,
+				outGroupName,
+				Collections.singletonList(datasetNameA),
+				Collections.singletonList(datasetNameB),
+				Collections.singletonList(transformDatasetNameA),
+				Collections.singletonList(transformDatasetNameB),
+				transformScaleIndex,
 				boundsMin,
 				boundsMax,
-				stepSize);
+				stepSize,
+				gridOffsets,
+				lambdaModel,
+				lambdaFilter,
+				maxFilterEpsilon,
+				filterConfidence,
+				filterThreads,
+				featuresGroupName,
+				maxNumFeatures,
+				matchesGroupName,
+				matcher,
+				occupancyScaleIndex,
+				minForegroundRatio);
 	}
 
 	public static final void main(final String... args) throws IOException, InterruptedException, ExecutionException {
@@ -393,6 +994,10 @@ public class SparkPairAlignSIFTAverage {
 				inPriorTransformDatasetNames,
 				outPriorTransformDatasetNames);
 
+		final ArrayList<String> datasetNamesA = new ArrayList<>();
+		final ArrayList<String> datasetNamesB = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesA = new ArrayList<>();
+		final ArrayList<String> transformDatasetNamesB = new ArrayList<>();
 		for (int i = 1; i < datasetNames.length - 2; i += 2) {
 
 			System.out.printf(
@@ -404,30 +1009,38 @@ public class SparkPairAlignSIFTAverage {
 					gridOffsets.size());
 			System.out.println();
 
-			final String datasetNameA = datasetNames[i];
-			final String datasetNameB = datasetNames[i + 1];
-			final String transformDatasetNameA = transformDatasetNames[i];
-			final String transformDatasetNameB = transformDatasetNames[i + 1];
-
-			alignPairSIFTAverage(
-					sc,
-					options.getN5Path(),
-					options.getInGroup(),
-					options.getOutGroup(),
-					datasetNameA,
-					datasetNameB,
-					transformDatasetNameA,
-					transformDatasetNameB,
-					options.getTransformScaleIndex(),
-					boundsMin,
-					boundsMax,
-					options.getStepSize(),
-					gridOffsets,
-					options.getLambdaModel(),
-					options.getLambdaFilter(),
-					options.getMaxFilterEpsilon());
+			datasetNamesA.add(datasetNames[i]);
+			datasetNamesB.add(datasetNames[i + 1]);
+			transformDatasetNamesA.add(transformDatasetNames[i]);
+			transformDatasetNamesB.add(transformDatasetNames[i + 1]);
 		}
 
+		alignAllPairsSIFTAverage(
+				sc,
+				options.getN5Path(),
+				options.getInGroup(),
+				options.getOutGroup(),
+				datasetNamesA,
+				datasetNamesB,
+				transformDatasetNamesA,
+				transformDatasetNamesB,
+				options.getTransformScaleIndex(),
+				boundsMin,
+				boundsMax,
+				options.getStepSize(),
+				gridOffsets,
+				options.getLambdaModel(),
+				options.getLambdaFilter(),
+				options.getMaxFilterEpsilon(),
+				options.getFilterConfidence(),
+				options.getFilterThreads(),
+				options.getFeaturesGroup(),
+				options.getMaxNumFeatures(),
+				options.getMatchesGroup(),
+				options.getFeatureMatcher().create(options.getMatchRadius()),
+				options.getOccupancyScaleIndex(),
+				options.getMinOccupancy());
+
 		sc.close();
 	}
 }
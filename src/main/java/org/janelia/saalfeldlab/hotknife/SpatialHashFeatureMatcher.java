@@ -0,0 +1,143 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Descriptor matching constrained to features within a radius of the same
+ * location.  This is for features of faces that are roughly aligned already,
+ * e.g. by the prior transforms, such that the predicted location of a
+ * feature in fs2 is the location of its feature in fs1.  Features of fs2 are
+ * bucketed in a uniform spatial hash with cells of the size of the radius,
+ * each feature of fs1 is compared only with the features in the 3x3
+ * neighboring cells that are within the radius.  The rod test is applied to
+ * these candidates only, ambiguous matches are removed as by
+ * {@link ExactFeatureMatcher}.  An infinite radius is exact matching.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class SpatialHashFeatureMatcher implements FeatureMatcher {
+
+	final private double radius;
+
+	/**
+	 * @param radius max distance of matching feature locations, in the
+	 *     coordinates of the features passed to
+	 *     {@link #match(List, List, double)}
+	 */
+	public SpatialHashFeatureMatcher(final double radius) {
+
+		this.radius = radius;
+	}
+
+	@Override
+	public long hash() {
+
+		return Features.hash(getClass().getName().hashCode(), Double.doubleToLongBits(radius));
+	}
+
+	private long cellKey(final double x, final double y) {
+
+		return cellKey((int)Math.floor(x / radius), (int)Math.floor(y / radius));
+	}
+
+	private static long cellKey(final int cx, final int cy) {
+
+		return ((long)cx << 32) | (cy & 0xffffffffL);
+	}
+
+	@Override
+	public ArrayList<PointMatch> match(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod) {
+
+		if (fs1.isEmpty() || fs2.size() < 2)
+			return new ArrayList<>();
+
+		/* bucket fs2 */
+		final HashMap<Long, ArrayList<Integer>> cells = new HashMap<>();
+		for (int i = 0; i < fs2.size(); ++i) {
+			final double[] l = fs2.get(i).location;
+			cells.computeIfAbsent(cellKey(l[0], l[1]), k -> new ArrayList<>()).add(i);
+		}
+
+		final double radius2 = radius * radius;
+		final double rod2 = rod * rod;
+		final int dimensions = fs2.get(0).descriptor.length;
+
+		final ArrayList<PointMatch> candidates = new ArrayList<>();
+		final int[] targets = new int[fs1.size()];
+		for (final Feature f1 : fs1) {
+			final double x = f1.location[0];
+			final double y = f1.location[1];
+			final int cx = (int)Math.floor(x / radius);
+			final int cy = (int)Math.floor(y / radius);
+
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			double secondBestDistance = Double.MAX_VALUE;
+			for (int dy = -1; dy <= 1; ++dy) {
+				for (int dx = -1; dx <= 1; ++dx) {
+					final ArrayList<Integer> cell = cells.get(cellKey(cx + dx, cy + dy));
+					if (cell == null)
+						continue;
+					for (final int i : cell) {
+						final Feature f2 = fs2.get(i);
+						final double lx = f2.location[0] - x;
+						final double ly = f2.location[1] - y;
+						if (lx * lx + ly * ly > radius2)
+							continue;
+
+						double distance = 0;
+						for (int d = 0; d < dimensions && distance < secondBestDistance; ++d) {
+							final double diff = f1.descriptor[d] - f2.descriptor[d];
+							distance += diff * diff;
+						}
+
+						if (distance < bestDistance) {
+							secondBestDistance = bestDistance;
+							bestDistance = distance;
+							best = i;
+						} else if (distance < secondBestDistance)
+							secondBestDistance = distance;
+					}
+				}
+			}
+
+			if (best >= 0 && secondBestDistance < Double.MAX_VALUE && bestDistance < rod2 * secondBestDistance) {
+				final Feature f2 = fs2.get(best);
+				targets[candidates.size()] = best;
+				candidates.add(
+						new PointMatch(
+								new Point(new double[]{x, y}),
+								new Point(new double[]{f2.location[0], f2.location[1]})));
+			}
+		}
+
+		return FeatureMatcher.removeAmbiguousMatches(candidates, targets, fs2.size());
+	}
+}
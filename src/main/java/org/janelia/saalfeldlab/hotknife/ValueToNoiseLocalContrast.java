@@ -0,0 +1,204 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+
+import ij.process.FloatProcessor;
+
+/**
+ * Fused {@link ValueToNoise} and {@link NormalizeLocalContrast} on float
+ * arrays, in place and without intermediate images.
+ *
+ * Pixels with one of the saturated values are replaced by uniform noise in
+ * [min, max).  Each call seeds its own {@link SplittableRandom} from the
+ * seed and a hash of the input pixels, such that the noise of an image
+ * does not depend on which other images were processed before, e.g. in
+ * which order Spark schedules faces, and different images, e.g. the two
+ * faces of a pair, get different noise.  Instances are stateless and can
+ * be shared by threads.  The summed area tables of the values and squared
+ * values are built in the same pass, such that the local mean and standard
+ * deviation are O(1) per pixel independent of the block radius.
+ * Normalization is centered and stretched, i.e. mean - stds * std and
+ * mean + stds * std are mapped to min and max.  Blocks are clipped at the
+ * image border.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class ValueToNoiseLocalContrast {
+
+	final static public long DEFAULT_SEED = 0;
+
+	final private long seed;
+	final private float[] values;
+	final private double min;
+	final private double max;
+	final private int brx;
+	final private int bry;
+	final private double stds;
+
+	/**
+	 * @param values saturated values to be replaced by noise
+	 * @param min
+	 * @param max
+	 * @param blockRadiusX
+	 * @param blockRadiusY
+	 * @param stdDevs
+	 * @param seed
+	 */
+	public ValueToNoiseLocalContrast(
+			final float[] values,
+			final double min,
+			final double max,
+			final int blockRadiusX,
+			final int blockRadiusY,
+			final double stdDevs,
+			final long seed) {
+
+		this.values = values.clone();
+		this.min = min;
+		this.max = max;
+		this.brx = blockRadiusX;
+		this.bry = blockRadiusY;
+		this.stds = stdDevs;
+		this.seed = seed;
+	}
+
+	public ValueToNoiseLocalContrast(
+			final float[] values,
+			final double min,
+			final double max,
+			final int blockRadiusX,
+			final int blockRadiusY,
+			final double stdDevs) {
+
+		this(values, min, max, blockRadiusX, blockRadiusY, stdDevs, DEFAULT_SEED);
+	}
+
+	/**
+	 * The preprocessing of {@link org.janelia.saalfeldlab.hotknife.util.Align#addNoise(FloatProcessor)},
+	 * 0 and 255 to noise in [0, 255), 256 pixel block radius, 3 standard
+	 * deviations.
+	 */
+	public ValueToNoiseLocalContrast() {
+
+		this(new float[]{0, 255}, 0, 255, 256, 256, 3);
+	}
+
+	private SplittableRandom random(final float[] pixels) {
+
+		return new SplittableRandom(Features.hash(seed, pixels.length, Arrays.hashCode(pixels)));
+	}
+
+	final private boolean isSaturated(final float v) {
+
+		for (final float value : values)
+			if (v == value)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Replace saturated values by noise in place.
+	 *
+	 * @param pixels
+	 */
+	public void noise(final float[] pixels) {
+
+		final SplittableRandom rnd = random(pixels);
+		final double scale = max - min;
+		for (int i = 0; i < pixels.length; ++i)
+			if (isSaturated(pixels[i]))
+				pixels[i] = (float)(rnd.nextDouble() * scale + min);
+	}
+
+	/**
+	 * Replace saturated values by noise and normalize local contrast in
+	 * place.
+	 *
+	 * @param pixels
+	 * @param width
+	 * @param height
+	 */
+	public void process(final float[] pixels, final int width, final int height) {
+
+		final SplittableRandom rnd = random(pixels);
+		final double scale = max - min;
+		final double center = 0.5 * (min + max);
+
+		/* noise and summed area tables, values are shifted by center for precision */
+		final int w1 = width + 1;
+		final double[] sums = new double[w1 * (height + 1)];
+		final double[] squareSums = new double[sums.length];
+		for (int y = 0; y < height; ++y) {
+			double rowSum = 0;
+			double rowSquareSum = 0;
+			final int row = y * width;
+			final int sumRow = (y + 1) * w1;
+			final int previousSumRow = y * w1;
+			for (int x = 0; x < width; ++x) {
+				float v = pixels[row + x];
+				if (isSaturated(v)) {
+					v = (float)(rnd.nextDouble() * scale + min);
+					pixels[row + x] = v;
+				}
+				final double c = v - center;
+				rowSum += c;
+				rowSquareSum += c * c;
+				sums[sumRow + x + 1] = sums[previousSumRow + x + 1] + rowSum;
+				squareSums[sumRow + x + 1] = squareSums[previousSumRow + x + 1] + rowSquareSum;
+			}
+		}
+
+		/* normalize */
+		for (int y = 0; y < height; ++y) {
+			final int row0 = Math.max(0, y - bry) * w1;
+			final int row1 = Math.min(height, y + bry + 1) * w1;
+			final int dy = row1 / w1 - row0 / w1;
+			final int row = y * width;
+			for (int x = 0; x < width; ++x) {
+				final int x0 = Math.max(0, x - brx);
+				final int x1 = Math.min(width, x + brx + 1);
+				final double n = (x1 - x0) * dy;
+				final double sum = sums[row1 + x1] - sums[row1 + x0] - sums[row0 + x1] + sums[row0 + x0];
+				final double squareSum = squareSums[row1 + x1] - squareSums[row1 + x0] - squareSums[row0 + x1] + squareSums[row0 + x0];
+				final double mean = sum / n;
+				final double variance = squareSum / n - mean * mean;
+				final double d = stds * Math.sqrt(Math.max(0, variance));
+				final double c = pixels[row + x] - center;
+				pixels[row + x] = d > 0 ? (float)((c - mean) / (2 * d) * scale + center) : (float)center;
+			}
+		}
+	}
+
+	/**
+	 * Replace saturated values by noise and normalize local contrast in
+	 * place.
+	 *
+	 * @param ip
+	 * @return ip
+	 */
+	public FloatProcessor process(final FloatProcessor ip) {
+
+		process((float[])ip.getPixels(), ip.getWidth(), ip.getHeight());
+		ip.setMinAndMax(min, max);
+		return ip;
+	}
+}
@@ -25,12 +25,14 @@ import java.util.function.Function;
 import java.util.function.Supplier;
 
 import org.janelia.saalfeldlab.hotknife.ConsensusFilter;
-import org.janelia.saalfeldlab.hotknife.NormalizeLocalContrast;
+import org.janelia.saalfeldlab.hotknife.ExactFeatureMatcher;
+import org.janelia.saalfeldlab.hotknife.FeatureExtractor;
+import org.janelia.saalfeldlab.hotknife.FeatureMatcher;
 import org.janelia.saalfeldlab.hotknife.PMCCScaleSpaceBlockFlow;
-import org.janelia.saalfeldlab.hotknife.ValueToNoise;
+import org.janelia.saalfeldlab.hotknife.SIFTFeatureExtractor;
+import org.janelia.saalfeldlab.hotknife.ValueToNoiseLocalContrast;
 
 import ij.process.FloatProcessor;
-import mpicbg.ij.FeatureTransform;
 import mpicbg.ij.SIFT;
 import mpicbg.imagefeatures.Feature;
 import mpicbg.imagefeatures.FloatArray2DSIFT;
@@ -56,6 +58,9 @@ import net.imglib2.util.Pair;
  */
 public class Align {
 
+	/* stateless, the noise of a face depends only on its pixels */
+	final static private ValueToNoiseLocalContrast saturationNoise = new ValueToNoiseLocalContrast();
+
 	private Align() {}
 
 	static public void unScalePointMatches(
@@ -72,18 +77,16 @@ public class Align {
 				});
 	}
 
-	public static FloatProcessor addNoise(FloatProcessor ip) {
-
-		final ValueToNoise filter1 = new ValueToNoise(0, 0, 255);
-		final ValueToNoise filter2 = new ValueToNoise(255, 0, 255);
-		final NormalizeLocalContrast filter3 = new NormalizeLocalContrast(256, 256, 3, true, true);
-
-		ip = filter1.process(ip).convertToFloatProcessor();
-		ip = filter2.process(ip).convertToFloatProcessor();
-		ip.setMinAndMax(0, 255);
-		ip = filter3.process(ip).convertToFloatProcessor();
+	/**
+	 * Replace 0 and 255 by noise and normalize local contrast, in place in
+	 * one fused pass.
+	 *
+	 * @param ip
+	 * @return ip
+	 */
+	public static FloatProcessor addNoise(final FloatProcessor ip) {
 
-		return ip;
+		return saturationNoise.process(ip);
 	}
 
 	/**
@@ -103,10 +106,49 @@ public class Align {
 			final double minScale,
 			final int fdSize) {
 
+		return extractFeatures(ip, createSIFTParam(ip.getWidth(), ip.getHeight(), maxScale, minScale, fdSize));
+	}
+
+	/**
+	 * Create the SIFT parameters used by
+	 * {@link #extractFeatures(FloatProcessor, double, double, int)} for an
+	 * image of given size.
+	 *
+	 * @param width
+	 * @param height
+	 * @param maxScale
+	 * @param minScale
+	 * @param fdSize
+	 * @return
+	 */
+	public static FloatArray2DSIFT.Param createSIFTParam(
+			final long width,
+			final long height,
+			final double maxScale,
+			final double minScale,
+			final int fdSize) {
+
 		final FloatArray2DSIFT.Param p = new FloatArray2DSIFT.Param();
 
-		p.maxOctaveSize = (int)Math.round(Math.max(ip.getWidth(), ip.getHeight()) * maxScale);
-		p.minOctaveSize = (int)(Math.min(ip.getWidth(), ip.getHeight()) * minScale);
+		p.fdSize = fdSize;
+		p.maxOctaveSize = (int)Math.round(Math.max(width, height) * maxScale);
+		p.minOctaveSize = (int)(Math.min(width, height) * minScale);
+
+		return p;
+	}
+
+	/**
+	 * Extract features from a {@link FloatProcessor} with explicit SIFT
+	 * parameters, e.g. octave sizes that do not depend on the size of ip.
+	 * Also adds noise to 0 and 255 pixels.
+	 *
+	 * @param ip
+	 * @param p
+	 * @return
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			FloatProcessor ip,
+			final FloatArray2DSIFT.Param p) {
 
 		ip = addNoise(ip);
 
@@ -143,18 +185,187 @@ public class Align {
 		return fs;
 	}
 
+	/**
+	 * Extract SIFT features from a 2D source with explicit SIFT parameters.
+	 *
+	 * @param source
+	 * @param p
+	 * @return
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			final RandomAccessibleInterval<FloatType> source,
+			final FloatArray2DSIFT.Param p) {
+
+		final ArrayList<Feature> fs = extractFeatures(Util.materialize(source), p);
+		fs.forEach(
+				feature -> {
+					feature.location[0] += source.realMin(0);
+					feature.location[1] += source.realMin(1);
+				});
+		return fs;
+	}
+
+	/**
+	 * Extract features from a 2D source with a {@link FeatureExtractor}.
+	 *
+	 * @param source
+	 * @param extractor
+	 * @return
+	 */
+	public static ArrayList<Feature> extractFeatures(
+			final RandomAccessibleInterval<FloatType> source,
+			final FeatureExtractor extractor) {
+
+		final ArrayList<Feature> fs = extractor.extract(Util.materialize(source));
+		fs.forEach(
+				feature -> {
+					feature.location[0] += source.realMin(0);
+					feature.location[1] += source.realMin(1);
+				});
+		return fs;
+	}
+
+	/**
+	 * Select the features located inside of [min, max).
+	 *
+	 * @param features
+	 * @param min
+	 * @param max
+	 * @return
+	 */
+	public static ArrayList<Feature> selectFeatures(
+			final List<Feature> features,
+			final double[] min,
+			final double[] max) {
+
+		final ArrayList<Feature> selection = new ArrayList<>();
+		A: for (final Feature feature : features) {
+			for (int d = 0; d < min.length; ++d)
+				if (feature.location[d] < min[d] || feature.location[d] >= max[d])
+					continue A;
+			selection.add(feature);
+		}
+		return selection;
+	}
+
+	/**
+	 * Select at most maxNumFeatures features located inside of [min, max)
+	 * with an even spatial spread.  The interval is split into
+	 * numBuckets<sup>2</sup> buckets and the features of each bucket are
+	 * ranked by ascending scale.  {@link Feature} carries no detector
+	 * response, and the localization error of a keypoint grows with its
+	 * scale, so the finest features yield the most precise point matches
+	 * for the model fits.  The sort is stable, features of equal scale keep
+	 * the order of the extractor, e.g. descending Harris response per octave
+	 * for ORB.  Buckets contribute their best features round robin, such
+	 * that sparse buckets keep all of their features and dense buckets share
+	 * the remaining budget.
+	 *
+	 * @param features
+	 * @param min
+	 * @param max
+	 * @param maxNumFeatures &lt;= 0 means unlimited
+	 * @param numBuckets buckets per dimension
+	 * @return
+	 */
+	public static ArrayList<Feature> limitFeatures(
+			final List<Feature> features,
+			final double[] min,
+			final double[] max,
+			final int maxNumFeatures,
+			final int numBuckets) {
+
+		final ArrayList<Feature> selection = selectFeatures(features, min, max);
+		if (maxNumFeatures <= 0 || selection.size() <= maxNumFeatures)
+			return selection;
+
+		final ArrayList<ArrayList<Feature>> buckets = new ArrayList<>(numBuckets * numBuckets);
+		for (int i = 0; i < numBuckets * numBuckets; ++i)
+			buckets.add(new ArrayList<>());
+		for (final Feature feature : selection) {
+			final int x = Math.min(numBuckets - 1, (int)((feature.location[0] - min[0]) / (max[0] - min[0]) * numBuckets));
+			final int y = Math.min(numBuckets - 1, (int)((feature.location[1] - min[1]) / (max[1] - min[1]) * numBuckets));
+			buckets.get(y * numBuckets + x).add(feature);
+		}
+		for (final ArrayList<Feature> bucket : buckets)
+			bucket.sort((f1, f2) -> Double.compare(f1.scale, f2.scale));
+
+		final ArrayList<Feature> limited = new ArrayList<>(maxNumFeatures);
+		for (int rank = 0; limited.size() < maxNumFeatures; ++rank)
+			for (final ArrayList<Feature> bucket : buckets)
+				if (rank < bucket.size() && limited.size() < maxNumFeatures)
+					limited.add(bucket.get(rank));
+
+		return limited;
+	}
+
+	/**
+	 * {@link #limitFeatures(List, double[], double[], int, int)} with 4x4
+	 * buckets.
+	 *
+	 * @param features
+	 * @param min
+	 * @param max
+	 * @param maxNumFeatures &lt;= 0 means unlimited
+	 * @return
+	 */
+	public static ArrayList<Feature> limitFeatures(
+			final List<Feature> features,
+			final double[] min,
+			final double[] max,
+			final int maxNumFeatures) {
+
+		return limitFeatures(features, min, max, maxNumFeatures, 4);
+	}
+
+	/**
+	 * Create copies of features with scaled locations.  Descriptors are
+	 * shared.
+	 *
+	 * @param features
+	 * @param scale
+	 * @return
+	 */
+	public static ArrayList<Feature> scaleFeatures(
+			final List<Feature> features,
+			final double scale) {
+
+		final ArrayList<Feature> scaled = new ArrayList<>(features.size());
+		features.forEach(
+				feature -> {
+					final double[] location = feature.location.clone();
+					Util.scaleArray(location, scale);
+					scaled.add(new Feature(feature.scale, feature.orientation, location, feature.descriptor));
+				});
+		return scaled;
+	}
+
 	public static ArrayList<PointMatch> matchFeatures(
 			final List<Feature> fs1,
 			final List<Feature> fs2,
 			final double rod) {
 
-		final ArrayList<PointMatch> candidates = new ArrayList<>();
-		FeatureTransform.matchFeatures(
-				fs1,
-				fs2,
-				candidates,
-				(float)rod);
-		return candidates;
+		return matchFeatures(fs1, fs2, rod, new ExactFeatureMatcher());
+	}
+
+	/**
+	 * Match features with a {@link FeatureMatcher}, e.g. an approximate
+	 * {@link org.janelia.saalfeldlab.hotknife.KDForestFeatureMatcher} for
+	 * large feature sets.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param matcher
+	 * @return
+	 */
+	public static ArrayList<PointMatch> matchFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final FeatureMatcher matcher) {
+
+		return matcher.match(fs1, fs2, rod);
 	}
 
 	/**
@@ -181,8 +392,38 @@ public class Align {
 			final double rod,
 			final double scale) {
 
-		final ArrayList<Feature> fs1 = extractFeatures(a, maxScale, minScale, fdSize);
-		final ArrayList<Feature> fs2 = extractFeatures(b, maxScale, minScale, fdSize);
+		return matchFeatures(
+				a,
+				b,
+				new SIFTFeatureExtractor(maxScale, minScale, fdSize),
+				rod,
+				scale,
+				new ExactFeatureMatcher());
+	}
+
+	/**
+	 * Match two images with features of a {@link FeatureExtractor}, e.g.
+	 * binary {@link org.janelia.saalfeldlab.hotknife.ORBFeatureExtractor}
+	 * features for a fast coarse alignment.
+	 *
+	 * @param a
+	 * @param b
+	 * @param extractor
+	 * @param rod
+	 * @param scale
+	 * @param matcher
+	 * @return
+	 */
+	static public ArrayList<PointMatch> matchFeatures(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final FeatureExtractor extractor,
+			final double rod,
+			final double scale,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<Feature> fs1 = extractFeatures(a, extractor);
+		final ArrayList<Feature> fs2 = extractFeatures(b, extractor);
 		fs1.forEach(
 				feature -> {
 					feature.location[0] *= scale;
@@ -197,7 +438,7 @@ public class Align {
 		System.out.printf("%d and %d features extracted.", fs1.size(), fs2.size());
 		System.out.println();
 
-		final ArrayList<PointMatch> candidates = matchFeatures(fs1, fs2, rod);
+		final ArrayList<PointMatch> candidates = matchFeatures(fs1, fs2, rod, matcher);
 
 		return candidates;
 	}
@@ -227,7 +468,39 @@ public class Align {
 			final double scale,
 			final ConsensusFilter filter) {
 
-		final ArrayList<PointMatch> candidates = matchSIFT(a, b, maxScale, minScale, fdSize, rod, scale);
+		return filterMatchFeatures(
+				a,
+				b,
+				new SIFTFeatureExtractor(maxScale, minScale, fdSize),
+				rod,
+				scale,
+				filter,
+				new ExactFeatureMatcher());
+	}
+
+	/**
+	 * Match and filter two images with features of a
+	 * {@link FeatureExtractor} and a filter model.
+	 *
+	 * @param a
+	 * @param b
+	 * @param extractor
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param matcher
+	 * @return
+	 */
+	static public ArrayList<PointMatch> filterMatchFeatures(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final FeatureExtractor extractor,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher) {
+
+		final ArrayList<PointMatch> candidates = matchFeatures(a, b, extractor, rod, scale, matcher);
 		final ArrayList<PointMatch> matches = filter.filter(candidates);
 
 		System.out.printf("%d of %d matches found.", matches.size(), candidates.size());
@@ -236,6 +509,101 @@ public class Align {
 		return matches;
 	}
 
+	/**
+	 * Match and filter two sets of pre-extracted features.  Locations are
+	 * scaled in copies, the input features are not modified such that they
+	 * can be shared by overlapping grid cells.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @return
+	 */
+	static public ArrayList<PointMatch> filterMatchFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter) {
+
+		return filterMatchFeatures(fs1, fs2, rod, scale, filter, new ExactFeatureMatcher());
+	}
+
+	/**
+	 * Match and filter two sets of pre-extracted features with a
+	 * {@link FeatureMatcher}.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param matcher
+	 * @return
+	 */
+	static public ArrayList<PointMatch> filterMatchFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher) {
+
+		System.out.printf("%d and %d features selected.", fs1.size(), fs2.size());
+		System.out.println();
+
+		final ArrayList<PointMatch> candidates = matchFeatures(
+				scaleFeatures(fs1, scale),
+				scaleFeatures(fs2, scale),
+				rod,
+				matcher);
+		final ArrayList<PointMatch> matches = filter.filter(candidates);
+
+		System.out.printf("%d of %d matches found.", matches.size(), candidates.size());
+		System.out.println();
+
+		return matches;
+	}
+
+	/**
+	 * Align two sets of pre-extracted features.  Returns the inverse
+	 * transform of mapping fs1 into fs2 as
+	 * {@link #alignSIFT(RandomAccessibleInterval, RandomAccessibleInterval, double, double, int, double, double, ConsensusFilter, Supplier, Function)}.
+	 *
+	 * @param fs1
+	 * @param fs2
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param matcher
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignFeatures(
+			final List<Feature> fs1,
+			final List<Feature> fs2,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
+
+		final ArrayList<PointMatch> matches = filterMatchFeatures(fs1, fs2, rod, scale, filter, matcher);
+
+		final M model = modelSupplier.get();
+		try {
+			model.fit(matches);
+		} catch (final NotEnoughDataPointsException | IllDefinedDataPointsException e) {
+			return null;
+		}
+
+		return modelTransformConverter.apply(model);
+	}
+
 	/**
 	 * Align two images with SIFT features.  Returns the inverse transform
 	 * of mapping a into b which is, well, the forward transform for mapping
@@ -265,7 +633,47 @@ public class Align {
 			final Supplier<M> modelSupplier,
 			final Function<M, R> modelTransformConverter) {
 
-		final ArrayList<PointMatch> matches = filterMatchSIFT(a, b, maxScale, minScale, fdSize, rod, scale, filter);
+		return alignFeatures(
+				a,
+				b,
+				new SIFTFeatureExtractor(maxScale, minScale, fdSize),
+				rod,
+				scale,
+				filter,
+				new ExactFeatureMatcher(),
+				modelSupplier,
+				modelTransformConverter);
+	}
+
+	/**
+	 * Align two images with features of a {@link FeatureExtractor}.
+	 * Returns the inverse transform of mapping a into b as
+	 * {@link #alignSIFT(RandomAccessibleInterval, RandomAccessibleInterval, double, double, int, double, double, ConsensusFilter, Supplier, Function)}.
+	 *
+	 * @param a
+	 * @param b
+	 * @param extractor
+	 * @param rod
+	 * @param scale
+	 * @param filter
+	 * @param matcher for the descriptors of extractor, e.g. from
+	 *     {@link FeatureExtractor#createMatcher}
+	 * @param modelSupplier
+	 * @param modelTransformConverter
+	 * @return
+	 */
+	static public <M extends Model<M>, R extends RealTransform> R alignFeatures(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final FeatureExtractor extractor,
+			final double rod,
+			final double scale,
+			final ConsensusFilter filter,
+			final FeatureMatcher matcher,
+			final Supplier<M> modelSupplier,
+			final Function<M, R> modelTransformConverter) {
+
+		final ArrayList<PointMatch> matches = filterMatchFeatures(a, b, extractor, rod, scale, filter, matcher);
 
 		final M model = modelSupplier.get();
 		try {
@@ -322,12 +730,29 @@ public class Align {
 			final double sigma,
 			final int numIterations) {
 
+		return alignFlow(a, b, new PMCCScaleSpaceBlockFlow.Param(radius, sigma, numIterations));
+	}
+
+	/**
+	 * Align two images with block matching.  Returns the inverse transform
+	 * of mapping a into b which is, well, the forward transform for mapping
+	 * b into a.  With {@link PMCCScaleSpaceBlockFlow.Param#pyramidLevels}
+	 * &gt; 0, the flow is estimated coarse to fine in one call.
+	 *
+	 * @param a
+	 * @param b
+	 * @param param
+	 * @return
+	 */
+	static public RealTransform alignFlow(
+			final RandomAccessibleInterval<FloatType> a,
+			final RandomAccessibleInterval<FloatType> b,
+			final PMCCScaleSpaceBlockFlow.Param param) {
+
 		final Pair<PositionFieldTransform<DoubleType>, FloatProcessor> transformAndWeights = PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(
 				Util.materialize(b),
 				Util.materialize(a),
-				radius,
-				sigma,
-				numIterations);
+				param);
 
 		final double[] offset = Intervals.minAsDoubleArray(a);
 		final double[] inverseOffset = new double[offset.length];
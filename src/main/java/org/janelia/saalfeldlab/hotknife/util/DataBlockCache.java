@@ -0,0 +1,343 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import static net.imglib2.type.PrimitiveType.DOUBLE;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5Reader;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.Cache;
+import net.imglib2.cache.img.CachedCellImg;
+import net.imglib2.cache.ref.SoftRefLoaderCache;
+import net.imglib2.img.basictypeaccess.AccessFlags;
+import net.imglib2.img.basictypeaccess.ArrayDataAccessFactory;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * JVM-wide, size-bounded LRU cache of decoded N5 {@link DataBlock
+ * DataBlocks} keyed by N5 path, dataset, version, and grid position, and of
+ * the attributes of the datasets they belong to.  All tasks of a Spark
+ * executor share one {@link #getInstance() instance}, such that the
+ * position field blocks of a prior transform are read and decompressed
+ * once per executor and not once per task.
+ *
+ * The blocks are distributed over stripes by key hash.  Each stripe is an
+ * access ordered map with its own lock and share of the byte budget.
+ * Blocks are read outside of the lock, such that misses do not serialize
+ * on I/O, two tasks may occasionally read the same block and the first
+ * one wins.  The budget is set by the system property
+ * hotknife.blockCacheBytes, default is a quarter of the max heap size.
+ *
+ * The version is the {@link Transform#VERSION_ATTRIBUTE} that is renewed
+ * whenever a transform is written.  Callers read it once with
+ * {@link #getVersion(String, String)} and pass it to all reads of that
+ * dataset, such that a rewritten dataset misses the cache and its stale
+ * blocks are eventually evicted, and attributes of an older version are
+ * replaced.  Datasets without version are assumed not to change.
+ *
+ * Cached blocks are shared and must not be modified.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class DataBlockCache {
+
+	final static private int NUM_STRIPES = 16;
+
+	/* approximate overhead per entry */
+	final static private long ENTRY_BYTES = 128;
+
+	final static private DataBlockCache instance = new DataBlockCache(
+			Long.getLong("hotknife.blockCacheBytes", Runtime.getRuntime().maxMemory() / 4),
+			NUM_STRIPES);
+
+	public static DataBlockCache getInstance() {
+
+		return instance;
+	}
+
+	final static private class Key {
+
+		final String path;
+		final Long version;
+		final long[] gridPosition;
+		final int hashCode;
+
+		Key(final String path, final Long version, final long[] gridPosition) {
+
+			this.path = path;
+			this.version = version;
+			this.gridPosition = gridPosition.clone();
+			hashCode = 31 * (31 * path.hashCode() + Objects.hashCode(version)) + Arrays.hashCode(gridPosition);
+		}
+
+		@Override
+		public boolean equals(final Object other) {
+
+			if (!(other instanceof Key))
+				return false;
+			final Key key = (Key)other;
+			return path.equals(key.path) && Objects.equals(version, key.version) && Arrays.equals(gridPosition, key.gridPosition);
+		}
+
+		@Override
+		public int hashCode() {
+
+			return hashCode;
+		}
+	}
+
+	/* a cached attribute and the version of the dataset it was read from */
+	final static private class Versioned {
+
+		final Long version;
+		final Object value;
+
+		Versioned(final Long version, final Object value) {
+
+			this.version = version;
+			this.value = value;
+		}
+	}
+
+	final static private class Stripe {
+
+		final LinkedHashMap<Key, DataBlock<?>> blocks = new LinkedHashMap<>(16, 0.75f, true);
+		final long maxBytes;
+		long bytes = 0;
+
+		Stripe(final long maxBytes) {
+
+			this.maxBytes = maxBytes;
+		}
+	}
+
+	final private Stripe[] stripes;
+	final private ConcurrentHashMap<String, N5Reader> readers = new ConcurrentHashMap<>();
+	final private ConcurrentHashMap<String, Versioned> datasetAttributes = new ConcurrentHashMap<>();
+	final private ConcurrentHashMap<String, Versioned> attributes = new ConcurrentHashMap<>();
+
+	public DataBlockCache(final long maxBytes, final int numStripes) {
+
+		stripes = new Stripe[numStripes];
+		Arrays.setAll(stripes, i -> new Stripe(maxBytes / numStripes));
+	}
+
+	private static long bytes(final DataBlock<?> block) {
+
+		final Object data = block.getData();
+		final long elementBytes;
+		if (data instanceof byte[])
+			elementBytes = 1;
+		else if (data instanceof short[])
+			elementBytes = 2;
+		else if (data instanceof int[] || data instanceof float[])
+			elementBytes = 4;
+		else
+			elementBytes = 8;
+		return block.getNumElements() * elementBytes + ENTRY_BYTES;
+	}
+
+	private N5Reader getReader(final String n5Path) throws IOException {
+
+		N5Reader n5 = readers.get(n5Path);
+		if (n5 == null) {
+			n5 = new N5FSReader(n5Path);
+			final N5Reader cached = readers.putIfAbsent(n5Path, n5);
+			if (cached != null)
+				n5 = cached;
+		}
+		return n5;
+	}
+
+	/**
+	 * Read the current {@link Transform#VERSION_ATTRIBUTE} of a dataset, this
+	 * is not cached.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @return the version or null if the dataset has none
+	 * @throws IOException
+	 */
+	public Long getVersion(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		return getReader(n5Path).getAttribute(datasetName, Transform.VERSION_ATTRIBUTE, Long.class);
+	}
+
+	public DatasetAttributes getDatasetAttributes(
+			final String n5Path,
+			final String datasetName,
+			final Long version) throws IOException {
+
+		final String path = n5Path + "/" + datasetName;
+		final Versioned cached = datasetAttributes.get(path);
+		if (cached != null && Objects.equals(cached.version, version))
+			return (DatasetAttributes)cached.value;
+
+		final DatasetAttributes attributes = getReader(n5Path).getDatasetAttributes(datasetName);
+		if (attributes == null)
+			throw new IOException("No dataset " + datasetName + " in " + n5Path);
+		datasetAttributes.put(path, new Versioned(version, attributes));
+		return attributes;
+	}
+
+	@SuppressWarnings("unchecked")
+	public <T> T getAttribute(
+			final String n5Path,
+			final String datasetName,
+			final Long version,
+			final String key,
+			final Class<T> clazz) throws IOException {
+
+		final String path = n5Path + "/" + datasetName + "#" + key;
+		final Versioned cached = attributes.get(path);
+		if (cached != null && Objects.equals(cached.version, version))
+			return (T)cached.value;
+
+		final T attribute = getReader(n5Path).getAttribute(datasetName, key, clazz);
+		if (attribute == null)
+			return null;
+		attributes.put(path, new Versioned(version, attribute));
+		return attribute;
+	}
+
+	/**
+	 * Read a block through the cache.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @param version see {@link #getVersion(String, String)}
+	 * @param gridPosition
+	 * @return the shared block, or null if it does not exist
+	 * @throws IOException
+	 */
+	public DataBlock<?> readBlock(
+			final String n5Path,
+			final String datasetName,
+			final Long version,
+			final long... gridPosition) throws IOException {
+
+		final Key key = new Key(n5Path + "/" + datasetName, version, gridPosition);
+		final Stripe stripe = stripes[Math.floorMod(key.hashCode(), stripes.length)];
+
+		synchronized (stripe) {
+			final DataBlock<?> cached = stripe.blocks.get(key);
+			if (cached != null)
+				return cached;
+		}
+
+		final DataBlock<?> block = getReader(n5Path).readBlock(
+				datasetName,
+				getDatasetAttributes(n5Path, datasetName, version),
+				gridPosition);
+		if (block == null)
+			return null;
+
+		synchronized (stripe) {
+			final DataBlock<?> cached = stripe.blocks.putIfAbsent(key, block);
+			if (cached != null)
+				return cached;
+
+			stripe.bytes += bytes(block);
+			final Iterator<Entry<Key, DataBlock<?>>> eldest = stripe.blocks.entrySet().iterator();
+			while (stripe.bytes > stripe.maxBytes && stripe.blocks.size() > 1) {
+				stripe.bytes -= bytes(eldest.next().getValue());
+				eldest.remove();
+			}
+		}
+
+		return block;
+	}
+
+	/**
+	 * Open a FLOAT64 dataset as a lazy cell image whose cells share the data
+	 * of the cached blocks.  The cell image itself is not shared, each call
+	 * creates a new one that only holds soft references to its cells.
+	 * Missing blocks are zero.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @param version see {@link #getVersion(String, String)}
+	 * @return
+	 * @throws IOException
+	 */
+	public RandomAccessibleInterval<DoubleType> openDouble(
+			final String n5Path,
+			final String datasetName,
+			final Long version) throws IOException {
+
+		final DatasetAttributes attributes = getDatasetAttributes(n5Path, datasetName, version);
+		if (attributes.getDataType() != DataType.FLOAT64)
+			throw new IOException(datasetName + " is " + attributes.getDataType() + ", expected " + DataType.FLOAT64);
+
+		final CellGrid grid = new CellGrid(attributes.getDimensions(), attributes.getBlockSize());
+		final int n = grid.numDimensions();
+
+		final Cache<Long, Cell<DoubleArray>> cache = new SoftRefLoaderCache<Long, Cell<DoubleArray>>()
+				.withLoader(index -> {
+					final long[] gridPosition = new long[n];
+					final long[] cellMin = new long[n];
+					final int[] cellDimensions = new int[n];
+					grid.getCellGridPositionFlat(index, gridPosition);
+					grid.getCellDimensions(gridPosition, cellMin, cellDimensions);
+					final DataBlock<?> block = readBlock(n5Path, datasetName, version, gridPosition);
+					final double[] data;
+					if (block == null) {
+						long size = 1;
+						for (final int s : cellDimensions)
+							size *= s;
+						data = new double[(int)size];
+					} else
+						data = (double[])block.getData();
+					return new Cell<>(cellDimensions, cellMin, new DoubleArray(data));
+				});
+
+		return new CachedCellImg<>(grid, new DoubleType(), cache, ArrayDataAccessFactory.get(DOUBLE, AccessFlags.setOf()));
+	}
+
+	/**
+	 * Remove all blocks and attributes.
+	 */
+	public void clear() {
+
+		for (final Stripe stripe : stripes) {
+			synchronized (stripe) {
+				stripe.blocks.clear();
+				stripe.bytes = 0;
+			}
+		}
+		datasetAttributes.clear();
+		attributes.clear();
+	}
+}
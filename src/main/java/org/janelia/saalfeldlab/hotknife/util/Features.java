@@ -0,0 +1,279 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * Binary encoding of SIFT features and an N5 backed feature cache.
+ *
+ * Features are stored as variable length INT8 blocks, one block per
+ * extraction tile, in a dataset per face and scale level in a features
+ * group outside of the image data, e.g.
+ * /features/slab-24/top/s4/0123456789abcdef.  The last path element is a
+ * hash of everything that determines the features, i.e. the SIFT parameters,
+ * the prior transform, and the tiling, such that any change of those misses
+ * the cache.  Parameters of matching and filtering are not part of the key.
+ * Only the most recently created key of a face and scale level is kept.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class Features {
+
+	private Features() {}
+
+	final static private long FNV_OFFSET = 0xcbf29ce484222325L;
+	final static private long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Encode features as
+	 * <pre>
+	 * int numFeatures
+	 * int descriptorLength
+	 * numFeatures * {
+	 *   double x, y, scale, orientation
+	 *   float[descriptorLength] descriptor
+	 * }
+	 * </pre>
+	 * big endian.  All features must have descriptors of equal length.
+	 *
+	 * @param features
+	 * @return
+	 */
+	public static byte[] encode(final List<Feature> features) {
+
+		final int n = features.size();
+		final int descriptorLength = n == 0 ? 0 : features.get(0).descriptor.length;
+		final ByteBuffer buffer = ByteBuffer.allocate(8 + n * (32 + 4 * descriptorLength));
+		buffer.putInt(n);
+		buffer.putInt(descriptorLength);
+		for (final Feature feature : features) {
+			buffer.putDouble(feature.location[0]);
+			buffer.putDouble(feature.location[1]);
+			buffer.putDouble(feature.scale);
+			buffer.putDouble(feature.orientation);
+			for (int i = 0; i < descriptorLength; ++i)
+				buffer.putFloat(feature.descriptor[i]);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode features encoded by {@link #encode(List)}.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static ArrayList<Feature> decode(final byte[] bytes) {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		final int n = buffer.getInt();
+		final int descriptorLength = buffer.getInt();
+		final ArrayList<Feature> features = new ArrayList<>(n);
+		for (int j = 0; j < n; ++j) {
+			final double x = buffer.getDouble();
+			final double y = buffer.getDouble();
+			final double scale = buffer.getDouble();
+			final double orientation = buffer.getDouble();
+			final float[] descriptor = new float[descriptorLength];
+			for (int i = 0; i < descriptorLength; ++i)
+				descriptor[i] = buffer.getFloat();
+			features.add(new Feature(scale, orientation, new double[]{x, y}, descriptor));
+		}
+		return features;
+	}
+
+	private static long hash(long h, final long value) {
+
+		for (int i = 0; i < 64; i += 8) {
+			h ^= (value >>> i) & 0xff;
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	private static long hash(final long h, final double value) {
+
+		return hash(h, Double.doubleToLongBits(value));
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a sequence of values.
+	 *
+	 * @param values
+	 * @return
+	 */
+	public static long hash(final long... values) {
+
+		long h = FNV_OFFSET;
+		for (final long value : values)
+			h = hash(h, value);
+		return h;
+	}
+
+	/**
+	 * Hash of the SIFT parameters that affect extraction.
+	 *
+	 * @param p
+	 * @return
+	 */
+	public static long hash(final FloatArray2DSIFT.Param p) {
+
+		long h = FNV_OFFSET;
+		h = hash(h, p.fdSize);
+		h = hash(h, p.fdBins);
+		h = hash(h, p.maxOctaveSize);
+		h = hash(h, p.minOctaveSize);
+		h = hash(h, p.steps);
+		h = hash(h, p.initialSigma);
+		return h;
+	}
+
+	/**
+	 * Hash identifying a scaled transform dataset as saved by
+	 * {@link Transform#saveScaledTransform}.  This is the
+	 * {@link Transform#VERSION_ATTRIBUTE} that is renewed whenever the
+	 * transform is written, so only attributes are read.  Transforms written
+	 * before that attribute existed cannot be identified without reading
+	 * them, features and matches that depend on them are not cached.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return the hash or null if the transform has no version
+	 * @throws IOException
+	 */
+	public static Long hash(final N5Reader n5, final String datasetName) throws IOException {
+
+		final Long version = n5.getAttribute(datasetName, Transform.VERSION_ATTRIBUTE, Long.class);
+		return version == null ? null : hash(version);
+	}
+
+	/**
+	 * Name of the feature cache dataset for a face.
+	 *
+	 * @param featuresGroupName N5 group of the feature caches
+	 * @param datasetName multi-scale dataset group of the face
+	 * @param scaleIndex
+	 * @param keys hashes of everything that determines the features
+	 * @return
+	 */
+	public static String cacheDatasetName(
+			final String featuresGroupName,
+			final String datasetName,
+			final int scaleIndex,
+			final long... keys) {
+
+		return featuresGroupName + (datasetName.startsWith("/") ? "" : "/") + datasetName + "/s" + scaleIndex + "/" + String.format("%016x", hash(keys));
+	}
+
+	/**
+	 * Create a feature cache dataset with one block per extraction tile if it
+	 * does not exist yet.  Caches of other keys for the same face and scale
+	 * level are stale and removed.
+	 *
+	 * @param n5
+	 * @param cacheDatasetName
+	 * @param gridDimensions number of tiles per dimension
+	 * @return
+	 * @throws IOException
+	 */
+	public static DatasetAttributes createCache(
+			final N5Writer n5,
+			final String cacheDatasetName,
+			final long[] gridDimensions) throws IOException {
+
+		if (n5.datasetExists(cacheDatasetName)) {
+			final DatasetAttributes attributes = n5.getDatasetAttributes(cacheDatasetName);
+			if (Arrays.equals(attributes.getDimensions(), gridDimensions))
+				return attributes;
+		}
+
+		final String groupName = cacheDatasetName.substring(0, cacheDatasetName.lastIndexOf('/'));
+		final String key = cacheDatasetName.substring(cacheDatasetName.lastIndexOf('/') + 1);
+		if (n5.exists(groupName))
+			for (final String staleKey : n5.list(groupName))
+				if (!staleKey.equals(key))
+					n5.remove(groupName + "/" + staleKey);
+
+		final int[] blockSize = new int[gridDimensions.length];
+		Arrays.fill(blockSize, 1);
+		n5.createDataset(cacheDatasetName, gridDimensions, blockSize, DataType.INT8, new GzipCompression());
+		return n5.getDatasetAttributes(cacheDatasetName);
+	}
+
+	/**
+	 * Save the features of a tile.
+	 *
+	 * @param n5
+	 * @param cacheDatasetName
+	 * @param gridPosition
+	 * @param features
+	 * @throws IOException
+	 */
+	public static void saveBlock(
+			final N5Writer n5,
+			final String cacheDatasetName,
+			final long[] gridPosition,
+			final List<Feature> features) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(cacheDatasetName);
+		n5.writeBlock(
+				cacheDatasetName,
+				attributes,
+				new ByteArrayDataBlock(attributes.getBlockSize(), gridPosition, encode(features)));
+	}
+
+	/**
+	 * Load the features of a tile.
+	 *
+	 * @param n5
+	 * @param cacheDatasetName
+	 * @param gridPosition
+	 * @return the features or null if they have not been cached
+	 * @throws IOException
+	 */
+	public static ArrayList<Feature> loadBlock(
+			final N5Reader n5,
+			final String cacheDatasetName,
+			final long[] gridPosition) throws IOException {
+
+		if (!n5.datasetExists(cacheDatasetName))
+			return null;
+
+		final DataBlock<?> block = n5.readBlock(
+				cacheDatasetName,
+				n5.getDatasetAttributes(cacheDatasetName),
+				gridPosition);
+
+		return block == null ? null : decode((byte[])block.getData());
+	}
+}
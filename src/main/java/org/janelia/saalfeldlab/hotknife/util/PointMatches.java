@@ -0,0 +1,246 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Binary encoding of 2D point matches and an N5 backed store of candidate
+ * matches per grid cell, such that filtering and solving can be repeated
+ * with different parameters without extracting and matching features
+ * again.
+ *
+ * Matches are stored as variable length INT8 blocks, one block per grid
+ * cell, in a dataset per pair of faces, e.g.
+ * /matches/slab-24_top/slab-25_bot.  The dataset attributes record the grid
+ * and a key, a hash of everything else that determines the candidates, e.g.
+ * the prior transforms, the feature extraction, and the matcher, such that a
+ * store written for a different grid or with different inputs is not used.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class PointMatches {
+
+	private PointMatches() {}
+
+	/**
+	 * Encode point matches as
+	 * <pre>
+	 * int numMatches
+	 * numMatches * {
+	 *   double p1x, p1y, p2x, p2y, weight
+	 * }
+	 * </pre>
+	 * big endian.  Only local coordinates of the points are stored.
+	 *
+	 * @param matches
+	 * @return
+	 */
+	public static byte[] encode(final List<PointMatch> matches) {
+
+		final ByteBuffer buffer = ByteBuffer.allocate(4 + matches.size() * 40);
+		buffer.putInt(matches.size());
+		for (final PointMatch match : matches) {
+			final double[] p1 = match.getP1().getL();
+			final double[] p2 = match.getP2().getL();
+			buffer.putDouble(p1[0]);
+			buffer.putDouble(p1[1]);
+			buffer.putDouble(p2[0]);
+			buffer.putDouble(p2[1]);
+			buffer.putDouble(match.getWeight());
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * Decode point matches encoded by {@link #encode(List)}.  World
+	 * coordinates are initialized to the local coordinates.
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public static ArrayList<PointMatch> decode(final byte[] bytes) {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		final int n = buffer.getInt();
+		final ArrayList<PointMatch> matches = new ArrayList<>(n);
+		for (int i = 0; i < n; ++i) {
+			final Point p1 = new Point(new double[]{buffer.getDouble(), buffer.getDouble()});
+			final Point p2 = new Point(new double[]{buffer.getDouble(), buffer.getDouble()});
+			matches.add(new PointMatch(p1, p2, buffer.getDouble()));
+		}
+		return matches;
+	}
+
+	/**
+	 * Name of the match dataset for a pair of faces.
+	 *
+	 * @param groupName
+	 * @param nameA
+	 * @param nameB
+	 * @return
+	 */
+	public static String datasetName(
+			final String groupName,
+			final String nameA,
+			final String nameB) {
+
+		return groupName + "/" + nameA + "/" + nameB;
+	}
+
+	/**
+	 * Create a match dataset with one block per grid cell, replacing an
+	 * existing one.  The grid min and spacing and the key are saved as
+	 * attributes.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridDimensions number of grid cells per dimension
+	 * @param min offset of the first grid cell
+	 * @param spacing grid spacing
+	 * @param key hash of everything else that determines the matches
+	 * @throws IOException
+	 */
+	public static void createDataset(
+			final N5Writer n5,
+			final String datasetName,
+			final long[] gridDimensions,
+			final long[] min,
+			final int[] spacing,
+			final long key) throws IOException {
+
+		if (n5.datasetExists(datasetName))
+			n5.remove(datasetName);
+
+		final int[] blockSize = new int[gridDimensions.length];
+		Arrays.fill(blockSize, 1);
+		n5.createDataset(datasetName, gridDimensions, blockSize, DataType.INT8, new GzipCompression());
+		n5.setAttribute(datasetName, "min", min);
+		n5.setAttribute(datasetName, "spacing", spacing);
+		n5.setAttribute(datasetName, "key", key);
+		n5.setAttribute(datasetName, "complete", false);
+	}
+
+	/**
+	 * Mark a match dataset complete after all grid cells have been saved.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @throws IOException
+	 */
+	public static void setComplete(
+			final N5Writer n5,
+			final String datasetName) throws IOException {
+
+		n5.setAttribute(datasetName, "complete", true);
+	}
+
+	/**
+	 * Test whether a complete match dataset for the given grid and key
+	 * exists.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridDimensions
+	 * @param min
+	 * @param spacing
+	 * @param key
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean exists(
+			final N5Reader n5,
+			final String datasetName,
+			final long[] gridDimensions,
+			final long[] min,
+			final int[] spacing,
+			final long key) throws IOException {
+
+		if (!n5.datasetExists(datasetName))
+			return false;
+
+		final Boolean complete = n5.getAttribute(datasetName, "complete", Boolean.class);
+		final Long datasetKey = n5.getAttribute(datasetName, "key", Long.class);
+		return
+				complete != null &&
+				complete &&
+				datasetKey != null &&
+				datasetKey == key &&
+				Arrays.equals(n5.getDatasetAttributes(datasetName).getDimensions(), gridDimensions) &&
+				Arrays.equals(n5.getAttribute(datasetName, "min", long[].class), min) &&
+				Arrays.equals(n5.getAttribute(datasetName, "spacing", int[].class), spacing);
+	}
+
+	/**
+	 * Save the matches of a grid cell.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridPosition
+	 * @param matches
+	 * @throws IOException
+	 */
+	public static void saveBlock(
+			final N5Writer n5,
+			final String datasetName,
+			final long[] gridPosition,
+			final List<PointMatch> matches) throws IOException {
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes(datasetName);
+		n5.writeBlock(
+				datasetName,
+				attributes,
+				new ByteArrayDataBlock(attributes.getBlockSize(), gridPosition, encode(matches)));
+	}
+
+	/**
+	 * Load the matches of a grid cell.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @param gridPosition
+	 * @return the matches, empty if the grid cell has not been saved
+	 * @throws IOException
+	 */
+	public static ArrayList<PointMatch> loadBlock(
+			final N5Reader n5,
+			final String datasetName,
+			final long[] gridPosition) throws IOException {
+
+		final DataBlock<?> block = n5.readBlock(
+				datasetName,
+				n5.getDatasetAttributes(datasetName),
+				gridPosition);
+
+		return block == null ? new ArrayList<>() : decode((byte[])block.getData());
+	}
+}
@@ -16,16 +16,34 @@
  */
 package org.janelia.saalfeldlab.hotknife.util;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.apache.spark.api.java.JavaPairRDD;
+import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
 import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
 import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
 
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform2D;
 import net.imglib2.realtransform.RealTransform;
+import net.imglib2.realtransform.RealTransformSequence;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import scala.Tuple2;
+import scala.Tuple3;
 
 /**
  *
@@ -75,4 +93,492 @@ public class Spark {
 							boundsMax);
 				});
 	}
+
+	/**
+	 * Work items for all grid cells of a number of targets, e.g. pairs of
+	 * faces, such that each phase of an alignment runs as one Spark job for
+	 * all targets.
+	 *
+	 * @param sc
+	 * @param numTargets
+	 * @param gridOffsets
+	 * @return (targetIndex, gridOffset) for all targets and grid offsets
+	 */
+	public static JavaRDD<Tuple2<Integer, long[]>> parallelizeGridCells(
+			final JavaSparkContext sc,
+			final int numTargets,
+			final List<long[]> gridOffsets) {
+
+		final ArrayList<Tuple2<Integer, long[]>> gridCells = new ArrayList<>();
+		for (int i = 0; i < numTargets; ++i)
+			for (final long[] gridOffset : gridOffsets)
+				gridCells.add(new Tuple2<>(i, gridOffset));
+
+		return sc.parallelize(gridCells);
+	}
+
+	/**
+	 * Work items for the grid cells of a number of targets whose mask entry
+	 * equals value, e.g. the occupied or the pruned cells of
+	 * {@link #occupiedGridCells(JavaSparkContext, String, List, List, int, List, List, int, List, long, double)}.
+	 *
+	 * @param sc
+	 * @param gridOffsets
+	 * @param masks per target, indexed like gridOffsets
+	 * @param value
+	 * @return (targetIndex, gridOffset) for all selected grid cells
+	 */
+	public static JavaRDD<Tuple2<Integer, long[]>> parallelizeGridCells(
+			final JavaSparkContext sc,
+			final List<long[]> gridOffsets,
+			final List<boolean[]> masks,
+			final boolean value) {
+
+		final ArrayList<Tuple2<Integer, long[]>> gridCells = new ArrayList<>();
+		for (int i = 0; i < masks.size(); ++i)
+			for (int j = 0; j < gridOffsets.size(); ++j)
+				if (masks.get(i)[j] == value)
+					gridCells.add(new Tuple2<>(i, gridOffsets.get(j)));
+
+		return sc.parallelize(gridCells);
+	}
+
+	/**
+	 * Occupancy of a warped face per grid offset, sampled at a coarse scale
+	 * level.  A grid cell is occupied if at least minForegroundRatio of its
+	 * pixels, and at least one, are foreground (!= 0).
+	 *
+	 * @return occupied flags, indexed like gridOffsets
+	 */
+	private static boolean[] occupiedGridCells(
+			final N5Reader n5,
+			final String n5Path,
+			final String datasetName,
+			final int occupancyScaleIndex,
+			final String transformDatasetName,
+			final int scaleIndex,
+			final List<long[]> gridOffsets,
+			final long gridCellWidth,
+			final double minForegroundRatio) throws IOException {
+
+		final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5, datasetName + "/s" + occupancyScaleIndex);
+		final RealTransform transform = Transform.loadCachedScaledTransform(n5Path, transformDatasetName);
+		final long f = 1L << (occupancyScaleIndex - scaleIndex);
+
+		/* the interval is irrelevant, grid cells are cut from the unbounded view */
+		final RandomAccessibleInterval<FloatType> transformed = Transform.createTransformedInterval(
+				source,
+				source,
+				Transform.createScaledRealTransform(transform, occupancyScaleIndex),
+				new FloatType(0));
+
+		final boolean[] occupied = new boolean[gridOffsets.size()];
+		for (int j = 0; j < occupied.length; ++j) {
+			final long[] offset = gridOffsets.get(j);
+			final FinalInterval cell = new FinalInterval(
+					new long[]{
+							Math.floorDiv(offset[0], f),
+							Math.floorDiv(offset[1], f)},
+					new long[]{
+							Math.floorDiv(offset[0] + gridCellWidth - 1, f),
+							Math.floorDiv(offset[1] + gridCellWidth - 1, f)});
+			long n = 0;
+			long foreground = 0;
+			for (final FloatType t : Views.interval(transformed, cell)) {
+				++n;
+				if (t.get() != 0)
+					++foreground;
+			}
+			occupied[j] = foreground > 0 && foreground >= minForegroundRatio * n;
+		}
+
+		return occupied;
+	}
+
+	/**
+	 * Coarse occupancy pre-pass for the grid cells of a number of pairs of
+	 * faces.  Both faces are warped by their prior transforms at a coarse
+	 * scale level, and a grid cell is occupied if at least the given
+	 * fraction of its pixels, and at least one, are foreground (!= 0) in A
+	 * and in B.  Grid cells that are not occupied do not need to be loaded,
+	 * warped, or aligned and keep the prior transform.  Each face is one
+	 * task, the coarse level keeps them cheap.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetNamesA multi-scale dataset groups per pair
+	 * @param datasetNamesB multi-scale dataset groups per pair
+	 * @param occupancyScaleIndex coarse scale level, at least scaleIndex
+	 * @param transformDatasetNamesA scaled transform datasets per pair
+	 * @param transformDatasetNamesB scaled transform datasets per pair
+	 * @param scaleIndex scale level of the grid
+	 * @param gridOffsets
+	 * @param gridCellWidth
+	 * @param minForegroundRatio
+	 * @return occupied per pair, indexed like gridOffsets
+	 */
+	public static ArrayList<boolean[]> occupiedGridCells(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNamesA,
+			final List<String> datasetNamesB,
+			final int occupancyScaleIndex,
+			final List<String> transformDatasetNamesA,
+			final List<String> transformDatasetNamesB,
+			final int scaleIndex,
+			final List<long[]> gridOffsets,
+			final long gridCellWidth,
+			final double minForegroundRatio) {
+
+		final int coarseScaleIndex = Math.max(scaleIndex, occupancyScaleIndex);
+
+		/* A of pair i is face 2i, B is face 2i + 1 */
+		final ArrayList<Tuple2<String, String>> faces = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			faces.add(new Tuple2<>(datasetNamesA.get(i), transformDatasetNamesA.get(i)));
+			faces.add(new Tuple2<>(datasetNamesB.get(i), transformDatasetNamesB.get(i)));
+		}
+
+		final List<boolean[]> faceOccupancy = sc.parallelize(faces, Math.max(1, faces.size())).map(
+				face -> occupiedGridCells(
+						new N5FSReader(n5Path),
+						n5Path,
+						face._1(),
+						coarseScaleIndex,
+						face._2(),
+						scaleIndex,
+						gridOffsets,
+						gridCellWidth,
+						minForegroundRatio)).collect();
+
+		final ArrayList<boolean[]> occupied = new ArrayList<>();
+		for (int i = 0; i < datasetNamesA.size(); ++i) {
+			final boolean[] a = faceOccupancy.get(2 * i);
+			final boolean[] b = faceOccupancy.get(2 * i + 1);
+			final boolean[] ab = new boolean[a.length];
+			int numOccupied = 0;
+			for (int j = 0; j < ab.length; ++j) {
+				ab[j] = a[j] && b[j];
+				if (ab[j])
+					++numOccupied;
+			}
+			occupied.add(ab);
+
+			System.out.printf("%d of %d grid cells occupied in %s and %s", numOccupied, ab.length, datasetNamesA.get(i), datasetNamesB.get(i));
+			System.out.println();
+		}
+
+		return occupied;
+	}
+
+	/**
+	 * Warp faces by their transforms at a scale level into FLOAT32 datasets,
+	 * once and block parallel, such that grid cell tasks read plain pixels
+	 * instead of evaluating the transform and interpolation for each of
+	 * their 50% overlapping, twice oversized cells.  The warped faces cover
+	 * [min, max] in scaled target coordinates, min is stored in the "min"
+	 * attribute for {@link #openTransformedFace(N5Reader, String)}.  The
+	 * warped faces are temporary, the caller removes them, also if this
+	 * fails.
+	 *
+	 * @param sc
+	 * @param n5Path
+	 * @param datasetNames multi-scale dataset groups, dataset path is datasetName + "/s" + scaleIndex
+	 * @param scaleIndex
+	 * @param transformDatasetNames scaled transform datasets per face
+	 * @param outDatasetNames per face
+	 * @param min
+	 * @param max
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	public static void saveTransformedFaces(
+			final JavaSparkContext sc,
+			final String n5Path,
+			final List<String> datasetNames,
+			final int scaleIndex,
+			final List<String> transformDatasetNames,
+			final List<String> outDatasetNames,
+			final long[] min,
+			final long[] max,
+			final int[] blockSize) throws IOException {
+
+		final long[] dimensions = new long[min.length];
+		Arrays.setAll(dimensions, d -> max[d] - min[d] + 1);
+		final DatasetAttributes attributes = new DatasetAttributes(
+				dimensions,
+				blockSize,
+				DataType.FLOAT32,
+				new GzipCompression());
+
+		final N5Writer n5 = new N5FSWriter(n5Path);
+		for (final String outDatasetName : outDatasetNames) {
+			n5.createDataset(outDatasetName, attributes);
+			n5.setAttribute(outDatasetName, "min", min);
+		}
+
+		final ArrayList<Tuple2<Integer, long[][]>> faceBlocks = new ArrayList<>();
+		for (final long[][] gridBlock : Grid.create(dimensions, blockSize))
+			for (int i = 0; i < outDatasetNames.size(); ++i)
+				faceBlocks.add(new Tuple2<>(i, gridBlock));
+
+		sc.parallelize(faceBlocks).foreach(
+				faceBlock -> {
+					final int i = faceBlock._1();
+					final long[][] gridBlock = faceBlock._2();
+					final N5Writer n5Writer = new N5FSWriter(n5Path);
+					final RandomAccessibleInterval<FloatType> source = N5Utils.open(n5Writer, datasetNames.get(i) + "/s" + scaleIndex);
+					final RealTransform transform = Transform.loadCachedScaledTransform(n5Path, transformDatasetNames.get(i));
+					final RandomAccessibleInterval<FloatType> transformed = Transform.createTransformedInterval(
+							source,
+							Intervals.createMinSize(
+									min[0] + gridBlock[0][0],
+									min[1] + gridBlock[0][1],
+									gridBlock[1][0],
+									gridBlock[1][1]),
+							Transform.createScaledRealTransform(transform, scaleIndex),
+							new FloatType(0));
+					N5Utils.saveBlock(transformed, n5Writer, outDatasetNames.get(i), attributes, gridBlock[2]);
+				});
+	}
+
+	/**
+	 * Open a face warped by
+	 * {@link #saveTransformedFaces(JavaSparkContext, String, List, int, List, List, long[], long[], int[])}
+	 * in scaled target coordinates.
+	 *
+	 * @param n5
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static RandomAccessibleInterval<FloatType> openTransformedFace(
+			final N5Reader n5,
+			final String datasetName) throws IOException {
+
+		final long[] min = n5.getAttribute(datasetName, "min", long[].class);
+		return Views.translate(N5Utils.<FloatType>open(n5, datasetName), min);
+	}
+
+	/**
+	 * Sample the position field of the transform of one 50% overlapping grid
+	 * cell and split it into the up to 2x2 blocks of the composed transform
+	 * dataset that the cell covers.  Each block is keyed by (targetIndex,
+	 * block x, block y) and tagged with the role of this cell for the
+	 * bilinear blend of that block, 2 * x + y with 1 for the cell that starts
+	 * at the block and 0 for the one that starts a block earlier.  This is
+	 * for 2D transformation fields only.
+	 *
+	 * @param targetIndex
+	 * @param gridCell grid cell index
+	 * @param transform world coordinate transform of the grid cell
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize block size of the composed transform dataset
+	 * @return
+	 */
+	public static ArrayList<Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>>> gridCellBlocks(
+			final int targetIndex,
+			final long[] gridCell,
+			final RealTransform transform,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize) {
+
+		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
+		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, transformScale);
+		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
+
+		final ArrayList<Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>>> blocks = new ArrayList<>();
+		for (int i = 0; i < 2; ++i) {
+			for (int j = 0; j < 2; ++j) {
+				final long bx = gridCell[0] + i;
+				final long by = gridCell[1] + j;
+				final long[] min = new long[]{
+						floorScaledMin[0] + bx * stepSize,
+						floorScaledMin[1] + by * stepSize};
+				if (min[0] > ceilScaledMax[0] || min[1] > ceilScaledMax[1])
+					continue;
+
+				final int[] size = new int[]{
+						(int)Math.min(stepSize, ceilScaledMax[0] - min[0] + 1),
+						(int)Math.min(stepSize, ceilScaledMax[1] - min[1] + 1)};
+
+				blocks.add(
+						new Tuple2<>(
+								new Tuple3<>(targetIndex, bx, by),
+								new Tuple2<>(
+										2 * (1 - i) + (1 - j),
+										Transform.createPositionFieldBlock(scaledTransform, min, size))));
+			}
+		}
+
+		return blocks;
+	}
+
+	/**
+	 * Blend the contributions of up to four grid cells to a block of the
+	 * composed transform, as created by {@link #gridCellBlocks}, by bilinear
+	 * interpolation.  Contributions missing at the border of the grid are
+	 * replaced by their neighbor.  This is for 2D transformation fields only.
+	 *
+	 * @param contributions (role, position field block)
+	 * @param w block width
+	 * @param h block height
+	 * @param stepSize
+	 * @return the blended position field block
+	 */
+	public static double[] blendGridCellBlock(
+			final Iterable<Tuple2<Integer, double[]>> contributions,
+			final int w,
+			final int h,
+			final int stepSize) {
+
+		final double[][] t = new double[4][];
+		for (final Tuple2<Integer, double[]> contribution : contributions)
+			t[contribution._1()] = contribution._2();
+
+		/* clamp at the grid border, first in y, then in x */
+		if (t[2] == null) t[2] = t[3];
+		if (t[0] == null) t[0] = t[1];
+		if (t[0] == null) t[0] = t[2];
+		if (t[1] == null) t[1] = t[3];
+		for (int k = 0; k < 4; ++k)
+			for (int l = 0; t[k] == null; ++l)
+				t[k] = t[l];
+
+		final double[] data = new double[w * h * 2];
+		for (int d = 0, i = 0; d < 2; ++d) {
+			for (int y = 0; y < h; ++y) {
+				final double lambdaY = (double)y / stepSize;
+				for (int x = 0; x < w; ++x, ++i) {
+					final double lambdaX = (double)x / stepSize;
+					final double d0 = (t[2][i] - t[0][i]) * lambdaX + t[0][i];
+					final double d1 = (t[3][i] - t[1][i]) * lambdaX + t[1][i];
+					data[i] = (d1 - d0) * lambdaY + d0;
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Compose the per grid cell transforms of 50% overlapping grid cells
+	 * into one transform dataset per target by bilinear interpolation.
+	 * The contributions of up to four grid cells to each block, as created
+	 * by {@link #gridCellBlocks}, are gathered by a shuffle and each block is
+	 * blended in memory by {@link #blendGridCellBlock} and written once.
+	 * This is for 2D transformation fields only.
+	 *
+	 * @param blocks
+	 * @param n5Path
+	 * @param transformDatasetNames per target
+	 * @param transformScale
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @throws IOException
+	 */
+	public static void saveOverlappingGridCellBlocks(
+			final JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> blocks,
+			final String n5Path,
+			final List<String> transformDatasetNames,
+			final double transformScale,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize) throws IOException {
+
+		if (transformDatasetNames.isEmpty())
+			return;
+
+		final N5Writer n5Writer = new N5FSWriter(n5Path);
+		DatasetAttributes targetAttributes = null;
+		for (final String transformDatasetName : transformDatasetNames)
+			targetAttributes = Transform.createScaledTransformDataset(
+					n5Writer,
+					transformDatasetName,
+					boundsMin,
+					boundsMax,
+					transformScale,
+					new int[] {stepSize, stepSize});
+
+		/* all targets share bounds and scale */
+		final long[] dimensions = targetAttributes.getDimensions();
+
+		blocks.groupByKey().foreach(
+				block -> {
+					final long bx = block._1()._2();
+					final long by = block._1()._3();
+					final int w = (int)Math.min(stepSize, dimensions[0] - bx * stepSize);
+					final int h = (int)Math.min(stepSize, dimensions[1] - by * stepSize);
+
+					final double[] data = blendGridCellBlock(block._2(), w, h, stepSize);
+
+					final DatasetAttributes attributes = new DatasetAttributes(
+							dimensions,
+							new int[]{stepSize, stepSize, 2},
+							DataType.FLOAT64,
+							new GzipCompression());
+					new N5FSWriter(n5Path).writeBlock(
+							transformDatasetNames.get(block._1()._1()),
+							attributes,
+							new DoubleArrayDataBlock(new int[]{w, h, 2}, new long[]{bx, by, 0}, data));
+				});
+	}
+
+	/**
+	 * Compose per grid cell affines with the prior transform of their target
+	 * and create the blocks for
+	 * {@link #saveOverlappingGridCellBlocks(JavaPairRDD, String, List, double, double[], double[], int)}.
+	 * This is for 2D affine transforms only.
+	 *
+	 * @param affines row packed affines keyed by (targetIndex, gridOffset),
+	 *     null for the prior transform only
+	 * @param n5Path
+	 * @param priorTransformDatasetNames per target
+	 * @param boundsMin
+	 * @param boundsMax
+	 * @param stepSize
+	 * @param transformScale
+	 * @return
+	 */
+	public static JavaPairRDD<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> accumulatedAffineGridCellBlocks(
+			final JavaPairRDD<Tuple2<Integer, long[]>, double[]> affines,
+			final String n5Path,
+			final List<String> priorTransformDatasetNames,
+			final double[] boundsMin,
+			final double[] boundsMax,
+			final int stepSize,
+			final double transformScale) {
+
+		return affines.flatMapToPair(
+				t -> {
+					final int targetIndex = t._1()._1();
+					final RealTransform priorTransform = Transform.loadCachedScaledTransform(
+							n5Path,
+							priorTransformDatasetNames.get(targetIndex));
+					final long[] gridCell = Grid.gridCell(
+							t._1()._2(),
+							Grid.floorScaled(boundsMin, transformScale),
+							new int[]{stepSize, stepSize});
+					final RealTransformSequence transformSequence = new RealTransformSequence();
+					if (t._2() != null) {
+						final AffineTransform2D transform = new AffineTransform2D();
+						transform.set(t._2());
+						transformSequence.add(transform);
+					}
+					transformSequence.add(priorTransform);
+
+					return gridCellBlocks(
+							targetIndex,
+							gridCell,
+							transformSequence,
+							transformScale,
+							boundsMin,
+							boundsMax,
+							stepSize).iterator();
+				});
+	}
 }
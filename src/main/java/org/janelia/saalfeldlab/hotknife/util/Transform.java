@@ -21,6 +21,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
 
 import org.janelia.saalfeldlab.n5.DataType;
@@ -65,8 +66,21 @@ import net.imglib2.view.Views;
  */
 public class Transform {
 
+	/**
+	 * Attribute of scaled transform datasets that holds a random identifier
+	 * which is renewed whenever the dataset is written.  Caches of data
+	 * derived from a transform can be keyed on it without reading the
+	 * position field.
+	 */
+	public static final String VERSION_ATTRIBUTE = "version";
+
 	private Transform() {}
 
+	private static void setVersion(final N5Writer n5, final String datasetName) throws IOException {
+
+		n5.setAttribute(datasetName, VERSION_ATTRIBUTE, ThreadLocalRandom.current().nextLong());
+	}
+
 	@SuppressWarnings("serial")
 	public static abstract class AbstractInterpolatedModelSupplier<A extends Model<A>, B extends Model<B>, C extends InterpolatedModel<A, B, C>> implements Supplier<C>, Serializable {
 
@@ -265,6 +279,40 @@ public class Transform {
 		return Views.stack(dFields);
 	}
 
+	/**
+	 * Samples the 2D position field of a {@link RealTransform} over one block
+	 * into a flat array in the layout of a position field
+	 * {@link org.janelia.saalfeldlab.n5.DataBlock}, i.e. x, then y, then the
+	 * dimension.  This evaluates the transform once per pixel, other than
+	 * {@link #createPositionField(RealTransform, Interval)} which evaluates
+	 * it once per pixel and dimension.
+	 *
+	 * @param transform
+	 * @param min
+	 * @param size
+	 * @return
+	 */
+	public static double[] createPositionFieldBlock(
+			final RealTransform transform,
+			final long[] min,
+			final int[] size) {
+
+		final int n = size[0] * size[1];
+		final double[] data = new double[2 * n];
+		final double[] position = new double[2];
+		final double[] target = new double[2];
+		for (int y = 0, i = 0; y < size[1]; ++y) {
+			position[1] = min[1] + y;
+			for (int x = 0; x < size[0]; ++x, ++i) {
+				position[0] = min[0] + x;
+				transform.apply(position, target);
+				data[i] = target[0];
+				data[n + i] = target[1];
+			}
+		}
+		return data;
+	}
+
 	/**
 	 * Creates a {@link RealTransform} from a positionField raster.  The last
 	 * dimension of the input raster enumerates the dimensions, i.e. the input
@@ -401,6 +449,39 @@ public class Transform {
 	}
 
 
+	/**
+	 * Load a scaled transform whose position field is backed by the
+	 * executor-wide {@link DataBlockCache}, such that concurrent and
+	 * subsequent tasks that use the same transform share its decoded
+	 * blocks and attributes.  The {@link #VERSION_ATTRIBUTE} is read once
+	 * per call and keys the cached blocks and attributes, such that a
+	 * transform that was rewritten in the same JVM is read again.  The
+	 * returned transform is new for each call because
+	 * {@link PositionFieldTransform} is not thread safe.
+	 *
+	 * @param n5Path
+	 * @param datasetName
+	 * @return
+	 * @throws IOException
+	 */
+	public static RealTransform loadCachedScaledTransform(
+			final String n5Path,
+			final String datasetName) throws IOException {
+
+		final DataBlockCache cache = DataBlockCache.getInstance();
+		final Long version = cache.getVersion(n5Path, datasetName);
+		final double[] boundsMin = cache.getAttribute(n5Path, datasetName, version, "boundsMin", double[].class);
+		final double transformScale = cache.getAttribute(n5Path, datasetName, version, "scale", double.class);
+
+		final RandomAccessibleInterval<DoubleType> positionField = cache.openDouble(n5Path, datasetName, version);
+		final int n = positionField.numDimensions() - 1;
+		final long[] translation = Arrays.copyOf(Grid.floorScaled(boundsMin, transformScale), n + 1);
+		final PositionFieldTransform<DoubleType> transform = Transform.createPositionFieldTransform(
+				Views.translate(positionField, translation));
+		return createScaledRealTransform(transform, transformScale);
+	}
+
+
 	/**
 	 * Saves a transform as a position field in an N5 dataset
 	 *
@@ -435,6 +516,7 @@ public class Transform {
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		setVersion(n5, datasetName);
 	}
 
 	public static DatasetAttributes createScaledTransformDataset(
@@ -465,6 +547,7 @@ public class Transform {
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		setVersion(n5, datasetName);
 		return attributes;
 	}
 
@@ -513,6 +596,7 @@ public class Transform {
 		n5.setAttribute(datasetName, "boundsMin", boundsMin);
 		n5.setAttribute(datasetName, "boundsMax", boundsMax);
 		n5.setAttribute(datasetName, "scale", transformScale);
+		setVersion(n5, datasetName);
 
 		final RealTransform scaledTransform = Transform.createScaledRealTransform(transform, 1.0 / transformScale);
 
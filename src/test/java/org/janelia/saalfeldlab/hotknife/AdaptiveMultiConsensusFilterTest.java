@@ -0,0 +1,102 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * {@link AdaptiveMultiConsensusFilter} returns the same inliers as
+ * {@link MultiConsensusFilter} on a synthetic match set of noisy inliers of
+ * an affine and outliers that are far off that affine.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class AdaptiveMultiConsensusFilterTest {
+
+	private static ArrayList<PointMatch> candidates(final int numInliers, final int numOutliers, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final AffineModel2D affine = new AffineModel2D();
+		affine.set(0.98, 0.05, -0.04, 1.02, 12.0, -7.0);
+
+		final ArrayList<PointMatch> candidates = new ArrayList<>();
+		for (int i = 0; i < numInliers + numOutliers; ++i) {
+			final double[] p = new double[]{rnd.nextDouble() * 1000, rnd.nextDouble() * 1000};
+			final double[] q = affine.apply(p);
+			if (i < numInliers) {
+				q[0] += 0.5 * rnd.nextGaussian();
+				q[1] += 0.5 * rnd.nextGaussian();
+			} else {
+				final double r = 100 + rnd.nextDouble() * 200;
+				final double phi = rnd.nextDouble() * 2 * Math.PI;
+				q[0] += r * Math.cos(phi);
+				q[1] += r * Math.sin(phi);
+			}
+			candidates.add(new PointMatch(new Point(p), new Point(q)));
+		}
+		Collections.shuffle(candidates, rnd);
+		return candidates;
+	}
+
+	private static Set<PointMatch> filter(final ConsensusFilter filter, final List<PointMatch> candidates) {
+
+		final Set<PointMatch> inliers = Collections.newSetFromMap(new IdentityHashMap<>());
+		inliers.addAll(filter.filter(new ArrayList<>(candidates)));
+		return inliers;
+	}
+
+	@Test
+	public void testSameInliers() {
+
+		final ArrayList<PointMatch> candidates = candidates(100, 30, 5);
+
+		final Set<PointMatch> expected = filter(
+				new MultiConsensusFilter<>(AffineModel2D::new, 1000, 20, 0.0, 7),
+				candidates);
+		assertTrue("too few inliers " + expected.size(), expected.size() >= 90);
+
+		for (final int numThreads : new int[]{1, 4}) {
+			final Set<PointMatch> inliers = filter(
+					new AdaptiveMultiConsensusFilter<>(
+							AffineModel2D::new,
+							1000,
+							20,
+							0.0,
+							7,
+							MultiConsensusFilter.DEFAULT_MAX_TRUST,
+							0.999,
+							numThreads,
+							0),
+					candidates);
+			assertEquals("numThreads " + numThreads, expected, inliers);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+
+/**
+ * {@link FFTBlockNCC} returns the same correlation for all offsets as the
+ * spatial domain {@link IntegralBlockPMCC} for a block that is inside of b
+ * at all offsets.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class FFTBlockNCCTest {
+
+	@Test
+	public void testFFTMatchesIntegral() {
+
+		final int size = 64;
+		final int distance = 4;
+		final int x = 30;
+		final int y = 27;
+		final int radius = 6;
+
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(size, size, 7);
+		final FloatProcessor ip2 = (FloatProcessor)ip1.duplicate();
+		ip2.translate(-1, 3);
+
+		final float[] a = (float[])ip1.getPixels();
+		final float[] b = (float[])ip2.getPixels();
+
+		final int w = 2 * distance + 1;
+		final float[] r = new float[w * w];
+		new FFTBlockNCC(size, size, a, b).rSignedSquare(x - radius, y - radius, x + radius + 1, y + radius + 1, distance, r);
+
+		final IntegralBlockPMCC integral = new IntegralBlockPMCC(size, size, a, b);
+		for (int yo = -distance; yo <= distance; ++yo) {
+			for (int xo = -distance; xo <= distance; ++xo) {
+				integral.setOffset(xo, yo);
+				assertEquals(
+						"offset (" + xo + ", " + yo + ")",
+						integral.rSignedSquare(x, y, radius),
+						r[(yo + distance) * w + xo + distance],
+						1e-4);
+			}
+		}
+	}
+}
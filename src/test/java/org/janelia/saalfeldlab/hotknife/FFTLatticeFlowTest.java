@@ -0,0 +1,139 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+
+/**
+ * The max R and shift vector stacks of {@link PMCCScaleSpaceBlockFlow.Correlation#FFT}
+ * are those of {@link PMCCScaleSpaceBlockFlow.Correlation#INTEGRAL} with
+ * lattice spacing 1, and agree with them in most pixels with a coarser
+ * lattice, on a noisy shifted texture.  Pixels are compared where the blocks
+ * are inside of both images at all offsets.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class FFTLatticeFlowTest {
+
+	private static final int size = 96;
+	private static final int distance = 4;
+	private static final double scaleFactor = 1.5;
+
+	private static FloatProcessor shiftedNoisy(final FloatProcessor ip, final long seed) {
+
+		final FloatProcessor shifted = (FloatProcessor)ip.duplicate();
+		shifted.translate(2, -1);
+		final Random rnd = new Random(seed);
+		final float[] pixels = (float[])shifted.getPixels();
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] += rnd.nextGaussian() * 5;
+		return shifted;
+	}
+
+	private static ImageStack[] flow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final PMCCScaleSpaceBlockFlow.Correlation correlation,
+			final int fftStride) {
+
+		final ImageStack r = new ImageStack(size, size);
+		final ImageStack shifts = new ImageStack(size, size);
+		PMCCScaleSpaceBlockFlow.opticFlow(ip1, ip2, distance, r, shifts, scaleFactor, 2, correlation, fftStride);
+		return new ImageStack[]{r, shifts};
+	}
+
+	/**
+	 * For each block radius, compare the stacks at pixels whose blocks are
+	 * inside of both images at all offsets.
+	 *
+	 * @return per block radius, fraction of pixels with the same shift vector
+	 */
+	private static double[] compare(
+			final ImageStack[] expected,
+			final ImageStack[] actual,
+			final double rTolerance) {
+
+		assertEquals(expected[0].getSize(), actual[0].getSize());
+		assertEquals(expected[1].getSize(), actual[1].getSize());
+
+		final double[] same = new double[expected[0].getSize()];
+		for (int ri = 0; ri < same.length; ++ri) {
+			final int radius = (int)Math.round(Double.parseDouble(expected[0].getSliceLabel(ri + 1)));
+			final int border = distance + radius + 1;
+
+			final float[] r1 = (float[])expected[0].getPixels(ri + 1);
+			final float[] r2 = (float[])actual[0].getPixels(ri + 1);
+			final short[] x1 = (short[])expected[1].getPixels(2 * ri + 1);
+			final short[] x2 = (short[])actual[1].getPixels(2 * ri + 1);
+			final short[] y1 = (short[])expected[1].getPixels(2 * ri + 2);
+			final short[] y2 = (short[])actual[1].getPixels(2 * ri + 2);
+
+			int count = 0;
+			int sameCount = 0;
+			for (int y = border; y < size - border; ++y) {
+				for (int x = border, i = y * size + x; x < size - border; ++x, ++i) {
+					++count;
+					if (x1[i] == x2[i] && y1[i] == y2[i]) {
+						++sameCount;
+						assertEquals("radius " + radius + " at (" + x + ", " + y + ")", r1[i], r2[i], rTolerance);
+					}
+				}
+			}
+			same[ri] = (double)sameCount / count;
+		}
+		return same;
+	}
+
+	@Test
+	public void testDenseLatticeMatchesIntegral() {
+
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(size, size, 11);
+		final FloatProcessor ip2 = shiftedNoisy(ip1, 12);
+
+		final ImageStack[] integral = flow(ip1, ip2, PMCCScaleSpaceBlockFlow.Correlation.INTEGRAL, 1);
+		final ImageStack[] fft = flow(ip1, ip2, PMCCScaleSpaceBlockFlow.Correlation.FFT, 1);
+
+		/* the argmax may flip only at near ties of R that differs by rounding */
+		final double[] same = compare(integral, fft, 1e-4);
+		for (int ri = 0; ri < same.length; ++ri)
+			assertTrue("radius index " + ri + ": " + same[ri], same[ri] >= 0.999);
+	}
+
+	@Test
+	public void testCoarseLatticeApproximatesIntegral() {
+
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(size, size, 13);
+		final FloatProcessor ip2 = shiftedNoisy(ip1, 14);
+
+		final ImageStack[] integral = flow(ip1, ip2, PMCCScaleSpaceBlockFlow.Correlation.INTEGRAL, 1);
+		final ImageStack[] fft = flow(ip1, ip2, PMCCScaleSpaceBlockFlow.Correlation.FFT, 4);
+
+		/* R is interpolated, it deviates most for the smallest blocks */
+		final double[] same = compare(integral, fft, 0.7);
+		assertTrue("radius index 0: " + same[0], same[0] >= 0.8);
+		for (int ri = 1; ri < same.length; ++ri)
+			assertTrue("radius index " + ri + ": " + same[ri], same[ri] >= 0.95);
+	}
+}
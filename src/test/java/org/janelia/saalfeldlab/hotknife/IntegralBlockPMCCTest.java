@@ -0,0 +1,102 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.ImageStack;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+
+/**
+ * {@link PMCCScaleSpaceBlockFlow.Correlation#INTEGRAL} returns the same
+ * correlation scale space and shift vectors as
+ * {@link PMCCScaleSpaceBlockFlow.Correlation#BLOCK_PMCC} where all blocks
+ * are inside of both images.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class IntegralBlockPMCCTest {
+
+	static FloatProcessor texture(final int width, final int height, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final FloatProcessor ip = new FloatProcessor(width, height);
+		final float[] pixels = (float[])ip.getPixels();
+		for (int i = 0; i < pixels.length; ++i)
+			pixels[i] = rnd.nextFloat() * 255;
+		new GaussianBlur().blurGaussian(ip, 1.5);
+		return ip;
+	}
+
+	@Test
+	public void testIntegralMatchesBlockPMCC() {
+
+		final int size = 96;
+		final int distance = 3;
+		final double scaleFactor = 2;
+
+		final FloatProcessor ip1 = texture(size, size, 42);
+		final FloatProcessor ip2 = (FloatProcessor)ip1.duplicate();
+		ip2.translate(2, -1);
+
+		final ImageStack rBlock = new ImageStack(size, size);
+		final ImageStack shiftsBlock = new ImageStack(size, size);
+		PMCCScaleSpaceBlockFlow.opticFlow(ip1, ip2, distance, rBlock, shiftsBlock, scaleFactor, 1, PMCCScaleSpaceBlockFlow.Correlation.BLOCK_PMCC, 8);
+
+		final ImageStack rIntegral = new ImageStack(size, size);
+		final ImageStack shiftsIntegral = new ImageStack(size, size);
+		PMCCScaleSpaceBlockFlow.opticFlow(ip1, ip2, distance, rIntegral, shiftsIntegral, scaleFactor, 1, PMCCScaleSpaceBlockFlow.Correlation.INTEGRAL, 8);
+
+		assertEquals(rBlock.getSize(), rIntegral.getSize());
+		assertEquals(shiftsBlock.getSize(), shiftsIntegral.getSize());
+
+		for (int ri = 0; ri < rBlock.getSize(); ++ri) {
+
+			/* blocks of this radius at all offsets are inside of both images */
+			final int radius = (int)Math.round(Double.parseDouble(rBlock.getSliceLabel(ri + 1)));
+			final int border = distance + radius + 1;
+
+			final float[] r1 = (float[])rBlock.getPixels(ri + 1);
+			final float[] r2 = (float[])rIntegral.getPixels(ri + 1);
+			final short[] x1 = (short[])shiftsBlock.getPixels(2 * ri + 1);
+			final short[] x2 = (short[])shiftsIntegral.getPixels(2 * ri + 1);
+			final short[] y1 = (short[])shiftsBlock.getPixels(2 * ri + 2);
+			final short[] y2 = (short[])shiftsIntegral.getPixels(2 * ri + 2);
+
+			int n = 0;
+			int numEqualShifts = 0;
+			for (int y = border; y < size - border; ++y) {
+				for (int x = border; x < size - border; ++x) {
+					final int i = y * size + x;
+					assertEquals("R at radius " + radius + " (" + x + ", " + y + ")", r1[i], r2[i], 1e-3);
+					++n;
+					if (x1[i] == x2[i] && y1[i] == y2[i])
+						++numEqualShifts;
+				}
+			}
+
+			/* ties within float precision may pick different offsets */
+			assertTrue("equal shifts at radius " + radius + ": " + numEqualShifts + " of " + n, numEqualShifts >= 0.99 * n);
+		}
+	}
+}
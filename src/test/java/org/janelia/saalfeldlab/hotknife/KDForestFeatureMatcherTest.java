@@ -0,0 +1,104 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+ * {@link KDForestFeatureMatcher} finds almost all matches of the exhaustive
+ * {@link ExactFeatureMatcher} and few others on synthetic descriptors.  Like
+ * SIFT descriptors, those have a low intrinsic dimensionality, they are
+ * random combinations of a few basis vectors.  fs1 are noisy copies of a
+ * subset of fs2.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class KDForestFeatureMatcherTest {
+
+	final static private int DIMENSIONS = 128;
+	final static private int LATENT_DIMENSIONS = 12;
+
+	private static List<Feature> randomFeatures(final int n, final float[][] basis, final Random rnd) {
+
+		final List<Feature> features = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			final float[] descriptor = new float[DIMENSIONS];
+			for (final float[] b : basis) {
+				final float w = rnd.nextFloat();
+				for (int d = 0; d < DIMENSIONS; ++d)
+					descriptor[d] += w * b[d];
+			}
+			/* the location identifies the feature */
+			features.add(new Feature(1, 0, new double[]{i, 0}, descriptor));
+		}
+		return features;
+	}
+
+	private static HashSet<Long> matchKeys(final List<PointMatch> matches) {
+
+		final HashSet<Long> keys = new HashSet<>();
+		for (final PointMatch match : matches)
+			keys.add(((long)match.getP1().getL()[0] << 32) | (long)match.getP2().getL()[0]);
+		return keys;
+	}
+
+	@Test
+	public void testRecall() {
+
+		final Random rnd = new Random(11);
+		final float[][] basis = new float[LATENT_DIMENSIONS][DIMENSIONS];
+		for (final float[] b : basis)
+			for (int d = 0; d < DIMENSIONS; ++d)
+				b[d] = rnd.nextFloat();
+
+		final List<Feature> fs2 = randomFeatures(2000, basis, rnd);
+		final List<Feature> fs1 = new ArrayList<>();
+		for (int i = 0; i < fs2.size(); i += 2) {
+			final float[] descriptor = fs2.get(i).descriptor.clone();
+			for (int d = 0; d < DIMENSIONS; ++d)
+				descriptor[d] += 0.05f * (float)rnd.nextGaussian();
+			fs1.add(new Feature(1, 0, new double[]{i, 0}, descriptor));
+		}
+		/* unmatched features */
+		fs1.addAll(randomFeatures(500, basis, rnd));
+
+		final HashSet<Long> exact = matchKeys(new ExactFeatureMatcher().match(fs1, fs2, 0.92));
+		final HashSet<Long> approximate = matchKeys(new KDForestFeatureMatcher().match(fs1, fs2, 0.92));
+
+		assertTrue("too few exact matches " + exact.size(), exact.size() > 500);
+
+		int found = 0;
+		for (final Long key : approximate)
+			if (exact.contains(key))
+				++found;
+		final double recall = (double)found / exact.size();
+		final double precision = (double)found / approximate.size();
+		assertTrue("recall " + recall, recall >= 0.9);
+		/* missed neighbors can make a match unambiguous that is ambiguous for the exact matcher */
+		assertTrue("precision " + precision, precision >= 0.95);
+	}
+}
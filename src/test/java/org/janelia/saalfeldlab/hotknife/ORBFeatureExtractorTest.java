@@ -0,0 +1,146 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.hotknife.util.Features;
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+ * {@link ORBFeatureExtractor} and {@link HammingFeatureMatcher} recover the
+ * rotation of a noisy copy of a synthetic texture, and the packed binary
+ * descriptors survive the feature cache encoding.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class ORBFeatureExtractorTest {
+
+	final static private int SIZE = 256;
+	final static private double ANGLE = Math.toRadians(30);
+	final static private double NOISE = 2;
+
+	/**
+	 * ip rotated by angle about its center with bilinear interpolation,
+	 * plus Gaussian noise.  Pixels outside of ip are 0.
+	 */
+	private static FloatProcessor rotate(final FloatProcessor ip, final double angle, final double noise, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final double cos = Math.cos(angle);
+		final double sin = Math.sin(angle);
+		final double cx = 0.5 * (width - 1);
+		final double cy = 0.5 * (height - 1);
+		final FloatProcessor rotated = new FloatProcessor(width, height);
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				/* inverse rotation */
+				final double sx = cos * (x - cx) + sin * (y - cy) + cx;
+				final double sy = -sin * (x - cx) + cos * (y - cy) + cy;
+				final int x0 = (int)Math.floor(sx);
+				final int y0 = (int)Math.floor(sy);
+				if (x0 < 0 || y0 < 0 || x0 + 1 >= width || y0 + 1 >= height)
+					continue;
+				final double fx = sx - x0;
+				final double fy = sy - y0;
+				final double v =
+						(1 - fy) * ((1 - fx) * ip.getf(x0, y0) + fx * ip.getf(x0 + 1, y0)) +
+						fy * ((1 - fx) * ip.getf(x0, y0 + 1) + fx * ip.getf(x0 + 1, y0 + 1));
+				rotated.setf(x, y, (float)(v + noise * rnd.nextGaussian()));
+			}
+		}
+		return rotated;
+	}
+
+	/* the smooth texture has weak corners, hence the low FAST threshold */
+	private static List<Feature> extract(final FloatProcessor ip) {
+
+		return new ORBFeatureExtractor(1, 0.25, 1000, 5).extract((FloatProcessor)ip.duplicate());
+	}
+
+	@Test
+	public void testRotatedTexture() {
+
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(SIZE, SIZE, 23);
+		final FloatProcessor ip2 = rotate(ip1, ANGLE, NOISE, 24);
+
+		final List<Feature> fs1 = extract(ip1);
+		final List<Feature> fs2 = extract(ip2);
+		final ArrayList<PointMatch> matches = new HammingFeatureMatcher().match(fs1, fs2, 0.8);
+
+		assertTrue("too few matches " + matches.size(), matches.size() > 200);
+
+		final double cos = Math.cos(ANGLE);
+		final double sin = Math.sin(ANGLE);
+		final double c = 0.5 * (SIZE - 1);
+		int numInliers = 0;
+		for (final PointMatch match : matches) {
+			final double[] p1 = match.getP1().getL();
+			final double[] p2 = match.getP2().getL();
+			final double dx = p2[0] - (cos * (p1[0] - c) - sin * (p1[1] - c) + c);
+			final double dy = p2[1] - (sin * (p1[0] - c) + cos * (p1[1] - c) + c);
+			if (dx * dx + dy * dy <= 2 * 2)
+				++numInliers;
+		}
+		final double inlierRatio = (double)numInliers / matches.size();
+		assertTrue("inlier ratio " + inlierRatio, inlierRatio >= 0.85);
+	}
+
+	@Test
+	public void testEncodeDecode() {
+
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(SIZE, SIZE, 23);
+		final List<Feature> fs1 = extract(ip1);
+		final List<Feature> fs2 = extract(rotate(ip1, ANGLE, NOISE, 24));
+		final List<Feature> decoded1 = Features.decode(Features.encode(fs1));
+		final List<Feature> decoded2 = Features.decode(Features.encode(fs2));
+
+		assertEquals(fs1.size(), decoded1.size());
+		for (int i = 0; i < fs1.size(); ++i) {
+			final Feature f = fs1.get(i);
+			final Feature g = decoded1.get(i);
+			assertArrayEquals(f.location, g.location, 0);
+			assertEquals(ORBFeatureExtractor.NUM_BITS / ORBFeatureExtractor.BITS_PER_FLOAT, g.descriptor.length);
+			assertArrayEquals(f.descriptor, g.descriptor, 0);
+			/* 16 bits per float are exact integers */
+			for (final float d : g.descriptor)
+				assertTrue("descriptor value " + d, d >= 0 && d < (1 << ORBFeatureExtractor.BITS_PER_FLOAT) && d == Math.rint(d));
+		}
+
+		final HammingFeatureMatcher matcher = new HammingFeatureMatcher();
+		final ArrayList<PointMatch> matches = matcher.match(fs1, fs2, 0.8);
+		final ArrayList<PointMatch> decodedMatches = matcher.match(decoded1, decoded2, 0.8);
+		assertTrue("no matches", matches.size() > 0);
+		assertEquals(matches.size(), decodedMatches.size());
+		for (int i = 0; i < matches.size(); ++i) {
+			assertArrayEquals(matches.get(i).getP1().getL(), decodedMatches.get(i).getP1().getL(), 0);
+			assertArrayEquals(matches.get(i).getP2().getL(), decodedMatches.get(i).getP2().getL(), 0);
+		}
+	}
+}
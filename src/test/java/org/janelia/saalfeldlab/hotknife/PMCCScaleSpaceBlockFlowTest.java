@@ -0,0 +1,81 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+import net.imglib2.realtransform.PositionFieldTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Pair;
+
+/**
+ * Flow computed in tiles with a halo ({@link PMCCScaleSpaceBlockFlow.Param#tileSize})
+ * is the same as the flow computed for the whole image.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class PMCCScaleSpaceBlockFlowTest {
+
+	static Pair<PositionFieldTransform<DoubleType>, FloatProcessor> flow(
+			final FloatProcessor ip1,
+			final FloatProcessor ip2,
+			final int tileSize) {
+
+		final PMCCScaleSpaceBlockFlow.Param param = new PMCCScaleSpaceBlockFlow.Param((short)3, 4, 2);
+		param.materialize = true;
+		param.tileSize = tileSize;
+		return PMCCScaleSpaceBlockFlow.scaleSpaceOpticFlow(
+				(FloatProcessor)ip1.duplicate(),
+				(FloatProcessor)ip2.duplicate(),
+				param);
+	}
+
+	@Test
+	public void testTiledMatchesUntiled() {
+
+		final int size = 96;
+		final FloatProcessor ip1 = IntegralBlockPMCCTest.texture(size, size, 3);
+		final FloatProcessor ip2 = (FloatProcessor)ip1.duplicate();
+		ip2.translate(1, 2);
+
+		final Pair<PositionFieldTransform<DoubleType>, FloatProcessor> untiled = flow(ip1, ip2, 0);
+		final Pair<PositionFieldTransform<DoubleType>, FloatProcessor> tiled = flow(ip1, ip2, 40);
+
+		assertArrayEquals(
+				(float[])untiled.getB().getPixels(),
+				(float[])tiled.getB().getPixels(),
+				1e-5f);
+
+		final double[] p = new double[2];
+		final double[] q1 = new double[2];
+		final double[] q2 = new double[2];
+		for (int y = 0; y < size; ++y) {
+			for (int x = 0; x < size; ++x) {
+				p[0] = x;
+				p[1] = y;
+				untiled.getA().apply(p, q1);
+				tiled.getA().apply(p, q2);
+				assertEquals(q1[0], q2[0], 1e-4);
+				assertEquals(q1[1], q2[1], 1e-4);
+			}
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ij.process.FloatProcessor;
+
+/**
+ * {@link ValueToNoiseLocalContrast} reproduces the
+ * {@link ValueToNoise} and {@link NormalizeLocalContrast} pipeline that it
+ * replaced in {@link org.janelia.saalfeldlab.hotknife.util.Align#addNoise(FloatProcessor)},
+ * and the noise of an image does not depend on other calls.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class ValueToNoiseLocalContrastTest {
+
+	/**
+	 * Texture with a horizontal ramp such that local statistics vary, all
+	 * values in (0, 255).
+	 */
+	private static FloatProcessor rampedTexture(final int width, final int height, final long seed) {
+
+		final FloatProcessor ip = IntegralBlockPMCCTest.texture(width, height, seed);
+		for (int y = 0; y < height; ++y)
+			for (int x = 0; x < width; ++x)
+				ip.setf(x, y, 20 + 0.5f * ip.getf(x, y) + 100.0f * x / width);
+		return ip;
+	}
+
+	/**
+	 * Set a random fraction of the pixels to 0 or 255.
+	 */
+	private static void saturate(final FloatProcessor ip, final double fraction, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final float[] pixels = (float[])ip.getPixels();
+		for (int i = 0; i < pixels.length; ++i)
+			if (rnd.nextDouble() < fraction)
+				pixels[i] = rnd.nextBoolean() ? 0 : 255;
+	}
+
+	@Test
+	public void testMatchesValueToNoiseNormalizeLocalContrast() {
+
+		final FloatProcessor ip = rampedTexture(640, 560, 5);
+		for (final float v : (float[])ip.getPixels())
+			assertTrue("saturated value " + v, v > 0 && v < 255);
+
+		/* the former Align.addNoise */
+		FloatProcessor expected = (FloatProcessor)ip.duplicate();
+		expected = new ValueToNoise(0, 0, 255).process(expected).convertToFloatProcessor();
+		expected = new ValueToNoise(255, 0, 255).process(expected).convertToFloatProcessor();
+		expected.setMinAndMax(0, 255);
+		expected = new NormalizeLocalContrast(256, 256, 3, true, true).process(expected).convertToFloatProcessor();
+
+		final FloatProcessor fused = new ValueToNoiseLocalContrast().process((FloatProcessor)ip.duplicate());
+
+		final float[] expectedPixels = (float[])expected.getPixels();
+		final float[] fusedPixels = (float[])fused.getPixels();
+		assertEquals(expectedPixels.length, fusedPixels.length);
+		for (int i = 0; i < expectedPixels.length; ++i)
+			assertEquals("pixel " + i, expectedPixels[i], fusedPixels[i], 0.05);
+	}
+
+	@Test
+	public void testNoiseDependsOnInput() {
+
+		final FloatProcessor ip1 = rampedTexture(200, 150, 6);
+		final FloatProcessor ip2 = rampedTexture(200, 150, 7);
+		saturate(ip1, 0.1, 8);
+		saturate(ip2, 0.1, 8);
+
+		/* the same image gives the same noise, no matter what was processed before */
+		final ValueToNoiseLocalContrast shared = new ValueToNoiseLocalContrast();
+		final FloatProcessor first = shared.process((FloatProcessor)ip1.duplicate());
+		shared.process((FloatProcessor)ip2.duplicate());
+		final FloatProcessor again = shared.process((FloatProcessor)ip1.duplicate());
+		final FloatProcessor fresh = new ValueToNoiseLocalContrast().process((FloatProcessor)ip1.duplicate());
+		assertArrayEquals((float[])first.getPixels(), (float[])again.getPixels(), 0);
+		assertArrayEquals((float[])first.getPixels(), (float[])fresh.getPixels(), 0);
+
+		/* different images with the same saturated pixels get different noise */
+		final float[] pixels1 = ((float[])ip1.getPixels()).clone();
+		final float[] pixels2 = ((float[])ip2.getPixels()).clone();
+		new ValueToNoiseLocalContrast().noise(pixels1);
+		new ValueToNoiseLocalContrast().noise(pixels2);
+		final float[] saturated = (float[])ip1.getPixels();
+		int numSaturated = 0;
+		int numEqual = 0;
+		for (int i = 0; i < saturated.length; ++i) {
+			if (saturated[i] == 0 || saturated[i] == 255) {
+				++numSaturated;
+				if (pixels1[i] == pixels2[i])
+					++numEqual;
+			}
+		}
+		assertTrue("too few saturated pixels " + numSaturated, numSaturated > 1000);
+		assertTrue("equal noise " + numEqual, numEqual < numSaturated / 100);
+	}
+}
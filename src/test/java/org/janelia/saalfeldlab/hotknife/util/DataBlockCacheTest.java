@@ -0,0 +1,194 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DoubleArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Test;
+
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * {@link DataBlockCache} evicts the least recently used blocks beyond its
+ * byte budget, returns correct blocks to concurrent readers, and misses
+ * for a rewritten transform.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class DataBlockCacheTest {
+
+	private static final int blockSize = 8;
+	private static final int gridSize = 4;
+
+	/* bytes of a cached 8x8 FLOAT64 block including the entry overhead */
+	private static final long blockBytes = blockSize * blockSize * 8 + 128;
+
+	private static double value(final long[] gridPosition) {
+
+		return gridPosition[0] * 100 + gridPosition[1];
+	}
+
+	private static void createDataset(final N5FSWriter n5, final String datasetName) throws IOException {
+
+		final DatasetAttributes attributes = new DatasetAttributes(
+				new long[]{blockSize * gridSize, blockSize * gridSize},
+				new int[]{blockSize, blockSize},
+				DataType.FLOAT64,
+				new GzipCompression());
+		n5.createDataset(datasetName, attributes);
+		for (long x = 0; x < gridSize; ++x) {
+			for (long y = 0; y < gridSize; ++y) {
+				final long[] gridPosition = new long[]{x, y};
+				final double[] data = new double[blockSize * blockSize];
+				Arrays.fill(data, value(gridPosition));
+				n5.writeBlock(
+						datasetName,
+						attributes,
+						new DoubleArrayDataBlock(new int[]{blockSize, blockSize}, gridPosition, data));
+			}
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+
+		final String n5Path = Files.createTempDirectory("hot-knife-block-cache-").toString();
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+		try {
+			createDataset(n5, "/blocks");
+
+			/* one stripe that holds three blocks */
+			final DataBlockCache cache = new DataBlockCache(blockBytes * 3, 1);
+
+			final DataBlock<?> b0 = cache.readBlock(n5Path, "/blocks", null, 0, 0);
+			final DataBlock<?> b1 = cache.readBlock(n5Path, "/blocks", null, 0, 1);
+			final DataBlock<?> b2 = cache.readBlock(n5Path, "/blocks", null, 0, 2);
+			assertSame(b0, cache.readBlock(n5Path, "/blocks", null, 0, 0));
+
+			/* b1 is the least recently used */
+			final DataBlock<?> b3 = cache.readBlock(n5Path, "/blocks", null, 0, 3);
+			assertSame(b0, cache.readBlock(n5Path, "/blocks", null, 0, 0));
+			assertSame(b2, cache.readBlock(n5Path, "/blocks", null, 0, 2));
+			assertSame(b3, cache.readBlock(n5Path, "/blocks", null, 0, 3));
+
+			final DataBlock<?> b1Again = cache.readBlock(n5Path, "/blocks", null, 0, 1);
+			assertNotSame(b1, b1Again);
+			assertArrayEquals((double[])b1.getData(), (double[])b1Again.getData(), 0);
+
+			/* reading b1 again evicted b0, the least recently used then */
+			assertNotSame(b0, cache.readBlock(n5Path, "/blocks", null, 0, 0));
+
+			/* another version is another block */
+			assertNotSame(b3, cache.readBlock(n5Path, "/blocks", 1L, 0, 3));
+		} finally {
+			n5.remove();
+		}
+	}
+
+	@Test
+	public void testConcurrentReaders() throws IOException, InterruptedException, ExecutionException {
+
+		final String n5Path = Files.createTempDirectory("hot-knife-block-cache-").toString();
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+		try {
+			createDataset(n5, "/blocks");
+
+			/* fewer blocks than the dataset has, such that readers evict each other's blocks */
+			final DataBlockCache cache = new DataBlockCache(blockBytes * 8, 4);
+
+			final ExecutorService exec = Executors.newFixedThreadPool(8);
+			try {
+				final ArrayList<Future<Integer>> futures = new ArrayList<>();
+				for (int t = 0; t < 8; ++t) {
+					final long seed = t;
+					futures.add(exec.submit(() -> {
+						final Random rnd = new Random(seed);
+						int numReads = 0;
+						for (int i = 0; i < 1000; ++i) {
+							final long[] gridPosition = new long[]{rnd.nextInt(gridSize), rnd.nextInt(gridSize)};
+							final DataBlock<?> block = cache.readBlock(n5Path, "/blocks", null, gridPosition);
+							assertNotNull(block);
+							assertArrayEquals(gridPosition, block.getGridPosition());
+							for (final double v : (double[])block.getData())
+								assertEquals(value(gridPosition), v, 0);
+							++numReads;
+						}
+						return numReads;
+					}));
+				}
+				for (final Future<Integer> future : futures)
+					assertEquals(1000, future.get().intValue());
+			} finally {
+				exec.shutdownNow();
+			}
+		} finally {
+			n5.remove();
+		}
+	}
+
+	@Test
+	public void testRewrittenTransform() throws IOException {
+
+		final String n5Path = Files.createTempDirectory("hot-knife-block-cache-").toString();
+		final N5FSWriter n5 = new N5FSWriter(n5Path);
+		try {
+			final double[] boundsMin = new double[]{0, 0};
+			final double[] boundsMax = new double[]{63, 63};
+			final double[] p = new double[]{10, 20};
+			final double[] q = new double[2];
+
+			final AffineTransform2D transform = new AffineTransform2D();
+			transform.translate(1, 2);
+			Transform.saveScaledTransform(n5, "/transform", transform, 0.25, boundsMin, boundsMax);
+
+			RealTransform cached = Transform.loadCachedScaledTransform(n5Path, "/transform");
+			cached.apply(p, q);
+			assertArrayEquals(new double[]{11, 22}, q, 1e-6);
+
+			/* rewriting in the same JVM is seen by the next load */
+			transform.translate(3, -1);
+			Transform.saveScaledTransform(n5, "/transform", transform, 0.5, boundsMin, boundsMax);
+
+			cached = Transform.loadCachedScaledTransform(n5Path, "/transform");
+			cached.apply(p, q);
+			assertArrayEquals(new double[]{14, 21}, q, 1e-6);
+		} finally {
+			n5.remove();
+		}
+	}
+}
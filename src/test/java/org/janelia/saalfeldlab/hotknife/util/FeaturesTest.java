@@ -0,0 +1,145 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Round trip of the feature encoding, keys of the feature cache, and removal
+ * of stale caches.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class FeaturesTest {
+
+	@Test
+	public void testEncodeDecode() {
+
+		final Random rnd = new Random(3);
+		final List<Feature> features = new ArrayList<>();
+		for (int i = 0; i < 17; ++i) {
+			final float[] descriptor = new float[128];
+			for (int j = 0; j < descriptor.length; ++j)
+				descriptor[j] = rnd.nextFloat();
+			features.add(new Feature(
+					rnd.nextDouble() * 4,
+					rnd.nextDouble() * 2 * Math.PI,
+					new double[]{rnd.nextDouble() * 1000, rnd.nextDouble() * 1000},
+					descriptor));
+		}
+
+		final List<Feature> decoded = Features.decode(Features.encode(features));
+		assertEquals(features.size(), decoded.size());
+		for (int i = 0; i < features.size(); ++i) {
+			final Feature a = features.get(i);
+			final Feature b = decoded.get(i);
+			assertEquals(a.scale, b.scale, 0);
+			assertEquals(a.orientation, b.orientation, 0);
+			assertArrayEquals(a.location, b.location, 0);
+			assertArrayEquals(a.descriptor, b.descriptor, 0);
+		}
+
+		assertEquals(0, Features.decode(Features.encode(new ArrayList<>())).size());
+	}
+
+	@Test
+	public void testTransformHash() throws IOException {
+
+		final N5FSWriter n5 = new N5FSWriter(Files.createTempDirectory("hot-knife-features-").toString());
+		try {
+			final double[] boundsMin = new double[]{0, 0};
+			final double[] boundsMax = new double[]{63, 63};
+			final AffineTransform2D transform = new AffineTransform2D();
+			transform.translate(1.5, -2);
+
+			Transform.saveScaledTransform(n5, "/transform", transform, 0.25, boundsMin, boundsMax);
+			final Long h = Features.hash(n5, "/transform");
+			assertNotNull(h);
+			assertEquals(h, Features.hash(n5, "/transform"));
+
+			/* rewriting renews the key */
+			Transform.saveScaledTransform(n5, "/transform", transform, 0.25, boundsMin, boundsMax);
+			assertNotEquals(h, Features.hash(n5, "/transform"));
+
+			/* transforms without version have no key and are not modified */
+			final RandomAccessibleInterval<DoubleType> positionField = N5Utils.open(n5, "/transform");
+			N5Utils.save(positionField, n5, "/legacy", new int[]{64, 64, 2}, new GzipCompression());
+			n5.setAttribute("/legacy", "boundsMin", boundsMin);
+			n5.setAttribute("/legacy", "boundsMax", boundsMax);
+			n5.setAttribute("/legacy", "scale", 0.25);
+			assertNull(Features.hash(n5, "/legacy"));
+			assertNull(n5.getAttribute("/legacy", Transform.VERSION_ATTRIBUTE, Long.class));
+		} finally {
+			n5.remove();
+		}
+	}
+
+	@Test
+	public void testStaleCachesRemoved() throws IOException {
+
+		final N5FSWriter n5 = new N5FSWriter(Files.createTempDirectory("hot-knife-features-").toString());
+		try {
+			final String cache1 = Features.cacheDatasetName("/features", "/slab-24/top", 4, 1, 2, 3);
+			final String cache2 = Features.cacheDatasetName("/features", "/slab-24/top", 4, 1, 2, 4);
+			final String otherScale = Features.cacheDatasetName("/features", "/slab-24/top", 5, 1, 2, 3);
+			final String otherFace = Features.cacheDatasetName("/features", "/slab-24/bot", 4, 1, 2, 3);
+			assertTrue(cache1.startsWith("/features/slab-24/top/s4/"));
+			assertNotEquals(cache1, cache2);
+
+			final long[] gridDimensions = new long[]{2, 3};
+			Features.createCache(n5, cache1, gridDimensions);
+			Features.createCache(n5, otherScale, gridDimensions);
+			Features.createCache(n5, otherFace, gridDimensions);
+			Features.saveBlock(n5, cache1, new long[]{1, 2}, new ArrayList<>());
+
+			/* existing caches of the same key are kept */
+			Features.createCache(n5, cache1, gridDimensions);
+			assertNotNull(Features.loadBlock(n5, cache1, new long[]{1, 2}));
+
+			/* a new key of the same face and scale replaces the old one */
+			Features.createCache(n5, cache2, gridDimensions);
+			assertFalse(n5.exists(cache1));
+			assertTrue(n5.datasetExists(cache2));
+			assertTrue(n5.datasetExists(otherScale));
+			assertTrue(n5.datasetExists(otherFace));
+		} finally {
+			n5.remove();
+		}
+	}
+}
@@ -0,0 +1,174 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.imglib2.N5Utils;
+import org.junit.Test;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform2D;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import scala.Tuple2;
+import scala.Tuple3;
+
+/**
+ * The in-memory blend of 50% overlapping grid cell blocks
+ * ({@link Spark#gridCellBlocks}, {@link Spark#blendGridCellBlock}) is
+ * equivalent to composing the per grid cell transform datasets by reading
+ * the four neighboring cells of each block, on a small synthetic stack of
+ * per grid cell affine transforms.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class GridCellBlendTest {
+
+	private static final double[] boundsMin = new double[]{-3.5, 2.0};
+	private static final double[] boundsMax = new double[]{68.0, 49.5};
+	private static final double transformScale = 0.5;
+	private static final int stepSize = 8;
+
+	private static AffineTransform2D cellTransform(final long gx, final long gy) {
+
+		final AffineTransform2D transform = new AffineTransform2D();
+		transform.set(
+				1.0 + 0.01 * gx, 0.02 * gy, 3.0 * gx - gy,
+				-0.01 * gx, 1.0 - 0.015 * gy, 0.5 * gx - 2.0 * gy);
+		return transform;
+	}
+
+	private static String cellDatasetName(final long gx, final long gy) {
+
+		return "/cells/" + gx + "-" + gy;
+	}
+
+	private static double[] read(
+			final N5FSWriter n5,
+			final String datasetName,
+			final long[] min,
+			final long[] max) throws IOException {
+
+		final RandomAccessibleInterval<DoubleType> field = N5Utils.open(n5, datasetName);
+		final FinalInterval interval = new FinalInterval(min, max);
+		final double[] values = new double[(int)Intervals.numElements(interval)];
+		int i = 0;
+		for (final DoubleType t : Views.flatIterable(Views.interval(field, interval)))
+			values[i++] = t.get();
+		return values;
+	}
+
+	/**
+	 * Compose a block the way the per grid cell datasets were composed
+	 * before, clamping the neighbors at the lower grid border.
+	 */
+	private static double[] composeBlock(
+			final N5FSWriter n5,
+			final long bx,
+			final long by,
+			final int w,
+			final int h) throws IOException {
+
+		final long[] min = new long[]{bx * stepSize, by * stepSize, 0};
+		final long[] max = new long[]{min[0] + w - 1, min[1] + h - 1, 1};
+		final long gx0 = Math.max(0, bx - 1);
+		final long gy0 = Math.max(0, by - 1);
+
+		final double[] t00 = read(n5, cellDatasetName(gx0, gy0), min, max);
+		final double[] t01 = read(n5, cellDatasetName(gx0, by), min, max);
+		final double[] t10 = read(n5, cellDatasetName(bx, gy0), min, max);
+		final double[] t11 = read(n5, cellDatasetName(bx, by), min, max);
+
+		final double[] data = new double[w * h * 2];
+		for (int d = 0, i = 0; d < 2; ++d) {
+			for (int y = 0; y < h; ++y) {
+				final double lambdaY = (double)y / stepSize;
+				for (int x = 0; x < w; ++x, ++i) {
+					final double lambdaX = (double)x / stepSize;
+					final double d0 = (t10[i] - t00[i]) * lambdaX + t00[i];
+					final double d1 = (t11[i] - t01[i]) * lambdaX + t01[i];
+					data[i] = (d1 - d0) * lambdaY + d0;
+				}
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void testBlendEqualsCompose() throws IOException {
+
+		final long[] floorScaledMin = Grid.floorScaled(boundsMin, transformScale);
+		final long[] ceilScaledMax = Grid.ceilScaled(boundsMax, transformScale);
+		final long[] dimensions = new long[]{
+				ceilScaledMax[0] - floorScaledMin[0] + 1,
+				ceilScaledMax[1] - floorScaledMin[1] + 1};
+		final long numCellsX = (dimensions[0] + stepSize - 1) / stepSize;
+		final long numCellsY = (dimensions[1] + stepSize - 1) / stepSize;
+
+		final N5FSWriter n5 = new N5FSWriter(Files.createTempDirectory("hot-knife-grid-cells-").toString());
+		try {
+			final HashMap<Tuple3<Integer, Long, Long>, List<Tuple2<Integer, double[]>>> blocks = new HashMap<>();
+			for (long gx = 0; gx < numCellsX; ++gx) {
+				for (long gy = 0; gy < numCellsY; ++gy) {
+					final AffineTransform2D transform = cellTransform(gx, gy);
+					Transform.saveScaledTransformBlock(
+							n5,
+							cellDatasetName(gx, gy),
+							transform,
+							transformScale,
+							boundsMin,
+							boundsMax,
+							new long[]{gx, gy},
+							new int[]{stepSize, stepSize});
+					for (final Tuple2<Tuple3<Integer, Long, Long>, Tuple2<Integer, double[]>> block :
+							Spark.gridCellBlocks(0, new long[]{gx, gy}, transform, transformScale, boundsMin, boundsMax, stepSize))
+						blocks.computeIfAbsent(block._1(), k -> new ArrayList<>()).add(block._2());
+				}
+			}
+
+			assertEquals(numCellsX * numCellsY, blocks.size());
+
+			for (long bx = 0; bx < numCellsX; ++bx) {
+				for (long by = 0; by < numCellsY; ++by) {
+					final List<Tuple2<Integer, double[]>> contributions = blocks.get(new Tuple3<>(0, bx, by));
+					assertNotNull(contributions);
+					final int w = (int)Math.min(stepSize, dimensions[0] - bx * stepSize);
+					final int h = (int)Math.min(stepSize, dimensions[1] - by * stepSize);
+					assertArrayEquals(
+							"block " + bx + ", " + by,
+							composeBlock(n5, bx, by, w, h),
+							Spark.blendGridCellBlock(contributions, w, h, stepSize),
+							1e-9);
+				}
+			}
+		} finally {
+			n5.remove();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.janelia.saalfeldlab.hotknife.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.junit.Test;
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+ * Round trip of the point match encoding and store, and the conditions
+ * under which a stored match dataset is used.
+ *
+ * @author agent &lt;agent@local&gt;
+ */
+public class PointMatchesTest {
+
+	private static ArrayList<PointMatch> randomMatches(final int n, final long seed) {
+
+		final Random rnd = new Random(seed);
+		final ArrayList<PointMatch> matches = new ArrayList<>();
+		for (int i = 0; i < n; ++i)
+			matches.add(
+					new PointMatch(
+							new Point(new double[]{rnd.nextDouble() * 1000, rnd.nextDouble() * 1000}),
+							new Point(new double[]{rnd.nextDouble() * 1000, rnd.nextDouble() * 1000}),
+							rnd.nextDouble()));
+		return matches;
+	}
+
+	private static void assertMatchesEqual(final List<PointMatch> expected, final List<PointMatch> actual) {
+
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			final PointMatch a = expected.get(i);
+			final PointMatch b = actual.get(i);
+			assertArrayEquals(a.getP1().getL(), b.getP1().getL(), 0);
+			assertArrayEquals(a.getP2().getL(), b.getP2().getL(), 0);
+			assertArrayEquals(b.getP1().getL(), b.getP1().getW(), 0);
+			assertArrayEquals(b.getP2().getL(), b.getP2().getW(), 0);
+			assertEquals(a.getWeight(), b.getWeight(), 0);
+		}
+	}
+
+	@Test
+	public void testEncodeDecode() {
+
+		final ArrayList<PointMatch> matches = randomMatches(23, 1);
+		assertMatchesEqual(matches, PointMatches.decode(PointMatches.encode(matches)));
+		assertEquals(0, PointMatches.decode(PointMatches.encode(new ArrayList<>())).size());
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+
+		final N5FSWriter n5 = new N5FSWriter(Files.createTempDirectory("hot-knife-matches-").toString());
+		try {
+			final String datasetName = PointMatches.datasetName("/matches", "slab-24_top", "slab-25_bot");
+			final long[] gridDimensions = new long[]{3, 2};
+			final long[] min = new long[]{-5, 7};
+			final int[] spacing = new int[]{64, 64};
+			final long key = Features.hash(1, 2, 3);
+
+			PointMatches.createDataset(n5, datasetName, gridDimensions, min, spacing, key);
+			assertFalse(PointMatches.exists(n5, datasetName, gridDimensions, min, spacing, key));
+
+			final ArrayList<PointMatch> matches = randomMatches(17, 2);
+			PointMatches.saveBlock(n5, datasetName, new long[]{1, 1}, matches);
+			PointMatches.setComplete(n5, datasetName);
+
+			assertTrue(PointMatches.exists(n5, datasetName, gridDimensions, min, spacing, key));
+			assertFalse(PointMatches.exists(n5, datasetName, gridDimensions, min, spacing, key + 1));
+			assertFalse(PointMatches.exists(n5, datasetName, gridDimensions, new long[]{0, 7}, spacing, key));
+			assertFalse(PointMatches.exists(n5, datasetName, new long[]{3, 3}, min, spacing, key));
+
+			assertMatchesEqual(matches, PointMatches.loadBlock(n5, datasetName, new long[]{1, 1}));
+			assertEquals(0, PointMatches.loadBlock(n5, datasetName, new long[]{0, 0}).size());
+		} finally {
+			n5.remove();
+		}
+	}
+}